@@ -0,0 +1,51 @@
+package victor.training.sourcing;
+
+import com.eventstore.dbclient.EventData;
+import com.eventstore.dbclient.RecordedEvent;
+import org.openjdk.jmh.annotations.*;
+import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.domain.UserEvent.UserLoggedIn;
+import victor.training.sourcing.user.domain.UserEvent.UserPersonalDetailsUpdated;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+// GsonUtil.toEventData / fromEventDataSealed for a small, a mid and a large event, in both encodings
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+  @Param({"UserPersonalDetailsUpdated", "UserLoggedIn", "UserCreated"})
+  public String eventType;
+
+  @Param({"JSON", "BINARY"})
+  public GsonUtil.Encoding encoding;
+
+  private UserEvent event;
+  private RecordedEvent recorded;
+
+  @Setup
+  public void setup() {
+    GsonUtil.writeAs(encoding);
+    event = switch (eventType) {
+      case "UserPersonalDetailsUpdated" -> new UserPersonalDetailsUpdated().name("John Doe").departmentId("dept-7");
+      case "UserLoggedIn" -> new UserLoggedIn().application("crm").loginTime(LocalDateTime.of(2024, 3, 1, 9, 30, 12));
+      case "UserCreated" -> SyntheticUserHistory.created(1234);
+      default -> throw new IllegalArgumentException(eventType);
+    };
+    recorded = SyntheticUserHistory.recorded("user-user1234@example.com", 7, 1_000_000, event, new byte[0]);
+  }
+
+  @Benchmark
+  public EventData toEventData() {
+    return GsonUtil.toEventData(event);
+  }
+
+  @Benchmark
+  public UserEvent fromEventDataSealed() {
+    return GsonUtil.fromEventDataSealed(recorded, UserEvent.class);
+  }
+}
@@ -0,0 +1,109 @@
+package victor.training.sourcing;
+
+import com.eventstore.dbclient.EventData;
+import com.eventstore.dbclient.RecordedEvent;
+import victor.training.sourcing.store.ClientAccess;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.domain.UserEvent.*;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+// Realistic event payloads, encoded by the production codec, as if read back from $all
+public class SyntheticUserHistory {
+  private static final String[] APPLICATIONS = {"crm", "billing", "portal", "hr", "reports"};
+  private static final String[] ROLES = {"ADMIN", "AUDITOR", "EDITOR", "VIEWER", "APPROVER", "SUPPORT"};
+  private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+  private final Random random = new Random(42); // same data on every run
+  private final List<RecordedEvent> events = new ArrayList<>();
+  private long commit;
+
+  public static String email(int user) {
+    return "user" + user + "@example.com";
+  }
+
+  public static UserCreated created(int user) {
+    return new UserCreated()
+        .name("User Number" + user)
+        .firstName("User")
+        .lastName("Number" + user)
+        .email(email(user))
+        .departmentId("dept-" + user % 40)
+        .birthDate(LocalDate.of(1970 + user % 30, 1 + user % 12, 1 + user % 28));
+  }
+
+  // the events of one user's lifetime, as accepted by User.apply
+  public static List<UserEvent> lifetime(int user, int eventCount, Random random) {
+    List<UserEvent> events = new ArrayList<>(eventCount);
+    events.add(created(user));
+    boolean active = true;
+    List<String> roles = new ArrayList<>();
+    while (events.size() < eventCount) {
+      int dice = random.nextInt(100);
+      if (dice < 40) {
+        events.add(new UserPersonalDetailsUpdated().name("User Renamed" + events.size()).departmentId("dept-" + random.nextInt(40)));
+      } else if (dice < 65 && roles.size() < ROLES.length) {
+        String role = ROLES[roles.size()];
+        roles.add(role);
+        events.add(new UserRoleGranted().role(role));
+      } else if (dice < 85 && !roles.isEmpty()) {
+        events.add(new UserRoleRevoked().role(roles.removeLast()));
+      } else if (dice < 90) {
+        events.add(new UserEmailConfirmed());
+      } else {
+        events.add(active ? new UserDeactivated() : new UserActivated().email(email(user)));
+        active = !active;
+      }
+    }
+    return events;
+  }
+
+  // users created up-front, then interleaved activity incl. logins, all in one global log
+  public static List<RecordedEvent> allStreams(int users, int eventCount) {
+    SyntheticUserHistory history = new SyntheticUserHistory();
+    for (int user = 0; user < users && history.events.size() < eventCount; user++) {
+      history.append(user, 0, created(user));
+    }
+    long[] revisions = new long[users];
+    while (history.events.size() < eventCount) {
+      int user = history.random.nextInt(users);
+      int dice = history.random.nextInt(100);
+      UserEvent event = dice < 60
+          ? new UserLoggedIn().application(APPLICATIONS[history.random.nextInt(APPLICATIONS.length)])
+              .loginTime(LocalDateTime.of(2024, 1, 1, 0, 0).plusSeconds(history.commit))
+          : dice < 75 ? new UserEmailConfirmed()
+          : dice < 85 ? new UserPersonalDetailsUpdated().name("User Renamed" + history.commit).departmentId("dept-7")
+          : dice < 93 ? new UserDeactivated()
+          : new UserActivated().email(email(user));
+      history.append(user, ++revisions[user], event);
+    }
+    return history.events;
+  }
+
+  public static List<RecordedEvent> oneStream(int user, int eventCount) {
+    SyntheticUserHistory history = new SyntheticUserHistory();
+    long revision = 0;
+    for (UserEvent event : lifetime(user, eventCount, history.random)) {
+      history.append(user, revision++, event);
+    }
+    return history.events;
+  }
+
+  public static RecordedEvent recorded(String streamId, long revision, long commit, Object event, byte[] userMetadata) {
+    EventData data = GsonUtil.toEventData(event); // in the encoding selected via GsonUtil.writeAs
+    return ClientAccess.recordedEvent(streamId, revision, UUID.randomUUID(), commit, data.getEventType(),
+        data.getContentType(), ClientAccess.ticks(START.plusSeconds(commit)), data.getEventData(), userMetadata);
+  }
+
+  private void append(int user, long revision, UserEvent event) {
+    commit += 100 + random.nextInt(400); // ~ the size of a record in the log
+    events.add(recorded(User.stream(email(user)), revision, commit, event, new byte[0]));
+  }
+}
@@ -0,0 +1,60 @@
+package victor.training.sourcing.store;
+
+import com.eventstore.dbclient.*;
+import org.openjdk.jmh.annotations.*;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.SyntheticUserHistory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Append and read latency of the embedded backend, without fsync (load-test setting)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmbeddedEventStoreBenchmark {
+  private static final int USERS = 1000;
+  private EmbeddedEventStore store;
+  private EventData event;
+  private int next;
+
+  @Setup
+  public void setup() throws IOException, ExecutionException, InterruptedException {
+    store = new EmbeddedEventStore(Files.createTempDirectory("jmh-events"), 64 * 1024 * 1024, false);
+    event = GsonUtil.toEventData(SyntheticUserHistory.created(1));
+    for (int user = 0; user < USERS; user++) {
+      for (int i = 0; i < 10; i++) {
+        store.appendToStream(stream(user), event).get();
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    store.close();
+  }
+
+  @Benchmark
+  public WriteResult append() throws ExecutionException, InterruptedException {
+    return store.appendToStream(stream(next++ % USERS), event).get();
+  }
+
+  @Benchmark
+  public ReadResult readStream() throws ExecutionException, InterruptedException {
+    return store.readStream(stream(next++ % USERS), ReadStreamOptions.get().fromStart().maxCount(10)).get();
+  }
+
+  @Benchmark
+  public ReadResult readAllBackwards() throws ExecutionException, InterruptedException {
+    return store.readAll(ReadAllOptions.get().fromEnd().backwards().maxCount(1)).get();
+  }
+
+  private static String stream(int user) {
+    return "user-" + SyntheticUserHistory.email(user);
+  }
+}
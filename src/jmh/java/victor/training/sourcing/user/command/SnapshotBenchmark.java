@@ -0,0 +1,51 @@
+package victor.training.sourcing.user.command;
+
+import com.eventstore.dbclient.EventData;
+import com.eventstore.dbclient.RecordedEvent;
+import org.openjdk.jmh.annotations.*;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.SyntheticUserHistory;
+import victor.training.sourcing.user.command.SnapshotApi.SnapshotMetadata;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// The User <-> snapshot event payload, as done by UserSnapshots.save / latest
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+  @Param({"JSON", "BINARY"})
+  public GsonUtil.Encoding encoding;
+
+  private User user;
+  private RecordedEvent snapshotEvent;
+
+  @Setup
+  public void setup() {
+    GsonUtil.writeAs(encoding);
+    user = new User();
+    for (UserEvent event : SyntheticUserHistory.lifetime(1, 500, new Random(42))) {
+      user.apply(event);
+    }
+    byte[] metadata = GsonUtil.gson.toJson(new SnapshotMetadata(499)).getBytes(UTF_8);
+    snapshotEvent = SyntheticUserHistory.recorded(UserSnapshots.stream(user.email()), 0, 1_000_000, user, metadata);
+  }
+
+  @Benchmark
+  public EventData serialize() {
+    return GsonUtil.toEventData(user);
+  }
+
+  @Benchmark
+  public User deserialize() {
+    return GsonUtil.parseEventData(snapshotEvent, User.class);
+  }
+}
@@ -0,0 +1,53 @@
+package victor.training.sourcing.user.domain;
+
+import com.eventstore.dbclient.RecordedEvent;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.SyntheticUserHistory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Rebuilding a User from its stream: apply only, and decode + apply as done on a cache miss
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserReplayBenchmark {
+  @Param({"10", "1000", "100000"})
+  public int streamLength;
+
+  @Param({"JSON", "BINARY"})
+  public GsonUtil.Encoding encoding;
+
+  private List<RecordedEvent> recorded;
+  private List<UserEvent> decoded;
+
+  @Setup
+  public void setup() {
+    GsonUtil.writeAs(encoding);
+    recorded = SyntheticUserHistory.oneStream(1, streamLength);
+    decoded = recorded.stream().map(e -> GsonUtil.<UserEvent>fromEventDataSealed(e, UserEvent.class)).toList();
+  }
+
+  @Benchmark
+  public void apply(Blackhole blackhole) {
+    User user = new User();
+    for (UserEvent event : decoded) {
+      user.apply(event);
+    }
+    blackhole.consume(user);
+  }
+
+  @Benchmark
+  public void decodeAndApply(Blackhole blackhole) {
+    User user = new User();
+    for (RecordedEvent event : recorded) {
+      user.apply(GsonUtil.fromEventDataSealed(event, UserEvent.class));
+    }
+    blackhole.consume(user);
+  }
+}
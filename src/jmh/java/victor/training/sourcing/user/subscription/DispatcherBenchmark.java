@@ -0,0 +1,76 @@
+package victor.training.sourcing.user.subscription;
+
+import com.eventstore.dbclient.ResolvedEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import victor.training.sourcing.SyntheticUserHistory;
+import victor.training.sourcing.store.ClientAccess;
+import victor.training.sourcing.user.projection.LastLoginTimeProjection;
+import victor.training.sourcing.user.projection.SearchUserProjection;
+import victor.training.sourcing.user.projection.UsersThatCanLoginProjection;
+import victor.training.sourcing.user.projection.UserIds;
+import victor.training.sourcing.user.projection.UsersThatCanLoginTimeMachine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Events/sec through each projection behind the dispatcher (reactors have their own subscriptions, see ReactorGroups),
+// fed a mixed $all (logins, updates, (de)activations..) in batches, each waited for until applied by all lanes
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatcherBenchmark {
+  private static final int USERS = 10_000;
+  private static final int EVENTS = 200_000;
+  private static final int BATCH = 10_000;
+
+  @Param({"last-login-time", "users-that-can-login", "search-users", "all"})
+  public String subscriber;
+
+  @Param({"1", "4"})
+  public int workers;
+
+  private UserEventDispatcher dispatcher;
+  private ResolvedEvent[] events;
+  private int next;
+
+  @Setup
+  public void setup() throws IOException {
+    var checkpoints = new ProjectionCheckpoints(Files.createTempDirectory("jmh-checkpoints"), TimeUnit.DAYS.toSeconds(1));
+    dispatcher = new UserEventDispatcher(null, checkpoints, new SimpleMeterRegistry(), 5, workers, 1024, false, 0, 0); // not subscribed: fed directly
+    var userIds = new UserIds();
+    boolean all = subscriber.equals("all");
+    if (all || subscriber.equals("last-login-time")) {
+      new LastLoginTimeProjection(dispatcher, userIds);
+    }
+    if (all || subscriber.equals("users-that-can-login")) {
+      new UsersThatCanLoginProjection(dispatcher, new UsersThatCanLoginTimeMachine(null, userIds, 1000, 256, 1, 1), userIds);
+    }
+    if (all || subscriber.equals("search-users")) {
+      new SearchUserProjection(dispatcher);
+    }
+    List<ResolvedEvent> history = SyntheticUserHistory.allStreams(USERS, EVENTS).stream().map(ClientAccess::resolvedEvent).toList();
+    events = history.toArray(ResolvedEvent[]::new);
+    dispatcher.startLanes();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void onEvent() throws InterruptedException {
+    for (int i = 0; i < BATCH; i++) {
+      dispatcher.onEvent(null, events[next]);
+      next = next + 1 == events.length ? 0 : next + 1; // the log repeats: the same events applied again
+    }
+    dispatcher.drain();
+  }
+
+  @TearDown
+  public void tearDown() {
+    dispatcher.stop();
+  }
+}
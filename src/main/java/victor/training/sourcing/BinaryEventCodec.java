@@ -0,0 +1,318 @@
+package victor.training.sourcing;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Compact alternative to the JSON of an event: no field names, numbers & dates as varints.
+//   [format version] [field]*    field = [varint tag = ordinal << 3 | wire type] [value]
+//   wire type VARINT: Boolean (0/1), Integer/Long (zigzag), LocalDate (zigzag epoch day)
+//   wire type BYTES:  [varint length] + String as UTF-8 | LocalDateTime as [zigzag epoch second][nanos]
+// A List<String> is its field repeated, null fields are not written at all.
+// The schema of a class = the @Ordinal of its fields, resolved once at startup; a field without one fails the startup.
+// Reading old or newer payloads: unknown ordinals are skipped, missing ones keep the default of the class.
+public class BinaryEventCodec {
+  public static final String CONTENT_TYPE = "application/octet-stream";
+  private static final int FORMAT_VERSION = 1;
+  private static final int VARINT = 0, BYTES = 2;
+
+  private enum Kind {
+    STRING(BYTES), BOOLEAN(VARINT), INTEGER(VARINT), LONG(VARINT), LOCAL_DATE(VARINT), LOCAL_DATE_TIME(BYTES), STRING_LIST(BYTES);
+    private final int wireType;
+
+    Kind(int wireType) {
+      this.wireType = wireType;
+    }
+  }
+
+  // getter: (Object)Object, setter: (Object,Object)void; a final List is filled in place, so has no setter
+  private record FieldCodec(int ordinal, Kind kind, MethodHandle getter, MethodHandle setter) {}
+
+  private record Schema(MethodHandle constructor, FieldCodec[] fields, FieldCodec[] byOrdinal) {}
+
+  private final Map<String, Schema> schemas = new HashMap<>();
+
+  // a sealed type registers all its permitted subclasses
+  public BinaryEventCodec(Class<?>... types) {
+    for (Class<?> type : types) {
+      if (type.isSealed()) {
+        for (Class<?> subclass : type.getPermittedSubclasses()) {
+          register(subclass);
+        }
+      } else {
+        register(type);
+      }
+    }
+  }
+
+  private void register(Class<?> type) {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+      List<FieldCodec> fields = new ArrayList<>();
+      for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) continue;
+          fields.add(fieldCodec(MethodHandles.privateLookupIn(c, MethodHandles.lookup()), field));
+        }
+      }
+      fields.sort(Comparator.comparingInt(FieldCodec::ordinal));
+      int maxOrdinal = fields.isEmpty() ? 0 : fields.getLast().ordinal();
+      FieldCodec[] byOrdinal = new FieldCodec[maxOrdinal + 1];
+      for (FieldCodec field : fields) {
+        if (byOrdinal[field.ordinal()] != null) {
+          throw new IllegalStateException("Duplicate @Ordinal(" + field.ordinal() + ") in " + type.getName());
+        }
+        byOrdinal[field.ordinal()] = field;
+      }
+      MethodHandle constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+          .asType(MethodType.methodType(Object.class));
+      schemas.put(type.getSimpleName(), new Schema(constructor, fields.toArray(FieldCodec[]::new), byOrdinal));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Cannot encode " + type.getName() + " as binary", e);
+    }
+  }
+
+  private static FieldCodec fieldCodec(MethodHandles.Lookup lookup, Field field) throws IllegalAccessException {
+    Ordinal ordinal = field.getAnnotation(Ordinal.class);
+    if (ordinal == null || ordinal.value() < 1) {
+      throw new IllegalStateException("Field " + field.getDeclaringClass().getName() + "." + field.getName() + " needs an @Ordinal >= 1");
+    }
+    Kind kind = kindOf(field);
+    MethodHandle getter = lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+    MethodHandle setter = Modifier.isFinal(field.getModifiers()) ? null
+        : lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class));
+    if (setter == null && kind != Kind.STRING_LIST) {
+      throw new IllegalStateException("Field " + field.getDeclaringClass().getName() + "." + field.getName() + " is final");
+    }
+    return new FieldCodec(ordinal.value(), kind, getter, setter);
+  }
+
+  private static Kind kindOf(Field field) {
+    Class<?> type = field.getType();
+    if (type == String.class) return Kind.STRING;
+    if (type == Boolean.class) return Kind.BOOLEAN;
+    if (type == Integer.class) return Kind.INTEGER;
+    if (type == Long.class) return Kind.LONG;
+    if (type == LocalDate.class) return Kind.LOCAL_DATE;
+    if (type == LocalDateTime.class) return Kind.LOCAL_DATE_TIME;
+    if (type == List.class && field.getGenericType().getTypeName().equals("java.util.List<java.lang.String>")) return Kind.STRING_LIST;
+    throw new IllegalStateException("No binary encoding for " + field.getGenericType() + " " + field.getDeclaringClass().getName() + "." + field.getName());
+  }
+
+  public boolean knows(String eventType) {
+    return schemas.containsKey(eventType);
+  }
+
+  public byte[] encode(Object event) {
+    Schema schema = schemas.get(event.getClass().getSimpleName());
+    if (schema == null) {
+      throw new IllegalArgumentException("Unknown Type: " + event.getClass());
+    }
+    Output out = new Output();
+    out.varint(FORMAT_VERSION);
+    try {
+      for (FieldCodec field : schema.fields()) {
+        Object value = field.getter().invokeExact(event);
+        if (value != null) {
+          write(out, field, value);
+        }
+      }
+    } catch (Throwable e) {
+      throw new IllegalStateException("Cannot encode " + event.getClass().getSimpleName(), e);
+    }
+    return out.toByteArray();
+  }
+
+  private static void write(Output out, FieldCodec field, Object value) {
+    int tag = field.ordinal() << 3 | field.kind().wireType;
+    switch (field.kind()) {
+      case STRING -> {
+        out.varint(tag);
+        out.string((String) value);
+      }
+      case BOOLEAN -> {
+        out.varint(tag);
+        out.varint((Boolean) value ? 1 : 0);
+      }
+      case INTEGER -> {
+        out.varint(tag);
+        out.varint(zigzag((Integer) value));
+      }
+      case LONG -> {
+        out.varint(tag);
+        out.varint(zigzag((Long) value));
+      }
+      case LOCAL_DATE -> {
+        out.varint(tag);
+        out.varint(zigzag(((LocalDate) value).toEpochDay()));
+      }
+      case LOCAL_DATE_TIME -> {
+        LocalDateTime dateTime = (LocalDateTime) value;
+        long seconds = zigzag(dateTime.toEpochSecond(ZoneOffset.UTC));
+        int nanos = dateTime.getNano();
+        out.varint(tag);
+        out.varint(Output.varintSize(seconds) + Output.varintSize(nanos));
+        out.varint(seconds);
+        out.varint(nanos);
+      }
+      case STRING_LIST -> {
+        for (Object element : (List<?>) value) {
+          out.varint(tag);
+          out.string((String) element);
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T decode(String eventType, byte[] bytes) {
+    Schema schema = schemas.get(eventType);
+    if (schema == null) {
+      throw new IllegalArgumentException("Unknown Type: " + eventType);
+    }
+    Input in = new Input(bytes);
+    int version = (int) in.varint();
+    if (version != FORMAT_VERSION) {
+      throw new IllegalArgumentException("Unsupported binary format version " + version + " of " + eventType);
+    }
+    try {
+      Object event = schema.constructor().invokeExact();
+      while (in.hasMore()) {
+        int tag = (int) in.varint();
+        int ordinal = tag >>> 3;
+        FieldCodec field = ordinal < schema.byOrdinal().length ? schema.byOrdinal()[ordinal] : null;
+        if (field == null || field.kind().wireType != (tag & 7)) {
+          in.skip(tag & 7); // written by a newer version, or a field since removed
+        } else {
+          read(in, field, event);
+        }
+      }
+      return (T) event;
+    } catch (IllegalArgumentException e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalArgumentException("Corrupt binary " + eventType, e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void read(Input in, FieldCodec field, Object event) throws Throwable {
+    switch (field.kind()) {
+      case STRING -> field.setter().invokeExact(event, (Object) in.string());
+      case BOOLEAN -> field.setter().invokeExact(event, (Object) (in.varint() != 0));
+      case INTEGER -> field.setter().invokeExact(event, (Object) (int) unzigzag(in.varint()));
+      case LONG -> field.setter().invokeExact(event, (Object) unzigzag(in.varint()));
+      case LOCAL_DATE -> field.setter().invokeExact(event, (Object) LocalDate.ofEpochDay(unzigzag(in.varint())));
+      case LOCAL_DATE_TIME -> {
+        in.varint(); // length
+        long seconds = unzigzag(in.varint());
+        int nanos = (int) in.varint();
+        field.setter().invokeExact(event, (Object) LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC));
+      }
+      case STRING_LIST -> {
+        Object current = field.getter().invokeExact(event);
+        var list = (List<String>) current;
+        if (list == null) {
+          list = new ArrayList<>();
+          field.setter().invokeExact(event, (Object) list);
+        }
+        list.add(in.string());
+      }
+    }
+  }
+
+  private static long zigzag(long value) {
+    return value << 1 ^ value >> 63;
+  }
+
+  private static long unzigzag(long value) {
+    return value >>> 1 ^ -(value & 1);
+  }
+
+  private static final class Output {
+    private byte[] bytes = new byte[64];
+    private int size;
+
+    void varint(long value) {
+      ensure(10);
+      while ((value & ~0x7FL) != 0) {
+        bytes[size++] = (byte) (value & 0x7F | 0x80);
+        value >>>= 7;
+      }
+      bytes[size++] = (byte) value;
+    }
+
+    static int varintSize(long value) {
+      return value == 0 ? 1 : (64 - Long.numberOfLeadingZeros(value) + 6) / 7;
+    }
+
+    void string(String value) {
+      byte[] utf8 = value.getBytes(UTF_8);
+      varint(utf8.length);
+      ensure(utf8.length);
+      System.arraycopy(utf8, 0, bytes, size, utf8.length);
+      size += utf8.length;
+    }
+
+    private void ensure(int more) {
+      if (size + more > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+      }
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+  }
+
+  private static final class Input {
+    private final byte[] bytes;
+    private int pos;
+
+    Input(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    boolean hasMore() {
+      return pos < bytes.length;
+    }
+
+    long varint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = bytes[pos++];
+        value |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint");
+    }
+
+    String string() {
+      int length = (int) varint();
+      String value = new String(bytes, pos, length, UTF_8);
+      pos += length;
+      return value;
+    }
+
+    void skip(int wireType) {
+      switch (wireType) {
+        case VARINT -> varint();
+        case BYTES -> {
+          int length = (int) varint();
+          pos += length;
+        }
+        default -> throw new IllegalArgumentException("Unknown wire type " + wireType);
+      }
+    }
+  }
+}
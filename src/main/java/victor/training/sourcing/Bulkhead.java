@@ -0,0 +1,45 @@
+package victor.training.sourcing;
+
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+
+// Caps the calls in flight to one downstream.
+// Requests run on virtual threads => waiting on a call is cheap, but nothing else stops
+// thousands of concurrent requests from all hitting the downstream at once.
+// A caller waits at most maxWait for a free slot, then is refused with 503 instead of queueing forever.
+public class Bulkhead {
+  private final String name;
+  private final int maxInFlight;
+  private final Semaphore permits;
+  private final long maxWaitMillis;
+
+  public Bulkhead(String name, int maxInFlight, long maxWaitMillis) {
+    this.name = name;
+    this.maxInFlight = maxInFlight;
+    this.permits = new Semaphore(maxInFlight);
+    this.maxWaitMillis = maxWaitMillis;
+  }
+
+  // starts the call once a slot is free and awaits its result; failures surface as ExecutionException
+  public <T> T await(Supplier<CompletableFuture<T>> call) throws InterruptedException, ExecutionException {
+    if (!permits.tryAcquire(maxWaitMillis, MILLISECONDS)) {
+      throw new ResponseStatusException(SERVICE_UNAVAILABLE, name + " overloaded, retry later");
+    }
+    try {
+      return call.get().get();
+    } finally {
+      permits.release();
+    }
+  }
+
+  public int inFlight() {
+    return maxInFlight - permits.availablePermits();
+  }
+}
@@ -0,0 +1,40 @@
+package victor.training.sourcing;
+
+import com.eventstore.dbclient.StreamNotFoundException;
+import com.eventstore.dbclient.WrongExpectedVersionException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ProblemDetail;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import java.util.concurrent.ExecutionException;
+
+import static org.springframework.http.HttpStatus.*;
+
+// The event store client fails futures => its errors reach here wrapped in an ExecutionException
+@Slf4j
+@RestControllerAdvice
+public class ErrorMapping {
+  @ExceptionHandler(ExecutionException.class)
+  public ProblemDetail onExecutionException(ExecutionException e) {
+    return switch (e.getCause()) {
+      case WrongExpectedVersionException c -> problem(CONFLICT, "Concurrent change, retry: " + c.getMessage());
+      case StreamNotFoundException c -> problem(NOT_FOUND, "Not found: " + c.getStreamName());
+      case IllegalArgumentException c -> problem(BAD_REQUEST, c.getMessage());
+      case null, default -> {
+        log.error("Event store call failed", e.getCause());
+        yield problem(BAD_GATEWAY, "Event store call failed");
+      }
+    };
+  }
+
+  @ExceptionHandler(IllegalArgumentException.class)
+  public ProblemDetail onIllegalArgument(IllegalArgumentException e) {
+    return problem(BAD_REQUEST, e.getMessage());
+  }
+
+  private static ProblemDetail problem(HttpStatus status, String detail) {
+    return ProblemDetail.forStatusAndDetail(status, detail);
+  }
+}
@@ -0,0 +1,139 @@
+package victor.training.sourcing;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Resolved once at startup: event type name -> the Gson adapter of its class.
+// Per event, no class lookup nor a String copy of the payload: the adapter reads straight from the UTF-8 bytes.
+// Same adapters & writer settings as gson.toJson/fromJson => byte-for-byte the JSON already stored.
+public class EventCodecRegistry {
+  private final Gson gson;
+  private final Map<String, Codec<?>> codecs = new HashMap<>();
+
+  public record Codec<T>(Class<T> type, TypeAdapter<T> adapter) {}
+
+  // a sealed type registers all its permitted subclasses
+  public EventCodecRegistry(Gson gson, Class<?>... types) {
+    this.gson = gson;
+    for (Class<?> type : types) {
+      if (type.isSealed()) {
+        for (Class<?> subclass : type.getPermittedSubclasses()) {
+          register(subclass);
+        }
+      } else {
+        register(type);
+      }
+    }
+  }
+
+  private <T> void register(Class<T> type) {
+    codecs.put(type.getSimpleName(), new Codec<>(type, gson.getAdapter(type)));
+  }
+
+  public boolean knows(String eventType) {
+    return codecs.containsKey(eventType);
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T decode(String eventType, byte[] json) {
+    Codec<?> codec = codecs.get(eventType);
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown Type: " + eventType);
+    }
+    try {
+      JsonReader reader = gson.newJsonReader(new Utf8Reader(json));
+      reader.setLenient(true); // as gson.fromJson does
+      return (T) codec.adapter().read(reader);
+    } catch (IOException e) { // malformed JSON or UTF-8, or truncated
+      throw new JsonSyntaxException("Corrupt JSON " + eventType, e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> byte[] encode(T event) {
+    Codec<T> codec = (Codec<T>) codecs.get(event.getClass().getSimpleName());
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown Type: " + event.getClass());
+    }
+    var bytes = new ByteArrayOutputStream(256);
+    try (JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(bytes, UTF_8))) {
+      codec.adapter().write(writer, event);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  // decodes UTF-8 on the fly, without the 8K buffers of an InputStreamReader
+  static class Utf8Reader extends Reader {
+    private final byte[] bytes;
+    private int pos;
+    private char pendingLowSurrogate;
+
+    Utf8Reader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+      if (length == 0) return 0;
+      int n = 0;
+      if (pendingLowSurrogate != 0) {
+        buffer[offset + n++] = pendingLowSurrogate;
+        pendingLowSurrogate = 0;
+      }
+      while (n < length && pos < bytes.length) {
+        int b = bytes[pos];
+        if (b >= 0) { // ASCII: the common case in our payloads
+          buffer[offset + n++] = (char) b;
+          pos++;
+          continue;
+        }
+        int continuations = (b & 0xE0) == 0xC0 ? 1 : (b & 0xF0) == 0xE0 ? 2 : (b & 0xF8) == 0xF0 ? 3 : -1;
+        if (continuations < 0 || pos + continuations >= bytes.length) {
+          throw new IOException("Malformed UTF-8 at byte " + pos);
+        }
+        int codePoint = b & 0x3F >> continuations;
+        for (int i = 1; i <= continuations; i++) {
+          int next = bytes[pos + i];
+          if ((next & 0xC0) != 0x80) {
+            throw new IOException("Malformed UTF-8 at byte " + (pos + i));
+          }
+          codePoint = codePoint << 6 | next & 0x3F;
+        }
+        if (codePoint > Character.MAX_CODE_POINT) {
+          throw new IOException("Malformed UTF-8 at byte " + pos);
+        }
+        pos += 1 + continuations;
+        if (Character.isBmpCodePoint(codePoint)) {
+          buffer[offset + n++] = (char) codePoint;
+        } else {
+          buffer[offset + n++] = Character.highSurrogate(codePoint);
+          if (n < length) {
+            buffer[offset + n++] = Character.lowSurrogate(codePoint);
+          } else {
+            pendingLowSurrogate = Character.lowSurrogate(codePoint);
+          }
+        }
+      }
+      return n == 0 ? -1 : n;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
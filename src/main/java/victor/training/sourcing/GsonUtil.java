@@ -1,63 +1,91 @@
 package victor.training.sourcing;
 
 import com.eventstore.dbclient.EventData;
+import com.eventstore.dbclient.EventDataBuilder;
 import com.eventstore.dbclient.RecordedEvent;
-import com.google.gson.*;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import victor.training.sourcing.user.domain.User;
 import victor.training.sourcing.user.domain.UserEvent;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.util.Arrays;
-import java.util.Objects;
 import java.util.Optional;
-import java.util.function.Function;
-
-import static java.util.stream.Collectors.toMap;
 
 public class GsonUtil {
   public static final Gson gson = new GsonBuilder()
-      .registerTypeAdapter(LocalDateTime.class, new JsonSerializer<LocalDateTime>() {
-        public JsonElement serialize(LocalDateTime src, Type typeOfSrc, JsonSerializationContext context) {
-          return new JsonPrimitive(src.toString());
+      .registerTypeAdapter(LocalDateTime.class, new TypeAdapter<LocalDateTime>() {
+        public void write(JsonWriter out, LocalDateTime value) throws IOException {
+          out.value(value.toString());
+        }
+        public LocalDateTime read(JsonReader in) throws IOException {
+          return LocalDateTime.parse(in.nextString());
+        }
+      }.nullSafe())
+      .registerTypeAdapter(LocalDate.class, new TypeAdapter<LocalDate>() {
+        public void write(JsonWriter out, LocalDate value) throws IOException {
+          out.value(value.toString());
         }
-      })
-      .registerTypeAdapter(
-          LocalDate.class, new JsonSerializer<LocalDate>() {
-        public JsonElement serialize(LocalDate src, Type typeOfSrc, JsonSerializationContext context) {
-          return new JsonPrimitive(src.toString());
+        public LocalDate read(JsonReader in) throws IOException {
+          return LocalDate.parse(in.nextString());
         }
-      })
+      }.nullSafe())
       .create();
 
+  // all the types we ever store, resolved once
+  public static final EventCodecRegistry codecs = new EventCodecRegistry(gson, UserEvent.class, User.class);
+  public static final BinaryEventCodec binaryCodecs = new BinaryEventCodec(UserEvent.class, User.class);
+
+  public enum Encoding {JSON, BINARY}
+
+  // of the events written from now on; both are always readable, told apart by their content type
+  private static volatile Encoding encoding = Encoding.JSON;
+
+  public static void writeAs(Encoding newEncoding) {
+    encoding = newEncoding;
+  }
+
   public static EventData toEventData(Object event) {
-    var eventType = event.getClass().getSimpleName();
-    var jsonString = gson.toJson(event);
-    return EventData.builderAsJson(eventType, jsonString.getBytes())
+    return eventDataBuilder(event)
 //        .metadataAsBytes(new EventMetadata(SecurityContextHolder.....))
     .build();
   }
 
-  @SuppressWarnings("unchecked")
+  public static EventDataBuilder eventDataBuilder(Object event) {
+    var eventType = event.getClass().getSimpleName();
+    return encoding == Encoding.BINARY
+        ? EventData.builderAsBinary(eventType, binaryCodecs.encode(event))
+        : EventData.builderAsJson(eventType, codecs.encode(event));
+  }
+
+  // byte for byte, keeping its content type
+  public static EventDataBuilder copyOf(RecordedEvent event) {
+    return BinaryEventCodec.CONTENT_TYPE.equals(event.getContentType())
+        ? EventData.builderAsBinary(event.getEventType(), event.getEventData())
+        : EventData.builderAsJson(event.getEventType(), event.getEventData());
+  }
+
   public static <T> T fromEventDataSealed(RecordedEvent eventData, Class<UserEvent> eventSealedSuperclass) {
-    var jsonString = new String(eventData.getEventData());
-    var eventClasses = Arrays.stream(eventSealedSuperclass.getPermittedSubclasses())
-        .collect(toMap(Class::getSimpleName, Function.identity()));
-    Class<?> eventClass = Objects.requireNonNull(eventClasses.get(eventData.getEventType()),
-        "Unknown Type: " + eventData.getEventType());
-    return (T) gson.fromJson(jsonString, eventClass);
-  }
-  @SuppressWarnings("unchecked")
+    return decode(eventData.getEventType(), eventData);
+  }
   public static <T> T parseEventData(RecordedEvent eventData, Class<T> eventClass) {
-    var jsonString = new String(eventData.getEventData());
-    return (T) gson.fromJson(jsonString, eventClass);
+    return decode(eventClass.getSimpleName(), eventData);
   }
   public static <T> Optional<T> tryParseEvent(RecordedEvent eventData, Class<T> eventClass) {
     if (eventData.getEventType().equals(eventClass.getSimpleName())) {
-      var jsonString = new String(eventData.getEventData());
-      return Optional.ofNullable(gson.fromJson(jsonString, eventClass));
+      return Optional.ofNullable(decode(eventData.getEventType(), eventData));
     } else {
       return Optional.empty();
     }
   }
+
+  private static <T> T decode(String eventType, RecordedEvent eventData) {
+    return BinaryEventCodec.CONTENT_TYPE.equals(eventData.getContentType())
+        ? binaryCodecs.decode(eventType, eventData.getEventData())
+        : codecs.decode(eventType, eventData.getEventData());
+  }
 }
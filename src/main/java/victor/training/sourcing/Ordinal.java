@@ -0,0 +1,15 @@
+package victor.training.sourcing;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// The id of a field in the binary encoding (see BinaryEventCodec), stored instead of its name.
+// Events are stored forever: never change nor reuse an ordinal. New field => next free ordinal;
+// a removed field leaves a gap.
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Ordinal {
+  int value();
+}
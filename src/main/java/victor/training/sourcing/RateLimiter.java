@@ -0,0 +1,28 @@
+package victor.training.sourcing;
+
+import java.util.concurrent.TimeUnit;
+
+// Caps background work (migrations, rebuilds) to N permits/second, to leave the event store to live traffic.
+// Spreads the permits evenly over time, no bursts; 0 = unlimited
+public class RateLimiter {
+  private final long nanosPerPermit;
+  private long next = System.nanoTime();
+
+  public RateLimiter(int permitsPerSecond) {
+    this.nanosPerPermit = permitsPerSecond <= 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+  }
+
+  public void acquire(int permits) throws InterruptedException {
+    if (nanosPerPermit == 0 || permits == 0) {
+      return;
+    }
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      next = Math.max(next, now);
+      wait = next - now;
+      next += permits * nanosPerPermit;
+    }
+    TimeUnit.NANOSECONDS.sleep(wait);
+  }
+}
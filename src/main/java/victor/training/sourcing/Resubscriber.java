@@ -0,0 +1,101 @@
+package victor.training.sourcing;
+
+import com.eventstore.dbclient.PersistentSubscription;
+import com.eventstore.dbclient.Subscription;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+// Brings a dropped subscription back, off the client's callback thread: retried with exponential backoff
+// (backoff-ms * 2^(attempt-1), at most max-backoff-ms) for as long as its owner runs.
+// A drop while resubscribing is not lost: once back, it resubscribes again. One drop = one new subscription.
+@Slf4j
+public class Resubscriber {
+  @FunctionalInterface
+  public interface Subscribe {
+    void subscribe() throws Exception;
+  }
+
+  private final String name;
+  private final long backoffMillis;
+  private final long maxBackoffMillis;
+  private final BooleanSupplier running;
+  private final Subscribe subscribe;
+  private final AtomicLong drops = new AtomicLong();
+  private final AtomicBoolean resubscribing = new AtomicBoolean();
+  private volatile long downSinceMillis;
+
+  public Resubscriber(String name, long backoffMillis, long maxBackoffMillis, BooleanSupplier running, Subscribe subscribe) {
+    this.name = name;
+    this.backoffMillis = backoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.running = running;
+    this.subscribe = subscribe;
+  }
+
+  // from SubscriptionListener#onCancelled
+  public void dropped(Subscription subscription, Throwable cause) {
+    if (subscription != null) { // null: the subscribe call itself failed, reported to its caller too
+      dropped(cause);
+    }
+  }
+
+  // from PersistentSubscriptionListener#onCancelled
+  public void dropped(PersistentSubscription subscription, Throwable cause) {
+    if (subscription != null) {
+      dropped(cause);
+    }
+  }
+
+  private void dropped(Throwable cause) {
+    if (!running.getAsBoolean()) {
+      return;
+    }
+    log.warn("Subscription {} dropped, resubscribing", name, cause);
+    drops.incrementAndGet();
+    if (resubscribing.compareAndSet(false, true)) {
+      downSinceMillis = System.currentTimeMillis();
+      Thread.ofVirtual().name("resubscribe-" + name).start(this::resubscribe);
+    }
+  }
+
+  private void resubscribe() {
+    try {
+      do {
+        long handled = drops.get();
+        for (int attempt = 1; ; attempt++) {
+          TimeUnit.MILLISECONDS.sleep(Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt - 1, 30)));
+          if (!running.getAsBoolean()) {
+            return;
+          }
+          try {
+            subscribe.subscribe();
+            log.info("Resubscribed {} after {} attempt(s)", name, attempt);
+            break;
+          } catch (Exception e) {
+            log.error("Could not resubscribe {} (attempt {})", name, attempt, e);
+          }
+        }
+        resubscribing.set(false);
+        if (drops.get() == handled) {
+          return;
+        }
+      } while (resubscribing.compareAndSet(false, true)); // dropped again meanwhile, and no other thread took it
+    } catch (InterruptedException stopped) {
+      resubscribing.set(false);
+    }
+  }
+
+  // dropped and not back yet: for health checks
+  public boolean isDown() {
+    return resubscribing.get();
+  }
+
+  // of the current outage, if down
+  public long downSinceMillis() {
+    return downSinceMillis;
+  }
+}
@@ -1,7 +1,5 @@
 package victor.training.sourcing;
 
-import com.eventstore.dbclient.EventStoreDBClient;
-import com.eventstore.dbclient.EventStoreDBConnectionString;
 import com.google.gson.Gson;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -15,8 +13,14 @@ public class SpringApp {
     run(SpringApp.class, args);
   }
 
+  public SpringApp(@Value("${event.encoding:json}") GsonUtil.Encoding encoding) {
+    GsonUtil.writeAs(encoding);
+  }
+
+  // all request-path calls to the event store go through here
   @Bean
-  public EventStoreDBClient eventStore(@Value("${event.store.db.url}") String url) {
-    return EventStoreDBClient.create(EventStoreDBConnectionString.parseOrThrow(url));
+  public Bulkhead eventStoreBulkhead(@Value("${event.store.db.max-in-flight:256}") int maxInFlight,
+                                     @Value("${event.store.db.max-wait-millis:2000}") long maxWaitMillis) {
+    return new Bulkhead("event store", maxInFlight, maxWaitMillis);
   }
 }
@@ -0,0 +1,33 @@
+package victor.training.sourcing.store;
+
+import com.eventstore.dbclient.RecordedEvent;
+import com.eventstore.dbclient.SubscriptionFilter;
+
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+// Which events of $all a subscription gets: those of the streams starting with a prefix, or those of some types.
+// Ours, not the client's SubscriptionFilter (opaque): EsdbEventStore hands it to the server as a SubscriptionFilter,
+// EmbeddedEventStore evaluates it locally.
+public record AllFilter(String streamNamePrefix, Pattern eventTypeRegex) {
+  public static AllFilter streamNamePrefix(String prefix) {
+    return new AllFilter(prefix, null);
+  }
+
+  // type names as letters & digits: the regex also runs on the server (.NET syntax)
+  public static AllFilter eventTypes(Collection<String> eventTypes) {
+    return new AllFilter(null, Pattern.compile("^(" + String.join("|", eventTypes) + ")$"));
+  }
+
+  public boolean test(RecordedEvent event) {
+    return streamNamePrefix != null
+        ? event.getStreamId().startsWith(streamNamePrefix)
+        : eventTypeRegex.matcher(event.getEventType()).find();
+  }
+
+  public SubscriptionFilter toSubscriptionFilter() {
+    return streamNamePrefix != null
+        ? SubscriptionFilter.newBuilder().addStreamNamePrefix(streamNamePrefix).build()
+        : SubscriptionFilter.newBuilder().withEventTypeRegularExpression(eventTypeRegex.pattern()).build();
+  }
+}
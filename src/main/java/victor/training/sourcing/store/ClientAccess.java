@@ -0,0 +1,190 @@
+package victor.training.sourcing.store;
+
+import com.eventstore.dbclient.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// ADAPTER to the package-private API of the EventStoreDB client, for the embedded event store, which speaks
+// the client's types (RecordedEvent, ReadResult, options..) whose constructors and getters are package-private.
+// Reached through method handles resolved once, when this class loads: a client upgrade changing them fails
+// at startup, and ClientAccessTest covers every method so it fails the build first. Written against db-client-java 5.4.x.
+public final class ClientAccess {
+  private static final MethodHandle RECORDED_EVENT = constructor(RecordedEvent.class,
+      String.class, long.class, UUID.class, Position.class, Map.class, byte[].class, byte[].class);
+  private static final MethodHandle READ_RESULT = constructor(ReadResult.class, List.class, long.class, long.class, Position.class);
+  private static final MethodHandle WRITE_RESULT = constructor(WriteResult.class, ExpectedRevision.class, Position.class);
+  private static final MethodHandle SUBSCRIPTION = constructor(Subscription.class,
+      org.reactivestreams.Subscription.class, String.class, Checkpointer.class);
+  private static final MethodHandle WRONG_EXPECTED_VERSION = constructor(WrongExpectedVersionException.class,
+      String.class, ExpectedRevision.class, ExpectedRevision.class);
+  private static final MethodHandle STREAM_NOT_FOUND = constructor(StreamNotFoundException.class, String.class);
+  private static final MethodHandle EXPECTED_REVISION = getter(AppendToStreamOptions.class, "getExpectedRevision");
+  private static final MethodHandle READ_STREAM_DIRECTION = getter(ReadStreamOptions.class, "getDirection");
+  private static final MethodHandle READ_STREAM_MAX_COUNT = getter(ReadStreamOptions.class, "getMaxCount");
+  private static final MethodHandle READ_STREAM_START = getter(ReadStreamOptions.class, "getStartingRevision");
+  private static final MethodHandle READ_ALL_DIRECTION = getter(ReadAllOptions.class, "getDirection");
+  private static final MethodHandle READ_ALL_MAX_COUNT = getter(ReadAllOptions.class, "getMaxCount");
+  private static final MethodHandle READ_ALL_START = getter(ReadAllOptions.class, "getPosition");
+  private static final MethodHandle SUBSCRIBE_TO_ALL_START = getter(SubscribeToAllOptions.class, "getPosition");
+
+  private ClientAccess() {
+  }
+
+  public static RecordedEvent recordedEvent(String streamId, long revision, UUID eventId, long position,
+                                            String eventType, String contentType, long createdTicks,
+                                            byte[] data, byte[] userMetadata) {
+    Map<String, String> systemMetadata = Map.of(
+        "type", eventType,
+        "content-type", contentType,
+        "created", String.valueOf(createdTicks));
+    try {
+      return (RecordedEvent) RECORDED_EVENT.invoke(streamId, revision, eventId, new Position(position, position), systemMetadata, data, userMetadata);
+    } catch (Throwable e) {
+      throw unexpected(e);
+    }
+  }
+
+  // as sent by the server: 100ns ticks since epoch
+  public static long ticks(Instant instant) {
+    return instant.getEpochSecond() * 10_000_000 + instant.getNano() / 100;
+  }
+
+  public static ResolvedEvent resolvedEvent(RecordedEvent event) {
+    return new ResolvedEvent(event, null, event.getPosition());
+  }
+
+  public static ReadResult readResult(List<ResolvedEvent> events, long firstStreamPosition, long lastStreamPosition, Position lastAllStreamPosition) {
+    try {
+      return (ReadResult) READ_RESULT.invoke(events, firstStreamPosition, lastStreamPosition, lastAllStreamPosition);
+    } catch (Throwable e) {
+      throw unexpected(e);
+    }
+  }
+
+  public static WriteResult writeResult(long lastRevision, long position) {
+    try {
+      return (WriteResult) WRITE_RESULT.invoke(ExpectedRevision.expectedRevision(lastRevision), new Position(position, position));
+    } catch (Throwable e) {
+      throw unexpected(e);
+    }
+  }
+
+  public static Subscription subscription(String subscriptionId, Runnable onStop) {
+    org.reactivestreams.Subscription internal = new org.reactivestreams.Subscription() {
+      @Override
+      public void request(long n) {
+      }
+
+      @Override
+      public void cancel() {
+        onStop.run();
+      }
+    };
+    try {
+      return (Subscription) SUBSCRIPTION.invoke(internal, subscriptionId, (Checkpointer) null);
+    } catch (Throwable e) {
+      throw unexpected(e);
+    }
+  }
+
+  public static WrongExpectedVersionException wrongExpectedVersion(String stream, ExpectedRevision expected, long actualRevision) {
+    ExpectedRevision actual = actualRevision < 0 ? ExpectedRevision.noStream() : ExpectedRevision.expectedRevision(actualRevision);
+    try {
+      return (WrongExpectedVersionException) WRONG_EXPECTED_VERSION.invoke(stream, expected, actual);
+    } catch (Throwable e) {
+      throw unexpected(e);
+    }
+  }
+
+  public static StreamNotFoundException streamNotFound(String stream) {
+    try {
+      return (StreamNotFoundException) STREAM_NOT_FOUND.invoke(stream);
+    } catch (Throwable e) {
+      throw unexpected(e);
+    }
+  }
+
+  public static ExpectedRevision expectedRevision(AppendToStreamOptions options) {
+    ExpectedRevision expected = (ExpectedRevision) get(EXPECTED_REVISION, options);
+    return expected == null ? ExpectedRevision.any() : expected;
+  }
+
+  public static boolean forwards(ReadStreamOptions options) {
+    return get(READ_STREAM_DIRECTION, options) != Direction.Backwards;
+  }
+
+  public static boolean forwards(ReadAllOptions options) {
+    return get(READ_ALL_DIRECTION, options) != Direction.Backwards;
+  }
+
+  public static long maxCount(ReadStreamOptions options) {
+    return (long) get(READ_STREAM_MAX_COUNT, options);
+  }
+
+  public static long maxCount(ReadAllOptions options) {
+    return (long) get(READ_ALL_MAX_COUNT, options);
+  }
+
+  // null = from start
+  @SuppressWarnings("unchecked")
+  public static StreamPosition<Long> start(ReadStreamOptions options) {
+    return (StreamPosition<Long>) get(READ_STREAM_START, options);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static StreamPosition<Position> start(ReadAllOptions options) {
+    return (StreamPosition<Position>) get(READ_ALL_START, options);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static StreamPosition<Position> start(SubscribeToAllOptions options) {
+    return (StreamPosition<Position>) get(SUBSCRIBE_TO_ALL_START, options);
+  }
+
+  private static Object get(MethodHandle getter, Object options) {
+    try {
+      return getter.invoke(options);
+    } catch (Throwable e) {
+      throw unexpected(e);
+    }
+  }
+
+  private static MethodHandle constructor(Class<?> type, Class<?>... parameterTypes) {
+    try {
+      Constructor<?> constructor = type.getDeclaredConstructor(parameterTypes);
+      constructor.setAccessible(true);
+      return MethodHandles.lookup().unreflectConstructor(constructor);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      throw new IllegalStateException("Unsupported EventStoreDB client: no constructor " + type.getSimpleName() + List.of(parameterTypes), e);
+    }
+  }
+
+  // declared by the options class or one of its (package-private) bases
+  private static MethodHandle getter(Class<?> type, String name) {
+    for (Class<?> declaring = type; declaring != null; declaring = declaring.getSuperclass()) {
+      try {
+        Method method = declaring.getDeclaredMethod(name);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+      } catch (NoSuchMethodException notHere) {
+        // look in the base class
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        throw new IllegalStateException("Unsupported EventStoreDB client: cannot access " + type.getSimpleName() + "." + name, e);
+      }
+    }
+    throw new IllegalStateException("Unsupported EventStoreDB client: no " + type.getSimpleName() + "." + name);
+  }
+
+  private static RuntimeException unexpected(Throwable e) {
+    if (e instanceof RuntimeException runtime) return runtime;
+    if (e instanceof Error error) throw error;
+    return new IllegalStateException(e);
+  }
+}
@@ -0,0 +1,520 @@
+package victor.training.sourcing.store;
+
+import com.eventstore.dbclient.*;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import static victor.training.sourcing.store.ClientAccess.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+
+// Single-node event store in local files, for edge deployments and load tests without a server.
+// - one global log = fixed-size segment files, memory-mapped; a Position is the byte offset of a record in that log
+//   record: [length][stream][revision][type][content type][id][created][data][metadata][length]
+//   the trailing length allows reading $all backwards; a record never spans two segments
+// - per-stream index in memory (revision -> position), rebuilt by scanning the log when opened
+// - one writer at a time; readers never block: they only look below the published end of the log,
+//   which moves after all the events of an append are written => an append is seen all at once
+// Same semantics as EventStoreDB for what this app uses: expected revisions, $maxCount, read directions,
+// exclusive subscription start position and stream/event-type filters.
+// Like the standard projections of EventStoreDB, it keeps the read-only streams $et-{event type} and $ce-{category}
+// (category = the stream name before its first '-') of user events, up to date with each append. Reading them
+// returns the original events, as EventStoreDB does with resolveLinkTos; they cost 2 longs per event in memory.
+@Slf4j
+public class EmbeddedEventStore implements EventStore, AutoCloseable {
+  private static final int LENGTHS = 4 + 4; // leading + trailing
+  private static final String METADATA_STREAM_PREFIX = "$$";
+  private static final String METADATA_EVENT_TYPE = "$metadata";
+  private static final String SYSTEM_STREAM_PREFIX = "$";
+  private static final byte JSON = 1, BINARY = 0;
+
+  private final Path dir;
+  private final int segmentSize;
+  private final boolean fsync;
+  private final List<Segment> segments = new CopyOnWriteArrayList<>();
+  private final Map<String, StreamIndex> streams = new ConcurrentHashMap<>();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final Condition appended = writeLock.newCondition();
+  private final AtomicInteger subscriptionIds = new AtomicInteger();
+  private volatile long end; // records before this position are complete
+  private volatile boolean closed;
+
+  private static final class Segment {
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long base;
+    private volatile int dataEnd; // after its last record, once no longer written to
+
+    private Segment(FileChannel channel, MappedByteBuffer buffer, long base) {
+      this.channel = channel;
+      this.buffer = buffer;
+      this.base = base;
+    }
+  }
+
+  // append-only; readers see a consistent prefix by reading count before positions
+  private static final class StreamIndex {
+    private volatile long[] positions = new long[4];
+    private volatile int count;
+    private volatile long maxCount = Long.MAX_VALUE;
+
+    private void add(long position) {
+      if (count == positions.length) {
+        positions = Arrays.copyOf(positions, count * 2);
+      }
+      positions[count] = position;
+      count = count + 1;
+    }
+
+    private long firstVisibleRevision(int count) {
+      return Math.max(0, count - maxCount);
+    }
+  }
+
+  public EmbeddedEventStore(Path dir, int segmentSize, boolean fsync) throws IOException {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.fsync = fsync;
+    Files.createDirectories(dir);
+    open();
+  }
+
+  // ---------- appends ----------
+
+  @Override
+  public CompletableFuture<WriteResult> appendToStream(String stream, AppendToStreamOptions options, Iterator<EventData> events) {
+    List<EventData> batch = new ArrayList<>();
+    events.forEachRemaining(batch::add);
+    byte[] streamBytes = stream.getBytes(UTF_8);
+    if (streamBytes.length > Short.MAX_VALUE) { // its length is stored as a short
+      return CompletableFuture.failedFuture(new IllegalArgumentException("Stream name too long: " + streamBytes.length + " bytes"));
+    }
+    for (EventData event : batch) {
+      if (event.getEventType().getBytes(UTF_8).length > Short.MAX_VALUE) {
+        return CompletableFuture.failedFuture(new IllegalArgumentException("Event type too long in stream " + stream));
+      }
+      if (LENGTHS + length(streamBytes, event) >= segmentSize) {
+        return CompletableFuture.failedFuture(new IllegalArgumentException("Event too large for a segment: " + event.getEventType()));
+      }
+    }
+    writeLock.lock();
+    try {
+      checkOpen();
+      StreamIndex index = streams.get(stream);
+      long current = index == null ? -1 : index.count - 1;
+      ExpectedRevision expected = expectedRevision(options);
+      if (!matches(expected, current)) {
+        return CompletableFuture.failedFuture(wrongExpectedVersion(stream, expected, current));
+      }
+      if (batch.isEmpty()) {
+        return CompletableFuture.completedFuture(writeResult(current, current < 0 ? 0 : index.positions[(int) current]));
+      }
+      long[] positions = write(streamBytes, current + 1, batch);
+      index = streams.computeIfAbsent(stream, s -> new StreamIndex());
+      for (int i = 0; i < positions.length; i++) {
+        index.add(positions[i]);
+        indexByTypeAndCategory(stream, batch.get(i).getEventType(), positions[i]);
+      }
+      appended.signalAll();
+      return CompletableFuture.completedFuture(writeResult(current + batch.size(), positions[positions.length - 1]));
+    } catch (RuntimeException | IOException e) {
+      return CompletableFuture.failedFuture(e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private static boolean matches(ExpectedRevision expected, long current) {
+    long raw = expected.toRawLong();
+    if (raw == ExpectedRevision.any().toRawLong()) return true;
+    if (raw == ExpectedRevision.noStream().toRawLong()) return current == -1;
+    if (raw == ExpectedRevision.streamExists().toRawLong()) return current >= 0;
+    return raw == current;
+  }
+
+  // $maxCount is the only metadata honoured; stored as an event in "$${stream}", like EventStoreDB does
+  @Override
+  public CompletableFuture<WriteResult> setStreamMetadata(String stream, StreamMetadata metadata) {
+    JsonObject json = new JsonObject();
+    if (metadata.getMaxCount() != null) {
+      json.addProperty("$maxCount", metadata.getMaxCount());
+    }
+    var event = EventData.builderAsJson(METADATA_EVENT_TYPE, json.toString().getBytes(UTF_8)).build();
+    return appendToStream(METADATA_STREAM_PREFIX + stream, AppendToStreamOptions.get(), event)
+        .thenApply(writeResult -> {
+          streams.computeIfAbsent(stream, s -> new StreamIndex()).maxCount =
+              metadata.getMaxCount() == null ? Long.MAX_VALUE : metadata.getMaxCount();
+          return writeResult;
+        });
+  }
+
+  @Override
+  public CompletableFuture<StreamMetadata> getStreamMetadata(String stream) {
+    StreamMetadata metadata = new StreamMetadata();
+    StreamIndex index = streams.get(stream);
+    if (index != null && index.maxCount != Long.MAX_VALUE) {
+      metadata.setMaxCount(index.maxCount);
+    }
+    return CompletableFuture.completedFuture(metadata);
+  }
+
+  // under the write lock
+  private long[] write(byte[] streamBytes, long firstRevision, List<EventData> batch) throws IOException {
+    long ticks = ticks(Instant.now());
+    long[] positions = new long[batch.size()];
+    long position = end;
+    Segment segment = segmentOf(position);
+    int flushFrom = offsetOf(position);
+    for (int i = 0; i < batch.size(); i++) {
+      EventData event = batch.get(i);
+      byte[] type = event.getEventType().getBytes(UTF_8);
+      byte[] data = event.getEventData();
+      byte[] metadata = event.getUserMetadata() == null ? new byte[0] : event.getUserMetadata();
+      int length = length(streamBytes, event);
+      // roll over: the rest of this segment stays zeroed. A record never ends right at the segment end,
+      // so that the end of the log is always inside a mapped segment
+      if (offsetOf(position) + LENGTHS + length >= segmentSize) {
+        force(segment, flushFrom, offsetOf(position));
+        segment.dataEnd = offsetOf(position);
+        segment = newSegment();
+        position = segment.base;
+        flushFrom = 0;
+      }
+      MappedByteBuffer buffer = segment.buffer;
+      int offset = offsetOf(position) + 4;
+      buffer.putShort(offset, (short) streamBytes.length).put(offset + 2, streamBytes);
+      offset += 2 + streamBytes.length;
+      buffer.putLong(offset, firstRevision + i);
+      offset += 8;
+      buffer.putShort(offset, (short) type.length).put(offset + 2, type);
+      offset += 2 + type.length;
+      buffer.put(offset, "application/json".equals(event.getContentType()) ? JSON : BINARY);
+      offset += 1;
+      UUID id = event.getEventId() == null ? UUID.randomUUID() : event.getEventId();
+      buffer.putLong(offset, id.getMostSignificantBits()).putLong(offset + 8, id.getLeastSignificantBits());
+      offset += 16;
+      buffer.putLong(offset, ticks);
+      offset += 8;
+      buffer.putInt(offset, data.length).put(offset + 4, data);
+      offset += 4 + data.length;
+      buffer.putInt(offset, metadata.length).put(offset + 4, metadata);
+      offset += 4 + metadata.length;
+      buffer.putInt(offset, length);
+      buffer.putInt(offsetOf(position), length); // last: a torn write leaves a zero length => ignored when reopened
+      positions[i] = position;
+      position += LENGTHS + length;
+    }
+    force(segment, flushFrom, offsetOf(position));
+    end = position; // publishes the whole batch
+    return positions;
+  }
+
+  private static int length(byte[] streamBytes, EventData event) {
+    int metadata = event.getUserMetadata() == null ? 0 : event.getUserMetadata().length;
+    return 2 + streamBytes.length + 8 + 2 + event.getEventType().getBytes(UTF_8).length + 1 + 16 + 8
+           + 4 + event.getEventData().length + 4 + metadata;
+  }
+
+  private void force(Segment segment, int from, int to) {
+    if (fsync && to > from) {
+      segment.buffer.force(from, to - from);
+    }
+  }
+
+  // ---------- reads ----------
+
+  @Override
+  public CompletableFuture<ReadResult> readStream(String stream, ReadStreamOptions options) {
+    StreamIndex index = streams.get(stream);
+    int count = index == null ? 0 : index.count;
+    if (count == 0) {
+      return CompletableFuture.failedFuture(streamNotFound(stream));
+    }
+    long[] positions = index.positions;
+    long first = index.firstVisibleRevision(count);
+    long last = count - 1;
+    StreamPosition<Long> start = start(options);
+    long maxCount = maxCount(options);
+    List<ResolvedEvent> events = new ArrayList<>();
+    if (forwards(options)) {
+      long from = start == null || start.isStart() ? first : start.isEnd() ? last + 1 : Math.max(first, start.getPositionOrThrow());
+      for (long revision = from; revision <= last && events.size() < maxCount; revision++) {
+        events.add(resolvedEvent(read(positions[(int) revision])));
+      }
+    } else {
+      long from = start == null || start.isEnd() ? last : start.isStart() ? first : Math.min(last, start.getPositionOrThrow());
+      for (long revision = from; revision >= first && events.size() < maxCount; revision--) {
+        events.add(resolvedEvent(read(positions[(int) revision])));
+      }
+    }
+    long lastPosition = positions[(int) last];
+    return CompletableFuture.completedFuture(readResult(events, first, last, new Position(lastPosition, lastPosition)));
+  }
+
+  @Override
+  public CompletableFuture<ReadResult> readAll(ReadAllOptions options) {
+    long published = end;
+    StreamPosition<Position> start = start(options);
+    long maxCount = maxCount(options);
+    List<ResolvedEvent> events = new ArrayList<>();
+    if (forwards(options)) {
+      long position = start == null || start.isStart() ? 0 : start.isEnd() ? published : start.getPositionOrThrow().getCommitUnsigned();
+      while (position < published && events.size() < maxCount) {
+        events.add(resolvedEvent(read(position)));
+        position = next(position, published);
+      }
+    } else {
+      long position = start == null || start.isEnd() ? published : Math.min(published, start.isStart() ? 0 : start.getPositionOrThrow().getCommitUnsigned());
+      while ((position = previous(position)) >= 0 && events.size() < maxCount) {
+        events.add(resolvedEvent(read(position)));
+      }
+    }
+    Position last = events.isEmpty() ? null : events.get(events.size() - 1).getEvent().getPosition();
+    return CompletableFuture.completedFuture(readResult(events, 0, 0, last));
+  }
+
+  private RecordedEvent read(long position) {
+    MappedByteBuffer buffer = segmentOf(position).buffer;
+    int offset = offsetOf(position) + 4;
+    String stream = string(buffer, offset);
+    offset += 2 + buffer.getShort(offset);
+    long revision = buffer.getLong(offset);
+    offset += 8;
+    String type = string(buffer, offset);
+    offset += 2 + buffer.getShort(offset);
+    String contentType = buffer.get(offset) == JSON ? "application/json" : "application/octet-stream";
+    offset += 1;
+    UUID id = new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
+    offset += 16;
+    long ticks = buffer.getLong(offset);
+    offset += 8;
+    byte[] data = bytes(buffer, offset);
+    offset += 4 + data.length;
+    byte[] metadata = bytes(buffer, offset);
+    return recordedEvent(stream, revision, id, position, type, contentType, ticks, data, metadata);
+  }
+
+  private static String string(MappedByteBuffer buffer, int offset) {
+    byte[] bytes = new byte[buffer.getShort(offset)];
+    buffer.get(offset + 2, bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static byte[] bytes(MappedByteBuffer buffer, int offset) {
+    byte[] bytes = new byte[buffer.getInt(offset)];
+    buffer.get(offset + 4, bytes);
+    return bytes;
+  }
+
+  // the position after the record at position, never beyond published
+  private long next(long position, long published) {
+    long next = position + LENGTHS + segmentOf(position).buffer.getInt(offsetOf(position));
+    if (next >= published) {
+      return next;
+    }
+    int offset = offsetOf(next);
+    if (segmentSize - offset < 4 || segmentOf(next).buffer.getInt(offset) == 0) {
+      return next - offset + segmentSize; // rest of the segment unused => next one
+    }
+    return next;
+  }
+
+  // the position of the record before position, -1 if none
+  private long previous(long position) {
+    int segment = (int) (position / segmentSize);
+    int offset = offsetOf(position);
+    while (offset == 0) {
+      if (segment == 0) return -1;
+      offset = segments.get(--segment).dataEnd;
+    }
+    MappedByteBuffer buffer = segments.get(segment).buffer;
+    int length = buffer.getInt(offset - 4);
+    return (long) segment * segmentSize + offset - LENGTHS - length;
+  }
+
+  private Segment segmentOf(long position) {
+    return segments.get((int) (position / segmentSize));
+  }
+
+  private int offsetOf(long position) {
+    return (int) (position % segmentSize);
+  }
+
+  // ---------- subscriptions ----------
+
+  // each subscription is a virtual thread tailing the log: catches up, then waits for the next append
+  @Override
+  public CompletableFuture<Subscription> subscribeToAll(SubscriptionListener listener, SubscribeToAllOptions options, AllFilter filter) {
+    long published = end;
+    StreamPosition<Position> start = start(options);
+    long from = start == null || start.isStart() ? 0
+        : start.isEnd() ? published
+        : Math.min(published, next(start.getPositionOrThrow().getCommitUnsigned(), published)); // exclusive
+    var stopped = new AtomicBoolean();
+    Subscription subscription = subscription("embedded-" + subscriptionIds.incrementAndGet(), () -> {
+      writeLock.lock();
+      try {
+        stopped.set(true);
+        appended.signalAll();
+      } finally {
+        writeLock.unlock();
+      }
+    });
+    Thread.ofVirtual().name(subscription.getSubscriptionId()).start(() -> {
+      listener.onConfirmation(subscription);
+      long position = from;
+      boolean caughtUp = false;
+      try {
+        while (true) {
+          long until = end;
+          while (position < until && !stopped.get()) {
+            RecordedEvent event = read(position);
+            if (filter == null || filter.test(event)) {
+              listener.onEvent(subscription, resolvedEvent(event));
+            }
+            position = next(position, until);
+          }
+          if (!caughtUp) {
+            caughtUp = true;
+            listener.onCaughtUp(subscription);
+          }
+          writeLock.lock();
+          try {
+            while (end == until && !stopped.get() && !closed) {
+              appended.await();
+            }
+            if (stopped.get() || closed) return;
+          } finally {
+            writeLock.unlock();
+          }
+        }
+      } catch (Exception e) {
+        log.warn("Subscription {} failed at {}", subscription.getSubscriptionId(), position, e);
+        listener.onCancelled(subscription, e);
+      }
+    });
+    return CompletableFuture.completedFuture(subscription);
+  }
+
+  // ---------- files ----------
+
+  private void open() throws IOException {
+    List<Path> files;
+    try (Stream<Path> list = Files.list(dir)) {
+      files = list.filter(f -> f.getFileName().toString().matches("segment-\\d+\\.log")).sorted().toList();
+    }
+    for (int i = 0; i < files.size(); i++) {
+      segments.add(map(i));
+    }
+    if (segments.isEmpty()) {
+      segments.add(map(0));
+    }
+    for (Segment segment : segments) {
+      int offset = 0;
+      int length;
+      while ((length = validLength(segment, offset)) > 0) {
+        index(segment.base + offset);
+        offset += LENGTHS + length;
+      }
+      segment.dataEnd = offset;
+      end = segment.base + offset;
+      if (segment == segments.get(segments.size() - 1) && !zeroFrom(segment, offset)) {
+        log.warn("Discarding a torn write at the end of {}", file(segments.size() - 1));
+        segment.buffer.put(offset, new byte[segmentSize - offset]);
+      }
+    }
+    log.info("Opened event store in {}: {} streams, {} bytes", dir, streams.size(), end);
+  }
+
+  // after a crash mid-append, the bytes of the incomplete record would linger after the end of the log
+  private boolean zeroFrom(Segment segment, int offset) {
+    for (int i = offset; i < segmentSize; i++) {
+      if (segment.buffer.get(i) != 0) return false;
+    }
+    return true;
+  }
+
+  private int validLength(Segment segment, int offset) {
+    if (segmentSize - offset < LENGTHS) return 0;
+    int length = segment.buffer.getInt(offset);
+    if (length <= 0 || offset + LENGTHS + length >= segmentSize) return 0;
+    return segment.buffer.getInt(offset + 4 + length) == length ? length : 0;
+  }
+
+  private void index(long position) {
+    RecordedEvent event = read(position);
+    StreamIndex index = streams.computeIfAbsent(event.getStreamId(), s -> new StreamIndex());
+    if (event.getRevision() != index.count) {
+      throw new IllegalStateException("Corrupt log: " + event.getStreamId() + " revision " + event.getRevision() + " at " + position);
+    }
+    index.add(position);
+    indexByTypeAndCategory(event.getStreamId(), event.getEventType(), position);
+    if (event.getStreamId().startsWith(METADATA_STREAM_PREFIX) && METADATA_EVENT_TYPE.equals(event.getEventType())) {
+      JsonObject json = JsonParser.parseString(new String(event.getEventData(), UTF_8)).getAsJsonObject();
+      streams.computeIfAbsent(event.getStreamId().substring(METADATA_STREAM_PREFIX.length()), s -> new StreamIndex()).maxCount =
+          json.has("$maxCount") ? json.get("$maxCount").getAsLong() : Long.MAX_VALUE;
+    }
+  }
+
+  private void indexByTypeAndCategory(String stream, String eventType, long position) {
+    if (stream.startsWith(SYSTEM_STREAM_PREFIX)) {
+      return;
+    }
+    streams.computeIfAbsent("$et-" + eventType, s -> new StreamIndex()).add(position);
+    int dash = stream.indexOf('-');
+    if (dash > 0) {
+      streams.computeIfAbsent("$ce-" + stream.substring(0, dash), s -> new StreamIndex()).add(position);
+    }
+  }
+
+  private Segment newSegment() throws IOException {
+    Segment segment = map(segments.size());
+    segments.add(segment);
+    return segment;
+  }
+
+  private Segment map(int number) throws IOException {
+    FileChannel channel = FileChannel.open(file(number), CREATE, READ, WRITE);
+    return new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize), (long) number * segmentSize);
+  }
+
+  private Path file(int number) {
+    return dir.resolve("segment-%010d.log".formatted(number));
+  }
+
+  private void checkOpen() {
+    if (closed) throw new IllegalStateException("Event store closed");
+  }
+
+  @Override
+  public void close() throws IOException {
+    writeLock.lock();
+    try {
+      closed = true;
+      appended.signalAll();
+      for (Segment segment : segments) {
+        segment.buffer.force();
+        segment.channel.close();
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+}
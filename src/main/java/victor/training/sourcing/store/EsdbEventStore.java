@@ -0,0 +1,42 @@
+package victor.training.sourcing.store;
+
+import com.eventstore.dbclient.*;
+import lombok.RequiredArgsConstructor;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+
+@RequiredArgsConstructor
+public class EsdbEventStore implements EventStore {
+  private final EventStoreDBClient client;
+
+  @Override
+  public CompletableFuture<WriteResult> appendToStream(String stream, AppendToStreamOptions options, Iterator<EventData> events) {
+    return client.appendToStream(stream, options, events);
+  }
+
+  @Override
+  public CompletableFuture<WriteResult> setStreamMetadata(String stream, StreamMetadata metadata) {
+    return client.setStreamMetadata(stream, metadata);
+  }
+
+  @Override
+  public CompletableFuture<StreamMetadata> getStreamMetadata(String stream) {
+    return client.getStreamMetadata(stream);
+  }
+
+  @Override
+  public CompletableFuture<ReadResult> readStream(String stream, ReadStreamOptions options) {
+    return client.readStream(stream, options);
+  }
+
+  @Override
+  public CompletableFuture<ReadResult> readAll(ReadAllOptions options) {
+    return client.readAll(options);
+  }
+
+  @Override
+  public CompletableFuture<Subscription> subscribeToAll(SubscriptionListener listener, SubscribeToAllOptions options, AllFilter filter) {
+    return client.subscribeToAll(listener, filter == null ? options : options.filter(filter.toSubscriptionFilter()));
+  }
+}
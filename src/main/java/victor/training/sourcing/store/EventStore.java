@@ -0,0 +1,43 @@
+package victor.training.sourcing.store;
+
+import com.eventstore.dbclient.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// The event store operations this app relies on, in the EventStoreDB client's own types,
+// so the code reads the same whichever backend is configured (event.store.backend):
+// - esdb: a remote EventStoreDB server
+// - embedded: local files, see EmbeddedEventStore
+// Errors are reported like the client does: a failed future with WrongExpectedVersionException, StreamNotFoundException...
+public interface EventStore {
+  CompletableFuture<WriteResult> appendToStream(String stream, AppendToStreamOptions options, Iterator<EventData> events);
+
+  default CompletableFuture<WriteResult> appendToStream(String stream, AppendToStreamOptions options, EventData... events) {
+    return appendToStream(stream, options, Arrays.asList(events).iterator());
+  }
+
+  default CompletableFuture<WriteResult> appendToStream(String stream, EventData... events) {
+    return appendToStream(stream, AppendToStreamOptions.get(), events);
+  }
+
+  CompletableFuture<WriteResult> setStreamMetadata(String stream, StreamMetadata metadata);
+
+  // an empty one if never set
+  CompletableFuture<StreamMetadata> getStreamMetadata(String stream);
+
+  CompletableFuture<ReadResult> readStream(String stream, ReadStreamOptions options);
+
+  CompletableFuture<ReadResult> readAll(ReadAllOptions options);
+
+  // filter: null = all events; the options' own filter is not used
+  CompletableFuture<Subscription> subscribeToAll(SubscriptionListener listener, SubscribeToAllOptions options, AllFilter filter);
+
+  // of the last event in $all; null if there is none yet
+  default Position headPosition() throws InterruptedException, ExecutionException {
+    var lastEvents = readAll(ReadAllOptions.get().fromEnd().backwards().maxCount(1)).get().getEvents();
+    return lastEvents.isEmpty() ? null : lastEvents.get(0).getEvent().getPosition();
+  }
+}
@@ -0,0 +1,42 @@
+package victor.training.sourcing.store;
+
+import com.eventstore.dbclient.EventStoreDBClient;
+import com.eventstore.dbclient.EventStoreDBConnectionString;
+import com.eventstore.dbclient.EventStoreDBPersistentSubscriptionsClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+@Configuration
+public class EventStoreConfig {
+  @Bean
+  @ConditionalOnProperty(name = "event.store.backend", havingValue = "esdb", matchIfMissing = true)
+  public EventStoreDBClient eventStoreDBClient(@Value("${event.store.db.url}") String url) {
+    return EventStoreDBClient.create(EventStoreDBConnectionString.parseOrThrow(url));
+  }
+
+  @Bean
+  @ConditionalOnProperty(name = "event.store.backend", havingValue = "esdb", matchIfMissing = true)
+  public EventStore esdbEventStore(EventStoreDBClient client) {
+    return new EsdbEventStore(client);
+  }
+
+  // shares the connection of the client above
+  @Bean
+  @ConditionalOnProperty(name = "event.store.backend", havingValue = "esdb", matchIfMissing = true)
+  public EventStoreDBPersistentSubscriptionsClient persistentSubscriptionsClient(EventStoreDBClient client) {
+    return EventStoreDBPersistentSubscriptionsClient.from(client);
+  }
+
+  @Bean(destroyMethod = "close")
+  @ConditionalOnProperty(name = "event.store.backend", havingValue = "embedded")
+  public EventStore embeddedEventStore(@Value("${event.store.embedded.dir:data/events}") Path dir,
+                                       @Value("${event.store.embedded.segment-size-mb:64}") int segmentSizeMb,
+                                       @Value("${event.store.embedded.fsync:true}") boolean fsync) throws IOException {
+    return new EmbeddedEventStore(dir, segmentSizeMb * 1024 * 1024, fsync);
+  }
+}
@@ -0,0 +1,140 @@
+package victor.training.sourcing.user.command;
+
+import com.eventstore.dbclient.WrongExpectedVersionException;
+import jakarta.validation.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import victor.training.sourcing.user.command.UserCommandRestApi.CommandResult;
+import victor.training.sourcing.user.command.UserCommandRestApi.CreateUserRequest;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.IntFunction;
+
+// Bulk onboarding (eg. from HR feeds): thousands of commands in one request.
+// - each item runs the same command as its single-item endpoint, up to max-in-flight at a time
+// - results are streamed back as NDJSON, one line per item, as soon as that item completes (in any order)
+// - a failing item (invalid, conflict, rejected by the User) does not stop the others
+@Slf4j
+@RestController
+@RequestMapping("/users/batch")
+public class BatchCommandRestApi {
+  private static final long TIMEOUT_MILLIS = Duration.ofMinutes(10).toMillis();
+
+  private final UserCommandRestApi commandApi;
+  private final Validator validator;
+  private final int maxInFlight;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  public BatchCommandRestApi(UserCommandRestApi commandApi,
+                             Validator validator,
+                             @Value("${user.batch.max-in-flight:64}") int maxInFlight) {
+    this.commandApi = commandApi;
+    this.validator = validator;
+    this.maxInFlight = maxInFlight;
+  }
+
+  public record RoleChange(String email, String role) {}
+
+  public enum ItemStatus {OK, INVALID, CONFLICT, REJECTED, FAILED}
+
+  // position: of the item's append, if OK (see CommandResult)
+  public record ItemResult(int index, String email, ItemStatus status, Long position, String error) {}
+
+  @FunctionalInterface
+  private interface Command {
+    CommandResult run() throws Exception;
+  }
+
+  @PostMapping(produces = "application/x-ndjson")
+  public ResponseBodyEmitter createUsers(@RequestBody List<CreateUserRequest> requests) {
+    return run(requests.size(), i -> requests.get(i).email(), i -> {
+      var violations = validator.validate(requests.get(i));
+      if (!violations.isEmpty()) {
+        throw new InvalidItemException(violations.iterator().next().getPropertyPath() + " " + violations.iterator().next().getMessage());
+      }
+      return () -> commandApi.createUser(requests.get(i));
+    });
+  }
+
+  @PutMapping(value = "roles/grant", produces = "application/x-ndjson")
+  public ResponseBodyEmitter grantRoles(@RequestBody List<RoleChange> changes) {
+    return run(changes.size(), i -> changes.get(i).email(), i -> () -> commandApi.grantRole(changes.get(i).email(), changes.get(i).role()));
+  }
+
+  @PutMapping(value = "roles/revoke", produces = "application/x-ndjson")
+  public ResponseBodyEmitter revokeRoles(@RequestBody List<RoleChange> changes) {
+    return run(changes.size(), i -> changes.get(i).email(), i -> () -> commandApi.revokeRole(changes.get(i).email(), changes.get(i).role()));
+  }
+
+  private static class InvalidItemException extends RuntimeException {
+    InvalidItemException(String message) {
+      super(message);
+    }
+  }
+
+  private ResponseBodyEmitter run(int count, IntFunction<String> emailOf, IntFunction<Command> commandOf) {
+    ResponseBodyEmitter emitter = new ResponseBodyEmitter(TIMEOUT_MILLIS);
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    executor.execute(() -> {
+      try {
+        for (int i = 0; i < count; i++) {
+          inFlight.acquire();
+          int index = i;
+          executor.execute(() -> {
+            try {
+              send(emitter, runItem(index, emailOf.apply(index), commandOf));
+            } finally {
+              inFlight.release();
+            }
+          });
+        }
+        inFlight.acquire(maxInFlight); // all items done
+        emitter.complete();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        emitter.completeWithError(e);
+      }
+    });
+    return emitter;
+  }
+
+  private ItemResult runItem(int index, String email, IntFunction<Command> commandOf) {
+    try {
+      CommandResult result = commandOf.apply(index).run();
+      return new ItemResult(index, email, ItemStatus.OK, result.position(), null);
+    } catch (InvalidItemException e) {
+      return new ItemResult(index, email, ItemStatus.INVALID, null, e.getMessage());
+    } catch (Exception e) {
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      return switch (cause) {
+        case WrongExpectedVersionException c -> new ItemResult(index, email, ItemStatus.CONFLICT, null, c.getMessage());
+        case IllegalArgumentException c -> new ItemResult(index, email, ItemStatus.REJECTED, null, c.getMessage());
+        default -> {
+          log.warn("Batch item {} for {} failed", index, email, cause);
+          yield new ItemResult(index, email, ItemStatus.FAILED, null, cause.toString());
+        }
+      };
+    }
+  }
+
+  // items complete on many threads, but the emitter must be written one line at a time
+  private static void send(ResponseBodyEmitter emitter, ItemResult result) {
+    synchronized (emitter) {
+      try {
+        emitter.send(result, MediaType.APPLICATION_JSON);
+        emitter.send("\n", MediaType.TEXT_PLAIN);
+      } catch (IOException | IllegalStateException e) {
+        log.debug("Client went away, dropping result of item {}", result.index());
+      }
+    }
+  }
+}
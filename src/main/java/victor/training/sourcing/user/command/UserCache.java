@@ -0,0 +1,142 @@
+package victor.training.sourcing.user.command;
+
+import com.eventstore.dbclient.ReadStreamOptions;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import victor.training.sourcing.Bulkhead;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EventStore;
+import victor.training.sourcing.user.command.UserSnapshots.Snapshot;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the last hydrated User per stream, so a hot user only costs a read of the events appended since.
+// Another node may append to the same stream at any time:
+// - the tail read after the cached revision picks up what it wrote before us
+// - what it writes between our read and our append is rejected by the expected revision => evict + retry
+// A cold user starts from its latest snapshot, if any.
+@Slf4j
+@Component
+public class UserCache {
+  private final EventStore eventStore;
+  private final UserSnapshots snapshots;
+  private final Bulkhead eventStoreBulkhead;
+  private final Map<String, Entry> cache;
+  private final Counter hits;
+  private final Counter misses;
+  private final Timer hydrationFromCache;
+  private final Timer hydrationFromStore;
+  private final DistributionSummary eventsPerHydration;
+
+  public UserCache(EventStore eventStore, UserSnapshots snapshots, Bulkhead eventStoreBulkhead,
+                   MeterRegistry meterRegistry, @Value("${user.cache.max-size:10000}") int maxSize) {
+    this.eventStore = eventStore;
+    this.snapshots = snapshots;
+    this.eventStoreBulkhead = eventStoreBulkhead;
+    this.cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxSize; // evict the least recently used
+      }
+    });
+    // hit ratio = hits / (hits + misses)
+    this.hits = meterRegistry.counter("user.cache.requests", "result", "hit");
+    this.misses = meterRegistry.counter("user.cache.requests", "result", "miss");
+    this.hydrationFromCache = hydrationTimer(meterRegistry, "cache");
+    this.hydrationFromStore = hydrationTimer(meterRegistry, "store");
+    this.eventsPerHydration = DistributionSummary.builder("user.hydration.events")
+        .description("Events read from the store to bring a User up to date")
+        .publishPercentileHistogram()
+        .register(meterRegistry);
+    meterRegistry.gaugeMapSize("user.cache.size", List.of(), cache);
+  }
+
+  private static Timer hydrationTimer(MeterRegistry meterRegistry, String from) {
+    return Timer.builder("user.hydration")
+        .description("Time to get an up-to-date User, from the cache (+ the events since) or from the store (snapshot + events since)")
+        .tag("from", from)
+        .publishPercentileHistogram()
+        .register(meterRegistry);
+  }
+
+  // revision = of the last event applied on the user
+  public record CachedUser(User user, long revision) {}
+
+  // snapshotRevision = of the last event included in the latest snapshot known, -1 if none
+  private record Entry(User user, long revision, long snapshotRevision) {}
+
+  // returns a private copy, free to mutate by the caller
+  public CachedUser get(String email) throws Exception {
+    String stream = User.stream(email);
+    Entry cached = cache.get(stream);
+    (cached == null ? misses : hits).increment();
+    long t0 = System.nanoTime();
+    Entry fresh = cached == null ? hydrate(email) : catchUp(stream, cached.user().copy(), cached.revision(), cached.snapshotRevision());
+    long hydrationNanos = System.nanoTime() - t0;
+    (cached == null ? hydrationFromStore : hydrationFromCache).record(hydrationNanos, TimeUnit.NANOSECONDS);
+    long hydrationMillis = TimeUnit.NANOSECONDS.toMillis(hydrationNanos);
+    if (snapshots.isDue(fresh.revision() - fresh.snapshotRevision(), hydrationMillis)) {
+      fresh = snapshot(email, fresh);
+    }
+    cache.put(stream, fresh);
+    return new CachedUser(fresh.user().copy(), fresh.revision());
+  }
+
+  // after our own successful append, to avoid reading back what we just wrote
+  public void put(String email, User user, List<UserEvent> appendedEvents, long newRevision) {
+    User updated = user.copy();
+    appendedEvents.forEach(updated::apply);
+    Entry previous = cache.get(User.stream(email));
+    long snapshotRevision = previous == null ? -1 : previous.snapshotRevision();
+    cache.put(User.stream(email), new Entry(updated, newRevision, snapshotRevision));
+  }
+
+  public void evict(String email) {
+    cache.remove(User.stream(email));
+  }
+
+  private Entry hydrate(String email) throws Exception {
+    var snapshot = snapshots.latest(email);
+    if (snapshot.isEmpty()) {
+      return catchUp(User.stream(email), new User(), null, -1);
+    }
+    Snapshot latest = snapshot.get();
+    return catchUp(User.stream(email), latest.user(), latest.eventRevision(), latest.eventRevision());
+  }
+
+  private Entry catchUp(String stream, User user, Long revision, long snapshotRevision) throws Exception {
+    var options = revision == null
+        ? ReadStreamOptions.get().fromStart()
+        : ReadStreamOptions.get().fromRevision(revision + 1);
+    var events = eventStoreBulkhead.await(() -> eventStore.readStream(stream, options)).getEvents();
+    eventsPerHydration.record(events.size());
+    for (var resolvedEvent : events) {
+      user.apply(GsonUtil.fromEventDataSealed(resolvedEvent.getEvent(), UserEvent.class));
+    }
+    if (events.isEmpty()) {
+      if (revision == null) throw new IllegalArgumentException("No user in " + stream);
+      return new Entry(user, revision, snapshotRevision);
+    }
+    return new Entry(user, events.get(events.size() - 1).getEvent().getRevision(), snapshotRevision);
+  }
+
+  // off the request path: the serialized copy is taken now, the append completes in the background
+  private Entry snapshot(String email, Entry entry) {
+    snapshots.save(email, entry.user(), entry.revision())
+        .whenComplete((r, e) -> {
+          if (e != null) log.warn("Could not snapshot {}: {}", email, e.toString());
+        });
+    return new Entry(entry.user(), entry.revision(), entry.revision());
+  }
+}
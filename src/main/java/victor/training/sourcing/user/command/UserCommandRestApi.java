@@ -1,6 +1,6 @@
 package victor.training.sourcing.user.command;
 
-import com.eventstore.dbclient.*;
+import com.eventstore.dbclient.WriteResult;
 import jakarta.validation.constraints.Email;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
@@ -9,20 +9,25 @@ import lombok.With;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
-import victor.training.sourcing.GsonUtil;
 import victor.training.sourcing.user.domain.User;
 import victor.training.sourcing.user.domain.UserEvent;
 
 import java.util.List;
-
-import static com.eventstore.dbclient.ExpectedRevision.noStream;
+import java.util.function.Function;
 
 @Slf4j
 @RestController
 @RequestMapping("/users")
 @RequiredArgsConstructor
 public class UserCommandRestApi {
-  private final EventStoreDBClient eventStore;
+  private final UserRepository userRepository;
+
+  // position = commit position of the append in $all: pass it as minPosition to a query to read your own write
+  public record CommandResult(long position) {
+    static CommandResult of(WriteResult writeResult) {
+      return new CommandResult(writeResult.getLogPosition().getCommitUnsigned());
+    }
+  }
 
   @With
   public record CreateUserRequest(
@@ -34,32 +39,23 @@ public class UserCommandRestApi {
   }
 
   @PostMapping
-  public void createUser(@RequestBody @Validated CreateUserRequest request) throws Exception {
+  public CommandResult createUser(@RequestBody @Validated CreateUserRequest request) throws Exception {
     List<UserEvent> events = User.create(request);
-    eventStore.appendToStream(User.stream(request.email()),
-            AppendToStreamOptions.get().expectedRevision(noStream()), // Unique-Key in Event-Sourcing
-            events.stream().map(GsonUtil::toEventData).iterator())
-        .get();
+    var writeResult = userRepository.create(request.email(), events); // expects no stream = Unique-Key in Event-Sourcing
     log.info("Created user");
     // TODO discuss: UserCreated💖{..,roles}, +UserRolesGranted{roles}, +UserRoleGranted{role}
+    return CommandResult.of(writeResult);
   }
 
   @PutMapping("/{email}/confirm-email")
-  public void confirmEmail(@PathVariable String email, @RequestParam String token) throws Exception {
+  public CommandResult confirmEmail(@PathVariable String email, @RequestParam String token) throws Exception {
     // === § PART 1 : read the aggregate ===
     // ❌Traditional: read current state from a DB:
     // User user = userRepo.findById(email);
 
     // ✅Event-Sourced: replay the events about this aggregate
-    // 1) get events
-    var readResult = eventStore.readStream(User.stream(email), ReadStreamOptions.get().fromStart()).get();
-
-    // 2a) rebuild user from events : imperative-style
-    User user = new User();
-    for (ResolvedEvent re : readResult.getEvents()) {
-      UserEvent event = GsonUtil.fromEventDataSealed(re.getEvent(), UserEvent.class);
-      user.apply(event);
-    }
+    // 1) get events: UserRepository starts from the cached User or its latest snapshot, and reads the events since
+    // 2a) rebuild user from events : imperative-style, see UserCache#catchUp
 
     // 2b) rebuild user from events : functional-style
 //    var user = userEvents.reduce(new User(),
@@ -83,16 +79,9 @@ public class UserCommandRestApi {
 
     // ✅Event-Sourced: all changes happen via events
     // 1) command produces events
-    List<UserEvent> events = user.confirmEmail(email, token);
-    // 2) persist events = source of truth
-
-    for (var event : events) {
-      var eventData = GsonUtil.toEventData(event);
-      eventStore.appendToStream(User.stream(user.email()),
-//          AppendToStreamOptions.get().expectedRevision(ExpectedRevision.streamExists()),
-          AppendToStreamOptions.get().expectedRevision(readResult.getLastStreamPosition()), // concurrency protection ~ optimistic locking
-          eventData).get();
-    }
+    // 2) persist events = source of truth: all of them in one atomic append, expecting the revision read in PART 1
+    //    concurrency protection ~ optimistic locking; on conflict the repository re-reads and re-runs the command
+    return CommandResult.of(userRepository.execute("confirm-email", email, user -> user.confirmEmail(email, token)));
   }
 
   public record UpdateUserRequest(
@@ -102,41 +91,31 @@ public class UserCommandRestApi {
   }
 
   @PutMapping("/{email}/details")
-  public void update(@PathVariable String email, @RequestBody @Validated UpdateUserRequest request) throws Exception {
-    var user = User.rebuildUser(email, eventStore);
-    var event = user.update(request);
-    eventStore.appendToStream(User.stream(email),
-        AppendToStreamOptions.get().expectedRevision(ExpectedRevision.streamExists()),// this guarantees the stream exists
-        GsonUtil.toEventData(event)).get();
+  public CommandResult update(@PathVariable String email, @RequestBody @Validated UpdateUserRequest request) throws Exception {
+    return execute("update", email, user -> user.update(request));
   }
 
   @PutMapping("/{email}/roles/{role}")
-  public void grantRole(@PathVariable String email, @PathVariable String role) throws Exception {
-    var user = User.rebuildUser(email, eventStore);
-    var event = user.grantRole(role);
-    eventStore.appendToStream(User.stream(email), GsonUtil.toEventData(event)).get();
+  public CommandResult grantRole(@PathVariable String email, @PathVariable String role) throws Exception {
+    return execute("grant-role", email, user -> user.grantRole(role));
   }
 
   @DeleteMapping("/{email}/roles/{role}")
-  public void revokeRole(@PathVariable String email, @PathVariable String role) throws Exception {
-    var user = User.rebuildUser(email, eventStore);
-    var event = user.revokeRole(role);
-    eventStore.appendToStream(User.stream(email), GsonUtil.toEventData(event)).get();
+  public CommandResult revokeRole(@PathVariable String email, @PathVariable String role) throws Exception {
+    return execute("revoke-role", email, user -> user.revokeRole(role));
   }
 
   @PutMapping("/{email}/deactivate")
-  public void deactivate(@PathVariable String email) throws Exception {
-    var user = User.rebuildUser(email, eventStore);
-    var event = user.deactivate();
-    eventStore.appendToStream(User.stream(email), GsonUtil.toEventData(event)).get();
+  public CommandResult deactivate(@PathVariable String email) throws Exception {
+    return execute("deactivate", email, User::deactivate);
   }
 
   @PutMapping("/{email}/activate")
-  public void activate(@PathVariable String email) throws Exception {
-    var user = User.rebuildUser(email, eventStore);
-    var event = user.activate();
-    eventStore.appendToStream(User.stream(email), GsonUtil.toEventData(event)); // TODO causes flaky tests
+  public CommandResult activate(@PathVariable String email) throws Exception {
+    return execute("activate", email, User::activate);
   }
 
-
+  private CommandResult execute(String commandName, String email, Function<User, UserEvent> command) throws Exception {
+    return CommandResult.of(userRepository.execute(commandName, email, user -> List.of(command.apply(user))));
+  }
 }
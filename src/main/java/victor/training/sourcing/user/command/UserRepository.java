@@ -0,0 +1,105 @@
+package victor.training.sourcing.user.command;
+
+import com.eventstore.dbclient.AppendToStreamOptions;
+import com.eventstore.dbclient.ExpectedRevision;
+import com.eventstore.dbclient.WriteResult;
+import com.eventstore.dbclient.WrongExpectedVersionException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import victor.training.sourcing.Bulkhead;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EventStore;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+// Runs a command on the User aggregate:
+// hydrate (via UserCache) -> command -> all its events in ONE append, expecting the revision we hydrated.
+// If someone else appended meanwhile, the append is rejected => re-hydrate and re-run the command,
+// as its decision might differ on the fresh state (eg. role already granted).
+// Retries sleep a random time up to a doubling cap, so that contenders don't collide again in lockstep.
+@Slf4j
+@Component
+public class UserRepository {
+  private final EventStore eventStore;
+  private final UserCache userCache;
+  private final Bulkhead eventStoreBulkhead;
+  private final MeterRegistry meterRegistry;
+  private final int maxAttempts;
+  private final long backoffMillis;
+
+  public UserRepository(EventStore eventStore,
+                        UserCache userCache,
+                        Bulkhead eventStoreBulkhead,
+                        MeterRegistry meterRegistry,
+                        @Value("${user.command.max-attempts:4}") int maxAttempts,
+                        @Value("${user.command.backoff-ms:10}") long backoffMillis) {
+    this.eventStore = eventStore;
+    this.userCache = userCache;
+    this.eventStoreBulkhead = eventStoreBulkhead;
+    this.meterRegistry = meterRegistry;
+    this.maxAttempts = maxAttempts;
+    this.backoffMillis = backoffMillis;
+  }
+
+  // commandName: tags the metrics, eg. "grant-role"
+  public WriteResult execute(String commandName, String email, Function<User, List<UserEvent>> command) throws Exception {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return tryExecute(commandName, email, command);
+      } catch (ExecutionException e) {
+        if (!(e.getCause() instanceof WrongExpectedVersionException)) {
+          throw e;
+        }
+        meterRegistry.counter("user.command.conflicts", "command", commandName, "retried", String.valueOf(attempt < maxAttempts)).increment();
+        if (attempt == maxAttempts) {
+          throw e;
+        }
+        log.debug("Concurrent change of {}, retrying (attempt {}/{})", email, attempt + 1, maxAttempts);
+        userCache.evict(email);
+        Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMillis << (attempt - 1)) + 1);
+      }
+    }
+  }
+
+  // a new User: the stream must not exist yet ~ unique key
+  public WriteResult create(String email, List<UserEvent> events) throws Exception {
+    return append("create", email, ExpectedRevision.noStream(), events);
+  }
+
+  private WriteResult tryExecute(String commandName, String email, Function<User, List<UserEvent>> command) throws Exception {
+    var cached = userCache.get(email);
+    List<UserEvent> events = command.apply(cached.user());
+    var writeResult = append(commandName, email, ExpectedRevision.expectedRevision(cached.revision()), events);
+    userCache.put(email, cached.user(), events, writeResult.getNextExpectedRevision().toRawLong());
+    return writeResult;
+  }
+
+  private WriteResult append(String commandName, String email, ExpectedRevision expectedRevision, List<UserEvent> events) throws Exception {
+    Timer.Sample sample = Timer.start(meterRegistry);
+    String outcome = "error";
+    try {
+      var writeResult = eventStoreBulkhead.await(() -> eventStore.appendToStream(User.stream(email),
+          AppendToStreamOptions.get().expectedRevision(expectedRevision),
+          events.stream().map(GsonUtil::toEventData).iterator()));
+      outcome = "ok";
+      return writeResult;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof WrongExpectedVersionException) outcome = "conflict";
+      throw e;
+    } finally {
+      sample.stop(Timer.builder("user.append")
+          .description("Latency of appending the events of a command")
+          .tags("command", commandName, "outcome", outcome)
+          .publishPercentileHistogram()
+          .register(meterRegistry));
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package victor.training.sourcing.user.command;
+
+import com.eventstore.dbclient.*;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import victor.training.sourcing.Bulkhead;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EventStore;
+import victor.training.sourcing.user.command.SnapshotApi.SnapshotMetadata;
+import victor.training.sourcing.user.domain.User;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Snapshots of a User live in their own stream "snapshot-user-{email}", each tagged with the revision of
+// the last user event it includes. Only the latest few are kept, via $maxCount on the snapshot stream.
+@Slf4j
+@Component
+public class UserSnapshots {
+  private final EventStore eventStore;
+  private final Bulkhead eventStoreBulkhead;
+  private final int everyEvents;
+  private final long hydrationBudgetMillis;
+  private final long keep;
+
+  public UserSnapshots(EventStore eventStore,
+                       Bulkhead eventStoreBulkhead,
+                       @Value("${user.snapshot.every-events:100}") int everyEvents,
+                       @Value("${user.snapshot.hydration-budget-ms:50}") long hydrationBudgetMillis,
+                       @Value("${user.snapshot.keep:3}") long keep) {
+    this.eventStore = eventStore;
+    this.eventStoreBulkhead = eventStoreBulkhead;
+    this.everyEvents = everyEvents;
+    this.hydrationBudgetMillis = hydrationBudgetMillis;
+    this.keep = keep;
+  }
+
+  public record Snapshot(User user, long eventRevision) {}
+
+  public static String stream(String email) {
+    return "snapshot-" + User.stream(email);
+  }
+
+  public Optional<Snapshot> latest(String email) throws Exception {
+    try {
+      var readResult = eventStoreBulkhead.await(() -> eventStore.readStream(stream(email),
+          ReadStreamOptions.get().fromEnd().backwards().maxCount(1)));
+      if (readResult.getEvents().isEmpty()) {
+        return Optional.empty();
+      }
+      var snapshotEvent = readResult.getEvents().get(0).getEvent();
+      var user = GsonUtil.parseEventData(snapshotEvent, User.class);
+      var metadata = GsonUtil.gson.fromJson(new String(snapshotEvent.getUserMetadata(), UTF_8), SnapshotMetadata.class);
+      return Optional.of(new Snapshot(user, metadata.eventRevision()));
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof StreamNotFoundException) {
+        return Optional.empty(); // never snapshotted => full replay
+      }
+      throw e;
+    }
+  }
+
+  // policy: enough events piled up since the last snapshot, or hydrating took too long
+  public boolean isDue(long eventsSinceSnapshot, long hydrationMillis) {
+    return eventsSinceSnapshot >= everyEvents || (eventsSinceSnapshot > 0 && hydrationMillis > hydrationBudgetMillis);
+  }
+
+  // $maxCount is set with the first snapshot, and checked again every `keep` snapshots: if that first
+  // write failed (or the metadata was lost), the stream is capped at the next check instead of growing forever
+  public CompletableFuture<WriteResult> save(String email, User user, long eventRevision) {
+    var metadata = GsonUtil.gson.toJson(new SnapshotMetadata(eventRevision)).getBytes(UTF_8);
+    var snapshotEvent = GsonUtil.eventDataBuilder(user)
+        .metadataAsBytes(metadata)
+        .build();
+    return eventStore.appendToStream(stream(email), snapshotEvent)
+        .thenCompose(writeResult -> {
+          long revision = writeResult.getNextExpectedRevision().toRawLong();
+          if (revision == 0) { // first snapshot of this user
+            return keepOnlyLatest(email).thenApply(r -> writeResult);
+          }
+          if (revision % keep == 0) {
+            return keepOnlyLatestIfMissing(email).thenApply(r -> writeResult);
+          }
+          return CompletableFuture.completedFuture(writeResult);
+        });
+  }
+
+  private CompletableFuture<WriteResult> keepOnlyLatest(String email) {
+    StreamMetadata metadata = new StreamMetadata();
+    metadata.setMaxCount(keep);
+    return eventStore.setStreamMetadata(stream(email), metadata);
+  }
+
+  private CompletableFuture<?> keepOnlyLatestIfMissing(String email) {
+    return eventStore.getStreamMetadata(stream(email))
+        .thenCompose(metadata -> {
+          if (metadata.getMaxCount() != null) {
+            return CompletableFuture.completedFuture(null);
+          }
+          log.info("Snapshot stream of {} had no $maxCount, setting it", email);
+          return keepOnlyLatest(email);
+        });
+  }
+}
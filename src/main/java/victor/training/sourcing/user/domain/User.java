@@ -1,10 +1,8 @@
 package victor.training.sourcing.user.domain;
 
-import com.eventstore.dbclient.EventStoreDBClient;
-import com.eventstore.dbclient.ReadStreamOptions;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.Ordinal;
 import victor.training.sourcing.user.command.UserCommandRestApi;
 import victor.training.sourcing.user.command.UserCommandRestApi.CreateUserRequest;
 
@@ -17,13 +15,13 @@ import static victor.training.sourcing.user.domain.UserEvent.*;
 @Getter
 @Slf4j
 public class User {
-  private String email; // natural id
-  private String name;
-  private String emailValidationToken;
-  private Boolean emailConfirmed = false;
-  private String departmentId;
-  private Boolean active = false;
-  private final List<String> roles = new ArrayList<>();
+  @Ordinal(1) private String email; // natural id
+  @Ordinal(2) private String name;
+  @Ordinal(3) private String emailValidationToken;
+  @Ordinal(4) private Boolean emailConfirmed = false;
+  @Ordinal(5) private String departmentId;
+  @Ordinal(6) private Boolean active = false;
+  @Ordinal(7) private final List<String> roles = new ArrayList<>();
   public static String stream(String email) {
     return "user-" + email.toLowerCase();
   }
@@ -41,19 +39,17 @@ public class User {
     }
     return allEvents;
   }
-  public static User rebuildUser(String email, EventStoreDBClient eventStore) throws Exception {
-//    User user = new User();
-    var snapshotReadResult = eventStore.readStream("snapshot-" + User.stream(email),
-        ReadStreamOptions.get().fromEnd().backwards()).get();
-    var latestSnapshotEvent = snapshotReadResult.getEvents().get(0);
-    var user = GsonUtil.parseEventData(latestSnapshotEvent.getEvent(), User.class);
-
-    var readResult = eventStore.readStream("user-" + email,
-        ReadStreamOptions.get().fromRevision(snapshotReadResult.getLastStreamPosition())).get();
-    for (var resolvedEvent : readResult.getEvents()) {
-      user.apply(GsonUtil.fromEventDataSealed(resolvedEvent.getEvent(), UserEvent.class));
-    }
-    return user;
+  // a private copy, so that a cached instance is never mutated by two requests at once
+  public User copy() {
+    User copy = new User();
+    copy.email = email;
+    copy.name = name;
+    copy.emailValidationToken = emailValidationToken;
+    copy.emailConfirmed = emailConfirmed;
+    copy.departmentId = departmentId;
+    copy.active = active;
+    copy.roles.addAll(roles);
+    return copy;
   }
   public UserPersonalDetailsUpdated update(UserCommandRestApi.UpdateUserRequest request) {
     if (!active) {
@@ -108,7 +104,7 @@ public class User {
   }
 
   public void apply(UserEvent userEvent) {
-    log.info("Applying " + userEvent);
+    log.debug("Applying {}", userEvent);
     switch (userEvent) {
       case UserCreated event -> {
         this.email = event.email();
@@ -123,7 +119,7 @@ public class User {
 //          this.lastName=event.name().split(" ")[1]; // consider a later corrective event;
 
         // law changed and required you to have more info/different strucutre
-        // consider migrating all events from stream-v1 to stream-v2.
+        // consider migrating all events from stream-v1 to stream-v2 (see UserStreamMigration).
         // never delete v1 for legal => archive => S3🪣
         // app will move to use v2
 //        }
@@ -140,6 +136,7 @@ public class User {
       case UserDeactivated event -> active = false;
       case UserActivated event -> active = true;
       case UserEmailConfirmed event -> emailConfirmed = true;
+      case ConfirmationEmailSent event -> emailValidationToken = event.emailConfirmationToken();
       default -> throw new IllegalArgumentException("Unsupported event: " + userEvent);
     }
   }
@@ -2,32 +2,34 @@ package victor.training.sourcing.user.domain;
 
 import lombok.Data;
 import victor.training.sourcing.AbstractEvent;
+import victor.training.sourcing.Ordinal;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 
+// the @Ordinal of a field is its id in the binary encoding: never change nor reuse one
 public sealed abstract class UserEvent extends AbstractEvent
     permits UserEvent.ConfirmationEmailSent, UserEvent.UserActivated, UserEvent.UserCreated, UserEvent.UserDeactivated, UserEvent.UserEmailConfirmed, UserEvent.UserLoggedIn, UserEvent.UserPersonalDetailsUpdated, UserEvent.UserRoleGranted, UserEvent.UserRoleRevoked {
 
   @Data
   public static final class UserCreated extends UserEvent {
-    private String name;
-    private String firstName;
-    private String lastName;
-    private String email;
-    private String departmentId;
-    private LocalDate birthDate;
+    @Ordinal(1) private String name;
+    @Ordinal(2) private String firstName;
+    @Ordinal(3) private String lastName;
+    @Ordinal(4) private String email;
+    @Ordinal(5) private String departmentId;
+    @Ordinal(6) private LocalDate birthDate;
     // TODO @tech-backlog merge roles in here to have events match the user intent
   }
 
   @Data
   public static final class ConfirmationEmailSent extends UserEvent {
-    private String emailConfirmationToken;
+    @Ordinal(1) private String emailConfirmationToken;
   }
 
   @Data
   public static final class UserActivated extends UserEvent {
-    private String email;
+    @Ordinal(1) private String email;
   }
 
   @Data
@@ -39,27 +41,27 @@ public sealed abstract class UserEvent extends AbstractEvent
   @Data
   public static final class UserLoggedIn extends UserEvent {
 
-    private String application;
-    private LocalDateTime loginTime;
+    @Ordinal(1) private String application;
+    @Ordinal(2) private LocalDateTime loginTime;
   }
   @Data
   public static final class UserPersonalDetailsUpdated extends UserEvent {
 
-    private String name;
-    private String departmentId;
+    @Ordinal(1) private String name;
+    @Ordinal(2) private String departmentId;
   }
   @Data
   public static final class UserRoleGranted extends UserEvent {
-    private String role;
+    @Ordinal(1) private String role;
   }
   @Data
   public static final class UserRoleRevoked extends UserEvent {
-    private String role;
+    @Ordinal(1) private String role;
   }
 
   @Data
   public static final class UserDeactivated extends UserEvent {
-    private String role;
+    @Ordinal(1) private String role;
   }
 
 
@@ -0,0 +1,12 @@
+package victor.training.sourcing.user.migration;
+
+import com.eventstore.dbclient.EventDataBuilder;
+import com.eventstore.dbclient.RecordedEvent;
+
+import java.util.List;
+
+// Turns an event of the old schema into the event(s) of the new one: none = dropped, several = split.
+// Must be a pure function of the event: a resumed migration may upcast some events again.
+public interface Upcaster {
+  List<EventDataBuilder> upcast(RecordedEvent event);
+}
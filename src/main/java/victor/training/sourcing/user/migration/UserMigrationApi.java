@@ -0,0 +1,29 @@
+package victor.training.sourcing.user.migration;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.*;
+import victor.training.sourcing.user.migration.UserStreamMigration.Status;
+
+@RestController
+@RequestMapping("/migration/user-v2")
+@RequiredArgsConstructor
+public class UserMigrationApi {
+  private final UserStreamMigration migration;
+
+  // runs in the background: poll GET for its progress
+  @PostMapping
+  public Status start(@RequestParam(defaultValue = "false") boolean fromStart) {
+    return migration.start(fromStart);
+  }
+
+  @GetMapping
+  public Status status() {
+    return migration.status();
+  }
+
+  // the progress is saved: a later start resumes from there
+  @DeleteMapping
+  public Status stop() {
+    return migration.stop();
+  }
+}
@@ -0,0 +1,344 @@
+package victor.training.sourcing.user.migration;
+
+import com.eventstore.dbclient.*;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.RateLimiter;
+import victor.training.sourcing.store.EventStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.springframework.http.HttpStatus.CONFLICT;
+
+// Copies every user-{email} stream to {target-prefix}{email}, through the Upcaster:
+// - a scan of $all finds the streams in order of creation (= their event at revision 0) and queues them
+// - N workers migrate one stream at a time: read a batch, upcast it, append it with the expected revision
+// - every event written carries the source revision it came from => a stream resumes where its target stopped
+// - the progress file keeps the position of the oldest stream not migrated yet => a restart rescans only from there
+// - reads are throttled to max-events-per-second across all workers, to leave the event store to live traffic
+// Re-running with fromStart copies only what was appended to the sources since the last run.
+@Slf4j
+@Component
+public class UserStreamMigration {
+  private static final int SCAN_BATCH = 4096;
+  private static final Found END = new Found(-1, null, null);
+
+  private final EventStore eventStore;
+  private final Upcaster upcaster;
+  private final String sourcePrefix;
+  private final String targetPrefix;
+  private final int workers;
+  private final int batchSize;
+  private final RateLimiter rateLimiter;
+  private final Path progressFile;
+  private final long reportSeconds;
+  private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "migration-report");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public enum State {IDLE, RUNNING, STOPPING, STOPPED, COMPLETED, FAILED}
+
+  public record Status(State state, boolean scanComplete, long streamsFound, long streamsMigrated, long streamsFailed,
+                       long streamsRemaining, long eventsRead, long eventsWritten, long eventsPerSecond, Long etaSeconds) {}
+
+  private record Found(long seq, String stream, Position position) {}
+
+  private record Progress(long commit, long prepare) {}
+
+  private record MigratedFrom(String stream, long revision) {} // metadata of every event written
+
+  // of the current (or last) run
+  private volatile State state = State.IDLE;
+  private volatile boolean stopRequested;
+  private volatile boolean scanComplete;
+  private volatile Position scannedUntil;
+  private final ConcurrentSkipListMap<Long, Position> pending = new ConcurrentSkipListMap<>(); // found, not migrated yet
+  private final AtomicLong streamsFound = new AtomicLong();
+  private final AtomicLong streamsMigrated = new AtomicLong();
+  private final AtomicLong streamsFailed = new AtomicLong();
+  private final AtomicLong eventsRead = new AtomicLong();
+  private final AtomicLong eventsWritten = new AtomicLong();
+  private volatile long startNanos;
+  private volatile long endNanos;
+  private volatile Thread runner;
+  private volatile ScheduledFuture<?> report;
+
+  public UserStreamMigration(EventStore eventStore,
+                             Upcaster upcaster,
+                             @Value("${user.migration.source-prefix:user-}") String sourcePrefix,
+                             @Value("${user.migration.target-prefix:user_v2-}") String targetPrefix,
+                             @Value("${user.migration.workers:8}") int workers,
+                             @Value("${user.migration.batch-size:500}") int batchSize,
+                             @Value("${user.migration.max-events-per-second:5000}") int maxEventsPerSecond,
+                             @Value("${user.migration.progress-file:migration/user_v2.progress}") Path progressFile,
+                             @Value("${user.migration.report-seconds:10}") long reportSeconds) {
+    if (targetPrefix.startsWith(sourcePrefix)) {
+      throw new IllegalArgumentException("The target streams " + targetPrefix + "* would be read as " + sourcePrefix + "* streams");
+    }
+    this.eventStore = eventStore;
+    this.upcaster = upcaster;
+    this.sourcePrefix = sourcePrefix;
+    this.targetPrefix = targetPrefix;
+    this.workers = workers;
+    this.batchSize = batchSize;
+    this.rateLimiter = new RateLimiter(maxEventsPerSecond);
+    this.progressFile = progressFile;
+    this.reportSeconds = reportSeconds;
+  }
+
+  // fromStart: ignore the progress file, revisit all the streams
+  public synchronized Status start(boolean fromStart) {
+    if (state == State.RUNNING || state == State.STOPPING) {
+      throw new ResponseStatusException(CONFLICT, "Migration already running");
+    }
+    Position from = fromStart ? null : loadProgress();
+    stopRequested = false;
+    scanComplete = false;
+    scannedUntil = from;
+    pending.clear();
+    for (AtomicLong counter : List.of(streamsFound, streamsMigrated, streamsFailed, eventsRead, eventsWritten)) {
+      counter.set(0);
+    }
+    startNanos = System.nanoTime();
+    state = State.RUNNING;
+    log.info("Migrating {}* streams to {}* from {}", sourcePrefix, targetPrefix, from == null ? "the start of $all" : from);
+    report = reporter.scheduleWithFixedDelay(this::report, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+    runner = Thread.ofPlatform().name("migration").start(() -> run(from));
+    return status();
+  }
+
+  public synchronized Status stop() {
+    if (state == State.RUNNING) {
+      stopRequested = true;
+      state = State.STOPPING;
+    }
+    return status();
+  }
+
+  public Status status() {
+    long found = streamsFound.get();
+    long migrated = streamsMigrated.get();
+    long failed = streamsFailed.get();
+    long remaining = found - migrated - failed;
+    long elapsedNanos = (state == State.RUNNING || state == State.STOPPING ? System.nanoTime() : endNanos) - startNanos;
+    double seconds = elapsedNanos / 1e9;
+    long eventsPerSecond = state == State.IDLE || seconds <= 0 ? 0 : (long) (eventsRead.get() / seconds);
+    // all the work is known only once the scan is complete
+    Long eta = state == State.RUNNING && scanComplete && migrated > 0 ? (long) (remaining * seconds / migrated) : null;
+    return new Status(state, scanComplete, found, migrated, failed, remaining,
+        eventsRead.get(), eventsWritten.get(), eventsPerSecond, eta);
+  }
+
+  private void run(Position from) {
+    BlockingQueue<Found> queue = new ArrayBlockingQueue<>(workers * 4); // the scan waits for the workers
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < workers; i++) {
+      threads.add(Thread.ofVirtual().name("migration-" + i).start(() -> work(queue)));
+    }
+    Exception failure = null;
+    try {
+      scan(from, queue);
+    } catch (Exception e) {
+      failure = e;
+      log.error("Migration scan failed", e);
+    }
+    try {
+      for (int i = 0; i < workers; i++) {
+        queue.put(END);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    saveProgress();
+    report.cancel(false);
+    finish(failure != null || streamsFailed.get() > 0 ? State.FAILED : stopRequested ? State.STOPPED : State.COMPLETED);
+    report();
+  }
+
+  private synchronized void finish(State finalState) {
+    endNanos = System.nanoTime();
+    state = finalState;
+  }
+
+  private void scan(Position from, BlockingQueue<Found> queue) throws InterruptedException, ExecutionException {
+    Position position = from;
+    Position after = null; // reading from a position includes the event at it
+    long seq = 0;
+    while (!stopRequested) {
+      var options = ReadAllOptions.get().forwards().maxCount(SCAN_BATCH);
+      options = position == null ? options.fromStart() : options.fromPosition(position);
+      var events = eventStore.readAll(options).get().getEvents();
+      for (var resolvedEvent : events) {
+        RecordedEvent event = resolvedEvent.getEvent();
+        if (after != null && event.getPosition().compareTo(after) <= 0) {
+          continue;
+        }
+        String stream = event.getStreamId();
+        if (event.getRevision() == 0 && stream.startsWith(sourcePrefix)) {
+          Found found = new Found(seq++, stream, event.getPosition());
+          pending.put(found.seq(), found.position()); // before scannedUntil moves past it, see watermark()
+          streamsFound.incrementAndGet();
+          queue.put(found);
+        }
+        scannedUntil = after = position = event.getPosition();
+      }
+      if (events.size() < SCAN_BATCH) {
+        scanComplete = true;
+        return;
+      }
+    }
+  }
+
+  private void work(BlockingQueue<Found> queue) {
+    try {
+      while (true) {
+        Found found = queue.take();
+        if (found == END) {
+          return;
+        }
+        if (stopRequested) {
+          continue; // drain, so that the scan is never stuck on a full queue
+        }
+        try {
+          if (migrate(found.stream())) {
+            pending.remove(found.seq());
+            streamsMigrated.incrementAndGet();
+          }
+        } catch (Exception e) {
+          streamsFailed.incrementAndGet(); // stays pending => retried by the next run
+          log.warn("Could not migrate {}: {}", found.stream(), e.toString());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // true when the stream is fully migrated, false if stopped half-way
+  private boolean migrate(String source) throws InterruptedException, ExecutionException {
+    String target = targetPrefix + source.substring(sourcePrefix.length());
+    long nextRevision = 0;
+    ExpectedRevision expected = ExpectedRevision.noStream();
+    Optional<RecordedEvent> lastWritten = lastEvent(target);
+    if (lastWritten.isPresent()) {
+      var from = GsonUtil.gson.fromJson(new String(lastWritten.get().getUserMetadata(), UTF_8), MigratedFrom.class);
+      nextRevision = from.revision() + 1;
+      expected = ExpectedRevision.expectedRevision(lastWritten.get().getRevision());
+    }
+    while (!stopRequested) {
+      var options = ReadStreamOptions.get().forwards().fromRevision(nextRevision).maxCount(batchSize);
+      var batch = eventStore.readStream(source, options).get().getEvents();
+      rateLimiter.acquire(batch.size());
+      eventsRead.addAndGet(batch.size());
+      List<EventData> upcasted = new ArrayList<>(batch.size());
+      for (var resolvedEvent : batch) {
+        RecordedEvent event = resolvedEvent.getEvent();
+        byte[] metadata = GsonUtil.gson.toJson(new MigratedFrom(source, event.getRevision())).getBytes(UTF_8);
+        for (EventDataBuilder builder : upcaster.upcast(event)) {
+          upcasted.add(builder.metadataAsBytes(metadata).build());
+        }
+        nextRevision = event.getRevision() + 1;
+      }
+      if (!upcasted.isEmpty()) {
+        var append = AppendToStreamOptions.get().expectedRevision(expected);
+        expected = eventStore.appendToStream(target, append, upcasted.iterator()).get().getNextExpectedRevision();
+        eventsWritten.addAndGet(upcasted.size());
+      }
+      if (batch.size() < batchSize) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Optional<RecordedEvent> lastEvent(String stream) throws InterruptedException, ExecutionException {
+    try {
+      var events = eventStore.readStream(stream, ReadStreamOptions.get().fromEnd().backwards().maxCount(1)).get().getEvents();
+      return events.stream().findFirst().map(ResolvedEvent::getEvent);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof StreamNotFoundException) {
+        return Optional.empty();
+      }
+      throw e;
+    }
+  }
+
+  // all the streams found before this position are migrated
+  private Position watermark() {
+    Position scanned = scannedUntil; // read first: a stream is pending before the scan moves past it
+    var oldestPending = pending.firstEntry();
+    if (oldestPending != null && (scanned == null || oldestPending.getValue().compareTo(scanned) < 0)) {
+      return oldestPending.getValue();
+    }
+    return scanned;
+  }
+
+  private void report() {
+    Status status = status();
+    log.info("Migration {}: {} streams migrated, {} failed, {} remaining{}, {} events read, {} written, {} events/s{}",
+        status.state(), status.streamsMigrated(), status.streamsFailed(), status.streamsRemaining(),
+        status.scanComplete() ? "" : " (still scanning)", status.eventsRead(), status.eventsWritten(),
+        status.eventsPerSecond(), status.etaSeconds() == null ? "" : ", ETA " + status.etaSeconds() + "s");
+    if (status.state() == State.RUNNING || status.state() == State.STOPPING) {
+      saveProgress();
+    }
+  }
+
+  private Position loadProgress() {
+    if (!Files.exists(progressFile)) {
+      return null;
+    }
+    try {
+      var progress = GsonUtil.gson.fromJson(Files.readString(progressFile), Progress.class);
+      return new Position(progress.commit(), progress.prepare());
+    } catch (IOException e) {
+      log.warn("Ignoring unreadable progress file {}: {}", progressFile, e.toString());
+      return null;
+    }
+  }
+
+  private synchronized void saveProgress() {
+    Position watermark = watermark();
+    if (watermark == null) {
+      return;
+    }
+    try {
+      Path absolute = progressFile.toAbsolutePath();
+      Files.createDirectories(absolute.getParent());
+      Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+      Files.writeString(temp, GsonUtil.gson.toJson(new Progress(watermark.getCommitUnsigned(), watermark.getPrepareUnsigned())));
+      Files.move(temp, absolute, ATOMIC_MOVE, REPLACE_EXISTING);
+    } catch (IOException e) {
+      log.warn("Could not save the migration progress: {}", e.toString());
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() throws InterruptedException {
+    stop();
+    Thread running = runner;
+    if (running != null) {
+      running.join(TimeUnit.SECONDS.toMillis(10)); // saves the progress as it ends
+    }
+    reporter.shutdownNow();
+  }
+}
@@ -0,0 +1,30 @@
+package victor.training.sourcing.user.migration;
+
+import com.eventstore.dbclient.EventDataBuilder;
+import com.eventstore.dbclient.RecordedEvent;
+import org.springframework.stereotype.Component;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.domain.UserEvent.UserCreated;
+
+import java.util.List;
+
+// v2: UserCreated has firstName + lastName, not only name (see the upcasting notes in User.apply)
+// - events we can decode are re-encoded in the current event.encoding
+// - others are copied byte for byte
+@Component
+public class UserV2Upcaster implements Upcaster {
+  @Override
+  public List<EventDataBuilder> upcast(RecordedEvent event) {
+    if (!GsonUtil.codecs.knows(event.getEventType())) {
+      return List.of(GsonUtil.copyOf(event));
+    }
+    UserEvent decoded = GsonUtil.fromEventDataSealed(event, UserEvent.class);
+    if (decoded instanceof UserCreated created && created.firstName() == null && created.name() != null) {
+      int space = created.name().indexOf(' ');
+      created.firstName(space < 0 ? created.name() : created.name().substring(0, space));
+      created.lastName(space < 0 ? null : created.name().substring(space + 1));
+    }
+    return List.of(GsonUtil.eventDataBuilder(decoded));
+  }
+}
@@ -1,26 +1,64 @@
 package victor.training.sourcing.user.projection;
 
-import com.eventstore.dbclient.EventStoreDBClient;
-import com.eventstore.dbclient.ReadResult;
 import com.eventstore.dbclient.ReadStreamOptions;
+import com.eventstore.dbclient.RecordedEvent;
 import com.eventstore.dbclient.ResolvedEvent;
-import lombok.RequiredArgsConstructor;
+import com.eventstore.dbclient.StreamNotFoundException;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import victor.training.sourcing.Bulkhead;
 import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EventStore;
 import victor.training.sourcing.user.domain.User;
 import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.domain.UserEvent.*;
+import victor.training.sourcing.user.subscription.ProjectionState;
+import victor.training.sourcing.user.subscription.UserEventDispatcher;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
+import static org.springframework.http.HttpHeaders.IF_NONE_MATCH;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.NOT_MODIFIED;
+import static victor.training.sourcing.user.subscription.UserEventDispatcher.StartFrom.START;
+
+// The GetUserResponse of every user, kept up to date by the subscription => a GET is a map lookup, no event store read.
+// Each view is tagged with the stream revision of the last event changing it = its ETag:
+// If-None-Match with the current one => 304, without building nor serializing anything.
+// A user not in the map yet (eg. GET right after the create, before the subscription saw it) is hydrated once from its
+// stream and put in the map; the subscription then skips the events up to that revision.
+// Eventually consistent: pass minPosition (of your last command) to read your own write.
 @Slf4j
 @RestController
-@RequiredArgsConstructor
-public class GetUserByIdProjection {
-  private final EventStoreDBClient eventStore;
+public class GetUserByIdProjection implements ProjectionState {
+  private final EventStore eventStore;
+  private final Bulkhead eventStoreBulkhead;
+  private final UserEventDispatcher dispatcher;
+  private final Map<String, View> views = new ConcurrentHashMap<>(); // by lowercase email, as in the stream name
+
+  public GetUserByIdProjection(EventStore eventStore, Bulkhead eventStoreBulkhead, UserEventDispatcher dispatcher) {
+    this.eventStore = eventStore;
+    this.eventStoreBulkhead = eventStoreBulkhead;
+    this.dispatcher = dispatcher;
+    dispatcher.subscribe("get-user-by-id", START)
+        .on(UserCreated.class, this::onEvent)
+        .on(UserPersonalDetailsUpdated.class, this::onEvent)
+        .on(UserRoleGranted.class, this::onEvent)
+        .on(UserRoleRevoked.class, this::onEvent)
+        .on(UserEmailConfirmed.class, this::onEvent)
+        .on(UserActivated.class, this::onEvent)
+        .on(UserDeactivated.class, this::onEvent)
+        .checkpointed(this);
+  }
 
   public record GetUserResponse(
       String email,
@@ -31,19 +69,165 @@ public class GetUserByIdProjection {
       Boolean active
   ) {
     public static GetUserResponse fromUser(User user) {
-      return new GetUserResponse(user.email(), user.name(), user.departmentId(), user.roles(), user.emailConfirmed(), user.active());
+      return new GetUserResponse(user.email(), user.name(), user.departmentId(), List.copyOf(user.roles()), user.emailConfirmed(), user.active());
     }
   }
 
+  // revision: of the last event applied to the response
+  private record View(GetUserResponse response, long revision) {
+    String etag() {
+      return "\"" + revision + "\"";
+    }
+  }
+
+  // the events of a user come in order, on the lane of its stream; a GET may have hydrated it meanwhile
+  private void onEvent(UserEvent event, RecordedEvent recordedEvent) {
+    String email = User.emailFromStreamName(recordedEvent.getStreamId());
+    long revision = recordedEvent.getRevision();
+    views.compute(email, (k, view) -> {
+      if (view != null && view.revision() >= revision) {
+        return view; // already included by a hydration
+      }
+      if (view == null && !(event instanceof UserCreated)) {
+        return null; // its start is missing: hydrated at the next GET
+      }
+      return new View(apply(view == null ? null : view.response(), event), revision);
+    });
+  }
+
+  private static GetUserResponse apply(GetUserResponse user, UserEvent event) {
+    return switch (event) {
+      case UserCreated e -> new GetUserResponse(e.email(), e.name(), e.departmentId(), List.of(), false, true);
+      case UserPersonalDetailsUpdated e ->
+          new GetUserResponse(user.email(), e.name(), e.departmentId(), user.roles(), user.emailValidated(), user.active());
+      case UserRoleGranted e -> withRoles(user, e.role(), true);
+      case UserRoleRevoked e -> withRoles(user, e.role(), false);
+      case UserEmailConfirmed e -> new GetUserResponse(user.email(), user.name(), user.departmentId(), user.roles(), true, user.active());
+      case UserActivated e -> new GetUserResponse(user.email(), user.name(), user.departmentId(), user.roles(), user.emailValidated(), true);
+      case UserDeactivated e -> new GetUserResponse(user.email(), user.name(), user.departmentId(), user.roles(), user.emailValidated(), false);
+      default -> user;
+    };
+  }
+
+  private static GetUserResponse withRoles(GetUserResponse user, String role, boolean granted) {
+    List<String> roles = new ArrayList<>(user.roles());
+    if (granted) {
+      roles.add(role);
+    } else {
+      roles.remove(role);
+    }
+    return new GetUserResponse(user.email(), user.name(), user.departmentId(), List.copyOf(roles), user.emailValidated(), user.active());
+  }
 
   @GetMapping("users/{email}")
-  public GetUserResponse getUser(@PathVariable String email) throws ExecutionException, InterruptedException {
-    var readResult = eventStore.readStream("user-" + email, ReadStreamOptions.get().fromStart()).get();
+  public ResponseEntity<GetUserResponse> getUser(@PathVariable String email,
+                                                 @RequestParam(required = false) Long minPosition,
+                                                 @RequestHeader(value = IF_NONE_MATCH, required = false) String ifNoneMatch)
+      throws ExecutionException, InterruptedException {
+    dispatcher.awaitProcessed(minPosition);
+    String key = email.toLowerCase();
+    View view = views.get(key);
+    if (view == null) {
+      view = views.merge(key, hydrate(key), (current, hydrated) -> hydrated.revision() > current.revision() ? hydrated : current);
+    }
+    if (ifNoneMatch != null && matches(ifNoneMatch, view.etag())) {
+      return ResponseEntity.status(NOT_MODIFIED).eTag(view.etag()).build();
+    }
+    return ResponseEntity.ok().eTag(view.etag()).body(view.response());
+  }
 
-    User user = new User();
-    for (var resolvedEvent : readResult.getEvents()) {
-      user.apply(GsonUtil.fromEventDataSealed(resolvedEvent.getEvent(), UserEvent.class));
+  // a list of (maybe weak) ETags, or *
+  private static boolean matches(String ifNoneMatch, String etag) {
+    for (String candidate : ifNoneMatch.split(",")) {
+      String tag = candidate.trim();
+      if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+        return true;
+      }
     }
-    return GetUserResponse.fromUser(user);
+    return false;
+  }
+
+  private View hydrate(String email) throws ExecutionException, InterruptedException {
+    List<ResolvedEvent> events;
+    try {
+      events = eventStoreBulkhead.await(() -> eventStore.readStream(User.stream(email), ReadStreamOptions.get().fromStart())).getEvents();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof StreamNotFoundException) {
+        throw new ResponseStatusException(NOT_FOUND, "No user " + email);
+      }
+      throw e;
+    }
+    GetUserResponse user = null;
+    long revision = -1;
+    for (var resolvedEvent : events) {
+      UserEvent event = GsonUtil.fromEventDataSealed(resolvedEvent.getEvent(), UserEvent.class);
+      GetUserResponse applied = event instanceof UserCreated || user != null ? apply(user, event) : null;
+      if (applied != user) { // only the events changing the response move its revision, as for the subscription
+        user = applied;
+        revision = resolvedEvent.getEvent().getRevision();
+      }
+    }
+    if (user == null) {
+      throw new ResponseStatusException(NOT_FOUND, "No user " + email);
+    }
+    log.debug("Hydrated the view of {} at revision {}", email, revision);
+    return new View(user, revision);
+  }
+
+  // 2: a presence flag before each nullable string
+  @Override
+  public int version() {
+    return 2;
+  }
+
+  @Override
+  public void dump(DataOutput out) throws IOException {
+    Map<String, View> copy = Map.copyOf(views);
+    out.writeInt(copy.size());
+    for (var entry : copy.entrySet()) {
+      GetUserResponse user = entry.getValue().response();
+      out.writeUTF(entry.getKey());
+      out.writeLong(entry.getValue().revision());
+      writeNullable(out, user.email());
+      writeNullable(out, user.name());
+      writeNullable(out, user.departmentId());
+      out.writeInt(user.roles().size());
+      for (String role : user.roles()) {
+        out.writeUTF(role);
+      }
+      out.writeBoolean(user.emailValidated());
+      out.writeBoolean(user.active());
+    }
+  }
+
+  @Override
+  public void restore(DataInput in) throws IOException {
+    int count = in.readInt();
+    Map<String, View> restored = new ConcurrentHashMap<>(count);
+    for (int i = 0; i < count; i++) {
+      String key = in.readUTF();
+      long revision = in.readLong();
+      String email = readNullable(in);
+      String name = readNullable(in);
+      String departmentId = readNullable(in);
+      List<String> roles = new ArrayList<>();
+      for (int r = in.readInt(); r > 0; r--) {
+        roles.add(in.readUTF());
+      }
+      restored.put(key, new View(new GetUserResponse(email, name, departmentId, List.copyOf(roles), in.readBoolean(), in.readBoolean()), revision));
+    }
+    views.clear();
+    views.putAll(restored);
+  }
+
+  private static void writeNullable(DataOutput out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readNullable(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
   }
 }
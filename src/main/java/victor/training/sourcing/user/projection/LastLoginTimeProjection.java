@@ -1,65 +1,160 @@
 package victor.training.sourcing.user.projection;
 
-import com.eventstore.dbclient.*;
+import com.eventstore.dbclient.RecordedEvent;
+import jakarta.validation.constraints.Min;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import victor.training.sourcing.GsonUtil;
 import victor.training.sourcing.user.domain.User;
 import victor.training.sourcing.user.domain.UserEvent.UserLoggedIn;
+import victor.training.sourcing.user.subscription.ProjectionState;
+import victor.training.sourcing.user.subscription.UserEventDispatcher;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.time.LocalDateTime;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
-import static java.util.Comparator.reverseOrder;
-import static java.util.Map.Entry.comparingByValue;
+import static java.time.ZoneOffset.UTC;
+import static org.springframework.format.annotation.DateTimeFormat.ISO.DATE_TIME;
+import static victor.training.sourcing.user.subscription.UserEventDispatcher.StartFrom.START;
 
+// Per application, the last login of each user, ordered by time (newest first) => top-K, a page or
+// "logged in since T" walk only the entries they return, no sorting per request.
+// Written by the dispatcher lanes (the logins of a user always by the same one), read concurrently by requests:
+// on a new login, the user is added at its new place before being removed from the old one => a reader may briefly see them twice.
 @Slf4j
-public class LastLoginTimeProjection extends SubscriptionListener {
-  // {app: {userId: lastLoginTime}}
-  private final Map<String, Map<String, LocalDateTime>> lastLoginPerApplication = new HashMap<>();
+public class LastLoginTimeProjection implements ProjectionState {
+  private static final Comparator<Login> NEWEST_FIRST = Comparator.comparingLong(Login::epochNanos).reversed()
+      .thenComparingInt(Login::userId);
 
-  public LastLoginTimeProjection(EventStoreDBClient eventStore) {
-    eventStore.subscribeToAll(this, SubscribeToAllOptions.get().fromStart());
+  // one object per user & app: a UserIds id and the time as epoch nanos (until year 2262), no String nor LocalDateTime
+  private record Login(int userId, long epochNanos) {}
+
+  private static final class AppLogins {
+    private Login[] byUser = new Login[16]; // indexed by user id; only touched by writers, under the lock of put
+    private final ConcurrentSkipListSet<Login> byTime = new ConcurrentSkipListSet<>(NEWEST_FIRST);
+
+    synchronized void put(Login login) {
+      byTime.add(login);
+      if (login.userId() >= byUser.length) {
+        byUser = Arrays.copyOf(byUser, Math.max(byUser.length * 2, login.userId() + 1));
+      }
+      Login previous = byUser[login.userId()];
+      byUser[login.userId()] = login;
+      if (previous != null && !previous.equals(login)) {
+        byTime.remove(previous);
+      }
+    }
+  }
+
+  private final UserIds userIds;
+  private volatile Map<String, AppLogins> lastLoginPerApplication = new ConcurrentHashMap<>();
+
+  public LastLoginTimeProjection(UserEventDispatcher dispatcher, UserIds userIds) {
+    this.userIds = userIds;
+    dispatcher.subscribe("last-login-time", START)
+        .on(UserLoggedIn.class, this::onLoggedIn)
+        .checkpointed(this);
+  }
+
+  private void onLoggedIn(UserLoggedIn event, RecordedEvent recordedEvent) {
+    var streamId = recordedEvent.getStreamId();
+    var email = User.emailFromStreamName(streamId);
+    lastLoginPerApplication.computeIfAbsent(event.application(), k -> new AppLogins())
+        .put(new Login(userIds.idOf(email), toEpochNanos(event.loginTime())));
+  }
+
+  private static long toEpochNanos(LocalDateTime time) {
+    return time.toEpochSecond(UTC) * 1_000_000_000L + time.getNano();
+  }
+
+  private static LocalDateTime fromEpochNanos(long epochNanos) {
+    return LocalDateTime.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L), (int) Math.floorMod(epochNanos, 1_000_000_000L), UTC);
+  }
+
+  @Override
+  public int version() {
+    return 1;
   }
 
   @Override
-  public void onEvent(Subscription subscription, ResolvedEvent resolvedEvent) {
-    var eventOpt = GsonUtil.tryParseEvent(resolvedEvent.getEvent(), UserLoggedIn.class);
-    if (eventOpt.isEmpty()) {
-      return;
+  public void dump(DataOutput out) throws IOException {
+    out.writeInt(lastLoginPerApplication.size());
+    for (var app : lastLoginPerApplication.entrySet()) {
+      out.writeUTF(app.getKey());
+      out.writeInt(app.getValue().byTime.size());
+      for (var login : app.getValue().byTime) {
+        out.writeUTF(userIds.emailOf(login.userId()));
+        out.writeLong(Math.floorDiv(login.epochNanos(), 1_000_000_000L));
+        out.writeInt((int) Math.floorMod(login.epochNanos(), 1_000_000_000L));
+      }
     }
-    var event = eventOpt.get();
-    Map<String, LocalDateTime> logins = lastLoginPerApplication.computeIfAbsent(event.application(), k -> new HashMap<>());
-    var streamId = resolvedEvent.getEvent().getStreamId();
-    var email = User.emailFromStreamName(streamId);
-    logins.put(email, event.loginTime());
   }
 
-  private List<LastLoginTimeProjectionView.LastLoginTimeResponse> getLastLoginPerApp(String application) {
-    Map<String, LocalDateTime> logins = this.lastLoginPerApplication.getOrDefault(application, Map.of());
-    return logins.entrySet().stream()
-        .sorted(comparingByValue(reverseOrder()))
-        .map(e -> new LastLoginTimeProjectionView.LastLoginTimeResponse(e.getKey(), e.getValue()))
+  @Override
+  public void restore(DataInput in) throws IOException {
+    Map<String, AppLogins> restored = new ConcurrentHashMap<>();
+    int apps = in.readInt();
+    for (int i = 0; i < apps; i++) {
+      AppLogins logins = restored.computeIfAbsent(in.readUTF(), k -> new AppLogins());
+      int users = in.readInt();
+      for (int j = 0; j < users; j++) {
+        int userId = userIds.idOf(in.readUTF());
+        logins.put(new Login(userId, in.readLong() * 1_000_000_000L + in.readInt()));
+      }
+    }
+    lastLoginPerApplication = restored;
+  }
+
+  // newest first; since = only logins at or after it
+  List<LastLoginTimeProjectionView.LastLoginTimeResponse> getLastLoginPerApp(String application, LocalDateTime since, int page, int size) {
+    if (page < 0 || size < 1) {
+      throw new IllegalArgumentException("page must be >= 0 and size >= 1");
+    }
+    AppLogins logins = lastLoginPerApplication.get(application);
+    if (logins == null) {
+      return List.of();
+    }
+    long sinceNanos = since == null ? Long.MIN_VALUE : toEpochNanos(since);
+    return logins.byTime.stream()
+        .takeWhile(login -> login.epochNanos() >= sinceNanos)
+        .skip((long) page * size) // as long: no int overflow
+        .limit(size)
+        .map(login -> new LastLoginTimeProjectionView.LastLoginTimeResponse(userIds.emailOf(login.userId()), fromEpochNanos(login.epochNanos())))
         .toList();
   }
 
   @RestController
   public static class LastLoginTimeProjectionView {
+    private final UserEventDispatcher dispatcher;
     private final LastLoginTimeProjection projection;
 
-    public LastLoginTimeProjectionView(EventStoreDBClient eventStore) {
-      projection = new LastLoginTimeProjection(eventStore);
+    public LastLoginTimeProjectionView(UserEventDispatcher dispatcher, UserIds userIds) {
+      this.dispatcher = dispatcher;
+      projection = new LastLoginTimeProjection(dispatcher, userIds);
     }
 
     public record LastLoginTimeResponse(String userId, LocalDateTime loginTime) {}
 
+    // paged: by default only the 100 most recent logins (was: all of them)
     @GetMapping("logins/{application}")
-    public List<LastLoginTimeResponse> getLastLogins(@PathVariable String application) {
-      return projection.getLastLoginPerApp(application);
+    public List<LastLoginTimeResponse> getLastLogins(@PathVariable String application,
+                                                     @RequestParam(required = false) @DateTimeFormat(iso = DATE_TIME) LocalDateTime since,
+                                                     @RequestParam(defaultValue = "0") @Min(0) int page,
+                                                     @RequestParam(defaultValue = "100") @Min(1) int size,
+                                                     @RequestParam(required = false) Long minPosition) throws InterruptedException {
+      dispatcher.awaitProcessed(minPosition);
+      return projection.getLastLoginPerApp(application, since, page, size);
     }
 
   }
@@ -1,28 +1,56 @@
 package victor.training.sourcing.user.projection;
 
-import com.eventstore.dbclient.EventStoreDBClient;
-import com.eventstore.dbclient.ReadStreamOptions;
-import lombok.RequiredArgsConstructor;
+import com.eventstore.dbclient.RecordedEvent;
+import jakarta.validation.constraints.Min;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
-import victor.training.sourcing.GsonUtil;
 import victor.training.sourcing.user.domain.User;
-import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.domain.UserEvent.UserCreated;
+import victor.training.sourcing.user.domain.UserEvent.UserPersonalDetailsUpdated;
+import victor.training.sourcing.user.subscription.UserEventDispatcher;
 
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+
+import static victor.training.sourcing.user.subscription.UserEventDispatcher.StartFrom.START;
 
 @Slf4j
 @RestController
-@RequiredArgsConstructor
 public class SearchUserProjection {
-  private final EventStoreDBClient eventStore;
+  private final UserSearchIndex index = new UserSearchIndex();
+  private final UserEventDispatcher dispatcher;
+
+  public SearchUserProjection(UserEventDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+    dispatcher.subscribe("search-users", START)
+        .on(UserCreated.class, this::onCreated)
+        .on(UserPersonalDetailsUpdated.class, this::onDetailsUpdated)
+        .ordered() // the index has a single writer
+        .checkpointed(index);
+  }
 
   public record UserSearchCriteria(String namePart, String emailPart){}
   public record UserSearchResult(String email, String name, String departmentId) {}
 
+  private void onCreated(UserCreated event, RecordedEvent recordedEvent) {
+    index.put(User.emailFromStreamName(recordedEvent.getStreamId()), event.name(), event.departmentId());
+  }
+
+  private void onDetailsUpdated(UserPersonalDetailsUpdated event, RecordedEvent recordedEvent) {
+    index.put(User.emailFromStreamName(recordedEvent.getStreamId()), event.name(), event.departmentId());
+  }
+
+  // substring match, case-insensitive; size is capped at 1000
   @GetMapping("users/search")
-  public void search(@RequestParam UserSearchCriteria criteria) {
-    // TODO
+  public List<UserSearchResult> search(UserSearchCriteria criteria,
+                                       @RequestParam(defaultValue = "0") @Min(0) int page,
+                                       @RequestParam(defaultValue = "20") @Min(1) int size,
+                                       @RequestParam(required = false) Long minPosition) throws InterruptedException {
+    dispatcher.awaitProcessed(minPosition);
+    return index.search(criteria.namePart(), criteria.emailPart(), page, Math.min(size, 1000));
+  }
+
+  @GetMapping("users/search/stats")
+  public UserSearchIndex.Stats stats() {
+    return index.stats();
   }
 }
@@ -0,0 +1,128 @@
+package victor.training.sourcing.user.projection;
+
+import org.springframework.stereotype.Component;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+// Shared dictionary: user email (as in the stream name) <-> dense int id (0, 1, 2...), so that projections
+// hold ints and bitmaps of ints instead of a copy of the email per user per set.
+// - ids are assigned on first sight and never reused; not persisted => checkpoints store emails, not ids
+// - open addressing over an int[] of id+1 (0 = free): no Entry nor boxed Integer per user
+// - lookups never block: optimistic reads, retried under the read lock if an id was assigned meanwhile
+@Component
+public class UserIds {
+  private final StampedLock lock = new StampedLock();
+  private String[] emails = new String[1024];
+  private int[] slots = new int[2048]; // at most half full
+  private int count;
+
+  public int idOf(String email) {
+    int id = find(email);
+    if (id >= 0) {
+      return id;
+    }
+    long stamp = lock.writeLock();
+    try {
+      id = probe(email);
+      return id >= 0 ? id : assign(email);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  // -1 if never seen
+  public int find(String email) {
+    long stamp = lock.tryOptimisticRead();
+    int id = probe(email);
+    if (lock.validate(stamp)) {
+      return id;
+    }
+    stamp = lock.readLock();
+    try {
+      return probe(email);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  public String emailOf(int id) {
+    long stamp = lock.tryOptimisticRead();
+    String[] snapshot = emails;
+    String email = id < snapshot.length ? snapshot[id] : null;
+    if (lock.validate(stamp)) {
+      return email;
+    }
+    stamp = lock.readLock();
+    try {
+      return emails[id];
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  public Set<String> emailsOf(RoaringBitmap ids) {
+    Set<String> result = new HashSet<>(ids.getCardinality() * 2);
+    ids.forEach((int id) -> result.add(emailOf(id)));
+    return result;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  // tolerates a torn view of the arrays: the caller validates it
+  private int probe(String email) {
+    int[] table = slots;
+    String[] names = emails;
+    int mask = table.length - 1;
+    for (int i = hash(email) & mask; ; i = (i + 1) & mask) {
+      int slot = table[i];
+      if (slot == 0) {
+        return -1;
+      }
+      if (slot - 1 < names.length && email.equals(names[slot - 1])) {
+        return slot - 1;
+      }
+    }
+  }
+
+  private int assign(String email) {
+    int id = count;
+    if (id == emails.length) {
+      emails = Arrays.copyOf(emails, id * 2);
+    }
+    emails[id] = email;
+    if ((id + 1) * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    insert(slots, email, id);
+    count = id + 1;
+    return id;
+  }
+
+  private void rehash(int capacity) {
+    int[] table = new int[capacity];
+    for (int id = 0; id < count; id++) {
+      insert(table, emails[id], id);
+    }
+    slots = table;
+  }
+
+  private static void insert(int[] table, String email, int id) {
+    int mask = table.length - 1;
+    int i = hash(email) & mask;
+    while (table[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    table[i] = id + 1;
+  }
+
+  private static int hash(String email) {
+    int h = email.hashCode();
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,242 @@
+package victor.training.sourcing.user.projection;
+
+import victor.training.sourcing.user.projection.SearchUserProjection.UserSearchResult;
+import victor.training.sourcing.user.subscription.ProjectionState;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Locale.ROOT;
+
+// In-memory substring search over the name and email of users, via a trigram index:
+// - each user gets a dense int id; "john" in name => postings of trigrams "joh","ohn" += id
+// - a query walks the shortest postings list among its trigrams, and verifies each candidate
+//   (the trigrams of a part all matching does not yet mean the part matches)
+// - parts shorter than 3 chars can't use the index => a scan of all users, stopped as soon as the page is full
+// Written by a single thread, read concurrently: postings and docs are append-only arrays published via volatile.
+// Memory per user is bounded by indexing at most MAX_INDEXED_CHARS per field; the (few) users with a longer name or
+// email are verified by every indexed query too, so that a match beyond those chars is still found.
+// The postings left stale by name changes are dropped by rebuilding the index once they outnumber the live ones.
+public class UserSearchIndex implements ProjectionState {
+  static final int MAX_INDEXED_CHARS = 64;
+  private static final long NAME = 0L, EMAIL = 1L;
+
+  private record Doc(String email, String name, String departmentId, String emailLower, String nameLower) {}
+
+  private final Map<String, Integer> idByEmail = new HashMap<>(); // only touched by the writer
+  private volatile Doc[] docs = new Doc[1024];
+  private volatile int docCount;
+  private volatile Map<Long, Postings> postings = new ConcurrentHashMap<>();
+  private final Postings longDocs = new Postings(); // ids of the users with a field longer than MAX_INDEXED_CHARS
+  private final BitSet isLongDoc = new BitSet(); // only touched by the writer
+  private long livePostings;
+  private long stalePostings;
+
+  public record Stats(int users, long postings, long stalePostings, int trigrams, long estimatedBytes, long bytesPerUser) {}
+
+  public void put(String email, String name, String departmentId) {
+    String emailLower = email.toLowerCase(ROOT);
+    Integer existingId = idByEmail.get(emailLower);
+    Doc doc = new Doc(email, name, departmentId, emailLower, name == null ? "" : name.toLowerCase(ROOT));
+    if (existingId == null) {
+      int id = docCount;
+      if (id == docs.length) {
+        docs = Arrays.copyOf(docs, id * 2);
+      }
+      docs[id] = doc;
+      docCount = id + 1; // publishes the doc to readers
+      idByEmail.put(emailLower, id);
+      index(id, EMAIL, emailLower);
+      index(id, NAME, doc.nameLower());
+      trackIfLong(id, doc);
+    } else {
+      Doc old = docs[existingId];
+      docs[existingId] = doc;
+      trackIfLong(existingId, doc);
+      Set<Long> oldTrigrams = trigrams(NAME, old.nameLower());
+      Set<Long> newTrigrams = trigrams(NAME, doc.nameLower());
+      for (Long trigram : newTrigrams) {
+        if (!oldTrigrams.contains(trigram)) {
+          postings.computeIfAbsent(trigram, k -> new Postings()).add(existingId);
+          livePostings++;
+        }
+      }
+      oldTrigrams.removeAll(newTrigrams);
+      stalePostings += oldTrigrams.size();
+      livePostings -= oldTrigrams.size();
+      if (stalePostings > livePostings) {
+        rebuild();
+      }
+    }
+  }
+
+  private void trackIfLong(int id, Doc doc) {
+    if (!isLongDoc.get(id) && (doc.emailLower().length() > MAX_INDEXED_CHARS || doc.nameLower().length() > MAX_INDEXED_CHARS)) {
+      isLongDoc.set(id);
+      longDocs.add(id);
+    }
+  }
+
+  private void index(int id, long field, String text) {
+    for (Long trigram : trigrams(field, text)) {
+      postings.computeIfAbsent(trigram, k -> new Postings()).add(id);
+      livePostings++;
+    }
+  }
+
+  private void rebuild() {
+    Map<Long, Postings> rebuilt = new ConcurrentHashMap<>();
+    int count = docCount;
+    for (int id = 0; id < count; id++) {
+      Doc doc = docs[id];
+      for (Long trigram : trigrams(EMAIL, doc.emailLower())) {
+        rebuilt.computeIfAbsent(trigram, k -> new Postings()).add(id);
+      }
+      for (Long trigram : trigrams(NAME, doc.nameLower())) {
+        rebuilt.computeIfAbsent(trigram, k -> new Postings()).add(id);
+      }
+    }
+    postings = rebuilt;
+    livePostings = rebuilt.values().stream().mapToLong(p -> p.size).sum();
+    stalePostings = 0;
+  }
+
+  public List<UserSearchResult> search(String namePart, String emailPart, int page, int size) {
+    if (page < 0 || size < 1) {
+      throw new IllegalArgumentException("page must be >= 0 and size >= 1");
+    }
+    String name = namePart == null ? "" : namePart.toLowerCase(ROOT);
+    String email = emailPart == null ? "" : emailPart.toLowerCase(ROOT);
+    Set<Long> queryTrigrams = trigrams(NAME, name);
+    queryTrigrams.addAll(trigrams(EMAIL, email));
+
+    long skip = (long) page * size;
+    List<UserSearchResult> results = new ArrayList<>(size);
+    if (queryTrigrams.isEmpty()) { // too short for the index
+      int count = docCount;
+      Doc[] docsSnapshot = docs; // read after docCount: holds at least count docs (see put)
+      for (int id = 0; id < count && results.size() < size; id++) {
+        if (matches(docsSnapshot[id], name, email) && skip-- <= 0) {
+          results.add(toResult(docsSnapshot[id]));
+        }
+      }
+      return results;
+    }
+    Postings shortest = null;
+    Map<Long, Postings> postingsSnapshot = postings;
+    for (Long trigram : queryTrigrams) {
+      Postings candidate = postingsSnapshot.get(trigram);
+      if (candidate == null) {
+        shortest = EMPTY; // appears nowhere in the indexed chars: only a long field may match
+        break;
+      }
+      if (shortest == null || candidate.size < shortest.size) {
+        shortest = candidate;
+      }
+    }
+    BitSet seen = new BitSet();
+    for (Postings candidates : new Postings[]{shortest, longDocs}) {
+      int count = candidates.size; // read size before ids (see Postings)
+      int[] ids = candidates.ids;
+      Doc[] docsSnapshot = docs; // read after size: holds the docs of all those ids, put before being indexed
+      for (int i = 0; i < count && results.size() < size; i++) {
+        int id = ids[i];
+        if (seen.get(id)) continue; // re-added after a name change back and forth, or also a long doc
+        seen.set(id);
+        if (matches(docsSnapshot[id], name, email) && skip-- <= 0) {
+          results.add(toResult(docsSnapshot[id]));
+        }
+      }
+    }
+    return results;
+  }
+
+  private static boolean matches(Doc doc, String name, String email) {
+    return doc.nameLower().contains(name) && doc.emailLower().contains(email);
+  }
+
+  private static UserSearchResult toResult(Doc doc) {
+    return new UserSearchResult(doc.email(), doc.name(), doc.departmentId());
+  }
+
+  private static Set<Long> trigrams(long field, String text) {
+    int length = Math.min(text.length(), MAX_INDEXED_CHARS);
+    Set<Long> trigrams = new HashSet<>();
+    for (int i = 0; i + 3 <= length; i++) {
+      trigrams.add(field << 48 | (long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2));
+    }
+    return trigrams;
+  }
+
+  public Stats stats() {
+    int users = docCount;
+    long postingBytes = 0;
+    for (Postings p : postings.values()) {
+      postingBytes += 16 + 16 + 4L * p.ids.length + 64; // object + array headers + ids + map entry & boxed key
+    }
+    long docBytes = 0;
+    Doc[] snapshot = docs;
+    for (int id = 0; id < users; id++) {
+      Doc doc = snapshot[id];
+      docBytes += 32 + 8 + stringBytes(doc.email()) + stringBytes(doc.name()) + stringBytes(doc.departmentId())
+                  + (doc.emailLower() == doc.email() ? 0 : stringBytes(doc.emailLower()))
+                  + (doc.nameLower() == doc.name() ? 0 : stringBytes(doc.nameLower()));
+    }
+    long idMapBytes = users * 48L; // map entry + boxed id; the key is the doc's emailLower
+    long total = postingBytes + docBytes + idMapBytes;
+    return new Stats(users, livePostings + stalePostings, stalePostings, postings.size(), total, users == 0 ? 0 : total / users);
+  }
+
+  @Override
+  public int version() {
+    return 1;
+  }
+
+  @Override
+  public void dump(DataOutput out) throws IOException {
+    int count = docCount;
+    out.writeInt(count);
+    for (int id = 0; id < count; id++) {
+      Doc doc = docs[id];
+      out.writeUTF(doc.email());
+      out.writeUTF(Objects.toString(doc.name(), ""));
+      out.writeUTF(Objects.toString(doc.departmentId(), ""));
+    }
+  }
+
+  @Override
+  public void restore(DataInput in) throws IOException {
+    int count = in.readInt();
+    List<String[]> restored = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      restored.add(new String[]{in.readUTF(), in.readUTF(), in.readUTF()});
+    }
+    // only ever restored at startup, into an empty index
+    for (String[] doc : restored) {
+      put(doc[0], doc[1], doc[2]);
+    }
+  }
+
+  private static long stringBytes(String s) {
+    return s == null ? 0 : 40 + s.length(); // header + value array, Latin-1 compact strings
+  }
+
+  private static final Postings EMPTY = new Postings();
+
+  // append-only list of user ids; readers see a consistent prefix by reading size before ids
+  private static final class Postings {
+    private volatile int[] ids = new int[4];
+    private volatile int size;
+
+    void add(int id) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size] = id;
+      size = size + 1;
+    }
+  }
+}
@@ -1,108 +1,176 @@
 package victor.training.sourcing.user.projection;
 
-import com.eventstore.dbclient.*;
-import lombok.SneakyThrows;
+import com.eventstore.dbclient.RecordedEvent;
 import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import victor.training.sourcing.GsonUtil;
 import victor.training.sourcing.user.domain.User;
 import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.subscription.ProjectionState;
+import victor.training.sourcing.user.subscription.Rebuildable;
+import victor.training.sourcing.user.subscription.UserEventDispatcher;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.time.Instant;
-import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.StampedLock;
 
-import static java.util.stream.Collectors.toSet;
+import static victor.training.sourcing.user.subscription.UserEventDispatcher.StartFrom.START;
 
 
 @RestController
 public class UsersThatCanLoginProjection {
-  private final Projector projection;
-  private final EventStoreDBClient eventStore;
+  private final UserEventDispatcher dispatcher;
+  private final UsersThatCanLoginTimeMachine timeMachine;
+  private volatile Projector projection; // replaced by a rebuild (see ProjectionRebuilds)
+
+  public UsersThatCanLoginProjection(UserEventDispatcher dispatcher, UsersThatCanLoginTimeMachine timeMachine, UserIds userIds) {
+    this.dispatcher = dispatcher;
+    this.timeMachine = timeMachine;
+    projection = Projector.empty(userIds);
+    var subscriber = dispatcher.subscribe("users-that-can-login", START)
+        .ordered() // for the time machine
+        .checkpointed(projection)
+        .rebuildable(new Rebuildable<Projector>() {
+          public Projector emptyState() {
+            return Projector.empty(userIds);
+          }
+
+          public void apply(Projector state, UserEvent event, RecordedEvent recordedEvent) {
+            state.apply(event, recordedEvent);
+          }
 
-  public UsersThatCanLoginProjection(EventStoreDBClient eventStore) {
-    this.eventStore = eventStore;
-    projection = new Projector(this.eventStore);
+          public void install(Projector state) {
+            projection = state;
+            timeMachine.reset(); // its copies are of the previous state
+          }
+        });
+    for (Class<? extends UserEvent> eventType : Projector.EVENTS) {
+      subscriber.on(eventType, (event, recordedEvent) -> {
+        Projector live = projection;
+        live.apply(event, recordedEvent);
+        timeMachine.afterApply(live, recordedEvent);
+      });
+    }
   }
 
   @Slf4j
-  public static class Projector extends SubscriptionListener {
-    // TODO: Business Rule: a user can login if it's active and its email was confirmed
+  public static class Projector implements ProjectionState {
+    // Business Rule: a user can login if it's active and its email was confirmed
     // - a user that did not YET confirmed its email address cannot login
     // - a user that was banned (active=false) cannot login
 
-    // for performance you can memoize this data in a cache =>
-    // make the read projection persistent eg in Redis/Mongo/SQL
-    private Set<String> activeUsers = new HashSet<>();
-    private Set<String> confirmedUsers = new HashSet<>();
-
-    @SneakyThrows
-    public Projector(EventStoreDBClient eventStore) {
-      eventStore.subscribeToAll(this, SubscribeToAllOptions.get()
-//          .filter(SubscriptionFilter.newBuilder().addStreamNamePrefix("user-").build())
-          .fromStart()).get(); //delay the tests until the subscribe is performed
+    // Written by one thread (its dispatcher lane), read by any number of HTTP threads:
+    // - users are UserIds, the state is 2 compressed bitmaps: active & emailConfirmed => can login = active AND confirmed
+    // - readers AND under a read lock: concurrent with each other, never with a write (an optimistic read is not safe
+    //   here: RoaringBitmap.and may loop or throw on containers being mutated, before validate() can tell)
+    private final UserIds userIds;
+    private final RoaringBitmap active;
+    private final RoaringBitmap emailConfirmed;
+    private final StampedLock lock = new StampedLock();
+
+    static final Set<Class<? extends UserEvent>> EVENTS = Set.of(
+        UserEvent.UserCreated.class,
+        UserEvent.UserEmailConfirmed.class,
+        UserEvent.UserActivated.class,
+        UserEvent.UserDeactivated.class);
+
+    private Projector(UserIds userIds, RoaringBitmap active, RoaringBitmap emailConfirmed) {
+      this.userIds = userIds;
+      this.active = active;
+      this.emailConfirmed = emailConfirmed;
     }
 
-    public Projector(EventStoreDBClient eventStore, Long asOfPosition) throws ExecutionException, InterruptedException {
-      var done = new CompletableFuture<>();
+    // the live one, a rebuild, or detached for replays as-of a past moment
+    static Projector empty(UserIds userIds) {
+      return new Projector(userIds, new RoaringBitmap(), new RoaringBitmap());
+    }
 
-      eventStore.subscribeToAll(new SubscriptionListener() {
-        @Override
-        public void onEvent(Subscription subscription, ResolvedEvent event) {
-          System.out.println(event.getEvent().getPosition().getCommitUnsigned());
-          if (event.getEvent().getPosition().getCommitUnsigned() > asOfPosition)
-            return; // ignore later
-          Projector.this.onEvent(subscription,event);
-        }
-        @Override
-        public void onCaughtUp(Subscription subscription) {
-          done.complete("Done");
-        }
-      }, SubscribeToAllOptions.get().fromStart());
-      done.get();
+    // of the live state: only by its writer thread; checkpoints are never written
+    Projector copy() {
+      return new Projector(userIds, active.clone(), emailConfirmed.clone());
     }
 
-    public Projector(EventStoreDBClient eventStore, Instant asOfInstant) throws ExecutionException, InterruptedException {
-      var done = new CompletableFuture<>();
+    static boolean handles(String eventType) {
+      return EVENTS.stream().anyMatch(type -> type.getSimpleName().equals(eventType));
+    }
 
-      eventStore.subscribeToAll(new SubscriptionListener() {
-        @Override
-        public void onEvent(Subscription subscription, ResolvedEvent event) {
-          System.out.println("Saw " + event);
-          if (event.getEvent().getCreated().isBefore(asOfInstant)) {
-            Projector.this.onEvent(subscription, event);
+    void apply(UserEvent event, RecordedEvent recordedEvent) {
+      String email = User.emailFromStreamName(recordedEvent.getStreamId());
+      log.debug("Processing {} > {}", email, event);
+      int id = userIds.idOf(email);
+      long stamp = lock.writeLock();
+      try {
+        switch (event) {
+          case UserEvent.UserCreated ignored -> {
+            active.add(id);
+            emailConfirmed.remove(id);
+          }
+          case UserEvent.UserEmailConfirmed ignored -> emailConfirmed.add(id);
+          case UserEvent.UserActivated ignored -> active.add(id);
+          case UserEvent.UserDeactivated ignored -> active.remove(id);
+          default -> {
           }
         }
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
 
-        @Override
-        public void onCaughtUp(Subscription subscription) {
-          done.complete("Done");
-        }
-      },
-          SubscribeToAllOptions.get().fromStart());
-      done.get();
+    @Override
+    public int version() {
+      return 2;
     }
 
+    // by email, as ids are only valid until a restart; users neither active nor confirmed are the default
     @Override
-    public void onEvent(Subscription subscription, ResolvedEvent resolvedEvent) {
-      var streamId = resolvedEvent.getEvent().getStreamId();
-      String email = User.emailFromStreamName(streamId);
-      UserEvent event = GsonUtil.fromEventDataSealed(resolvedEvent.getEvent(), UserEvent.class);
-      log.info("Processing {} > {}",email, event);
-      switch(event) {
-        case UserEvent.UserActivated ignored -> activeUsers.add(email);
-        default -> {/*ignored*/}
+    public void dump(DataOutput out) throws IOException {
+      RoaringBitmap known = RoaringBitmap.or(active, emailConfirmed);
+      out.writeInt(known.getCardinality());
+      for (int id : known) {
+        out.writeUTF(userIds.emailOf(id));
+        out.writeBoolean(active.contains(id));
+        out.writeBoolean(emailConfirmed.contains(id));
+      }
+    }
+
+    @Override
+    public void restore(DataInput in) throws IOException {
+      int size = in.readInt();
+      RoaringBitmap restoredActive = new RoaringBitmap();
+      RoaringBitmap restoredConfirmed = new RoaringBitmap();
+      for (int i = 0; i < size; i++) {
+        int id = userIds.idOf(in.readUTF());
+        if (in.readBoolean()) restoredActive.add(id);
+        if (in.readBoolean()) restoredConfirmed.add(id);
+      }
+      long stamp = lock.writeLock();
+      try {
+        active.clear();
+        active.or(restoredActive);
+        emailConfirmed.clear();
+        emailConfirmed.or(restoredConfirmed);
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    RoaringBitmap getIdsThatCanLogin() {
+      long stamp = lock.readLock();
+      try {
+        return RoaringBitmap.and(active, emailConfirmed);
+      } finally {
+        lock.unlockRead(stamp);
       }
     }
 
-    private Set<String> getUsersThatCanLogin() {
-      return confirmedUsers.stream()
-          .filter(activeUsers::contains)
-          .collect(toSet());
+    Set<String> getUsersThatCanLogin() {
+      return userIds.emailsOf(getIdsThatCanLogin());
     }
   }
 
@@ -111,15 +179,15 @@ public class UsersThatCanLoginProjection {
   @GetMapping("/users-to-login")
   public Set<String> getUsersToLogin(
       @RequestParam(required = false) Long asOfPosition,
-      @RequestParam(required = false) String asOfTime
+      @RequestParam(required = false) String asOfTime,
+      @RequestParam(required = false) Long minPosition
   ) throws ExecutionException, InterruptedException {
+    dispatcher.awaitProcessed(minPosition);
     if (asOfPosition != null) {
-      var projection = new Projector(eventStore, asOfPosition);
-      return projection.getUsersThatCanLogin();
+      return timeMachine.asOfPosition(asOfPosition);
     }
     if (asOfTime != null) {
-      var instant = Instant.parse(asOfTime);
-      return new Projector(eventStore, instant).getUsersThatCanLogin();
+      return timeMachine.asOfTime(Instant.parse(asOfTime));
     }
     return projection.getUsersThatCanLogin();
   }
@@ -0,0 +1,146 @@
+package victor.training.sourcing.user.projection;
+
+import com.eventstore.dbclient.Position;
+import com.eventstore.dbclient.ReadAllOptions;
+import com.eventstore.dbclient.RecordedEvent;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EventStore;
+import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.projection.UsersThatCanLoginProjection.Projector;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+
+// Answers "who could login as of position/time X" without replaying $all from the start:
+// - the live projector leaves an immutable copy of its state every N events, indexed by position and time
+// - a query copies the nearest earlier checkpoint and replays only from there, stopping exactly at X
+// - replays run on a small bounded pool; when full, queries are refused rather than starving live traffic
+// To keep memory bounded over the years, when too many checkpoints pile up, every other one is dropped
+// and the interval doubles => checkpoints get sparser for older history.
+@Slf4j
+@Component
+public class UsersThatCanLoginTimeMachine {
+  private static final int READ_BATCH = 512;
+
+  private final EventStore eventStore;
+  private final UserIds userIds;
+  private final int maxCheckpoints;
+  private final ThreadPoolExecutor replayExecutor;
+  private final ConcurrentSkipListMap<Long, Checkpoint> byPosition = new ConcurrentSkipListMap<>();
+  private final ConcurrentSkipListMap<Instant, Checkpoint> byTime = new ConcurrentSkipListMap<>();
+  private int everyEvents; // only accessed by the lane of the projector
+  private int eventsSinceCheckpoint;
+
+  private record Checkpoint(Position position, Instant time, Projector state) {}
+
+  public UsersThatCanLoginTimeMachine(EventStore eventStore,
+                                      UserIds userIds,
+                                      @Value("${projection.temporal.checkpoint-every-events:1000}") int everyEvents,
+                                      @Value("${projection.temporal.max-checkpoints:256}") int maxCheckpoints,
+                                      @Value("${projection.temporal.replay-threads:2}") int replayThreads,
+                                      @Value("${projection.temporal.replay-queue:8}") int replayQueue) {
+    this.eventStore = eventStore;
+    this.userIds = userIds;
+    this.everyEvents = everyEvents;
+    this.maxCheckpoints = maxCheckpoints;
+    this.replayExecutor = new ThreadPoolExecutor(replayThreads, replayThreads, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(replayQueue),
+        r -> new Thread(r, "as-of-replay"),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  // called by the live projector after each event it applied
+  void afterApply(Projector live, RecordedEvent event) {
+    if (++eventsSinceCheckpoint < everyEvents) {
+      return;
+    }
+    eventsSinceCheckpoint = 0;
+    var checkpoint = new Checkpoint(event.getPosition(), event.getCreated(), live.copy());
+    byPosition.put(event.getPosition().getCommitUnsigned(), checkpoint);
+    byTime.put(event.getCreated(), checkpoint);
+    if (byPosition.size() > maxCheckpoints) {
+      thinOut();
+    }
+  }
+
+  private void thinOut() {
+    boolean drop = false;
+    for (Iterator<Map.Entry<Long, Checkpoint>> it = byPosition.entrySet().iterator(); it.hasNext(); drop = !drop) {
+      var entry = it.next();
+      if (drop) {
+        it.remove();
+        byTime.remove(entry.getValue().time());
+      }
+    }
+    everyEvents *= 2;
+    log.info("Kept {} as-of checkpoints, next one every {} events", byPosition.size(), everyEvents);
+  }
+
+  // the projector was rebuilt with another logic: the next as-of queries replay from the start, until new copies pile up
+  void reset() {
+    byPosition.clear();
+    byTime.clear();
+  }
+
+  public Set<String> asOfPosition(long commitPosition) throws InterruptedException, ExecutionException {
+    var floor = byPosition.floorEntry(commitPosition);
+    return replay(floor == null ? null : floor.getValue(),
+        event -> event.getPosition().getCommitUnsigned() > commitPosition);
+  }
+
+  public Set<String> asOfTime(Instant instant) throws InterruptedException, ExecutionException {
+    var floor = byTime.lowerEntry(instant);
+    return replay(floor == null ? null : floor.getValue(),
+        event -> !event.getCreated().isBefore(instant));
+  }
+
+  private Set<String> replay(Checkpoint from, Predicate<RecordedEvent> isPastTarget) throws InterruptedException, ExecutionException {
+    try {
+      return replayExecutor.submit(() -> replayFrom(from, isPastTarget)).get();
+    } catch (RejectedExecutionException e) {
+      throw new ResponseStatusException(SERVICE_UNAVAILABLE, "Too many as-of queries running, retry later");
+    }
+  }
+
+  private Set<String> replayFrom(Checkpoint checkpoint, Predicate<RecordedEvent> isPastTarget) throws InterruptedException, ExecutionException {
+    Projector state = checkpoint == null ? Projector.empty(userIds) : checkpoint.state().copy();
+    Position position = checkpoint == null ? null : checkpoint.position();
+    while (true) {
+      var options = ReadAllOptions.get().forwards().maxCount(READ_BATCH);
+      options = position == null ? options.fromStart() : options.fromPosition(position);
+      var events = eventStore.readAll(options).get().getEvents();
+      for (var resolvedEvent : events) {
+        RecordedEvent event = resolvedEvent.getEvent();
+        if (position != null && event.getPosition().compareTo(position) <= 0) {
+          continue; // the checkpoint already includes it
+        }
+        if (isPastTarget.test(event)) {
+          return state.getUsersThatCanLogin();
+        }
+        if (event.getStreamId().startsWith("user-") && Projector.handles(event.getEventType())) {
+          state.apply(GsonUtil.fromEventDataSealed(event, UserEvent.class), event);
+        }
+        position = event.getPosition();
+      }
+      if (events.size() < READ_BATCH) {
+        return state.getUsersThatCanLogin(); // reached the end of $all
+      }
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    replayExecutor.shutdownNow();
+  }
+}
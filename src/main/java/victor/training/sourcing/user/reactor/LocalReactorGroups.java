@@ -0,0 +1,215 @@
+package victor.training.sourcing.user.reactor;
+
+import com.eventstore.dbclient.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.Resubscriber;
+import victor.training.sourcing.store.EventStore;
+import victor.training.sourcing.user.subscription.ProjectionCheckpoints;
+import victor.training.sourcing.user.subscription.ProjectionState;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// The embedded event store has no persistent subscriptions (and a single node): each group is instead
+// a catch-up subscription to $all resuming from its own checkpoint, that only moves past events acked or parked.
+// - up to buffer-size events are reacted to concurrently, each on a virtual thread
+// - a failed reaction is retried in-process after the backoff; after max-attempts it is appended as is
+//   to the stream parked-{group}, with the origin & the error in its metadata (that append retried until it succeeds)
+// - a dropped subscription is resubscribed from the last event received, in the background with the same backoff
+// - killed mid-way => the events after the checkpoint are reacted to again at the next start
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "event.store.backend", havingValue = "embedded")
+public class LocalReactorGroups extends ReactorGroups {
+  private final EventStore eventStore;
+  private final ProjectionCheckpoints checkpoints;
+  private final int bufferSize;
+  private final ExecutorService reactions = Executors.newVirtualThreadPerTaskExecutor();
+  private final Map<String, Consumer> consumers = new ConcurrentHashMap<>();
+
+  public LocalReactorGroups(EventStore eventStore,
+                            ProjectionCheckpoints checkpoints,
+                            MeterRegistry meterRegistry,
+                            @Value("${reactor.max-attempts:5}") int maxAttempts,
+                            @Value("${reactor.backoff-ms:1000}") long backoffMillis,
+                            @Value("${reactor.max-backoff-ms:60000}") long maxBackoffMillis,
+                            @Value("${reactor.buffer-size:32}") int bufferSize) {
+    super(meterRegistry, maxAttempts, backoffMillis, maxBackoffMillis);
+    this.eventStore = eventStore;
+    this.checkpoints = checkpoints;
+    this.bufferSize = bufferSize;
+  }
+
+  public record Parked(String stream, long revision, long position, int attempts, String error) {}
+
+  public static String parkedStream(String group) {
+    return "parked-" + group;
+  }
+
+  private class Consumer extends SubscriptionListener {
+    private final Group group;
+    private final String checkpointName;
+    private final Semaphore inFlight = new Semaphore(bufferSize);
+    private final TreeMap<Long, Position> pending = new TreeMap<>(); // commit of an event in flight -> position of the one before
+    private Position received; // the last event handed over by the subscription
+    private long lastCheckpointMillis = System.currentTimeMillis();
+    private volatile Subscription subscription;
+    private final Resubscriber resubscriber;
+
+    private Consumer(Group group) {
+      this.group = group;
+      this.checkpointName = "reactor-" + group.name;
+      this.resubscriber = new Resubscriber(checkpointName, backoffMillis(2), maxBackoffMillis(),
+          LocalReactorGroups.this::isRunning, this::subscribe);
+    }
+
+    private void subscribe() throws InterruptedException, ExecutionException {
+      var options = received == null ? SubscribeToAllOptions.get().fromStart() : SubscribeToAllOptions.get().fromPosition(received);
+      subscription = eventStore.subscribeToAll(this, options, group.filter()).get();
+    }
+
+    @Override
+    public void onEvent(Subscription subscription, ResolvedEvent resolvedEvent) {
+      RecordedEvent recorded = resolvedEvent.getEvent();
+      try {
+        inFlight.acquire(); // backpressure: stop reading $all while buffer-size reactions are running
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      synchronized (this) {
+        pending.put(recorded.getPosition().getCommitUnsigned(), received);
+        received = recorded.getPosition();
+      }
+      try {
+        reactions.execute(() -> {
+          try {
+            if (react(group, recorded)) {
+              done(recorded.getPosition());
+            }
+          } finally {
+            inFlight.release();
+          }
+        });
+      } catch (RejectedExecutionException shuttingDown) {
+        inFlight.release();
+      }
+    }
+
+    private synchronized void done(Position position) {
+      pending.remove(position.getCommitUnsigned());
+      long now = System.currentTimeMillis();
+      if (now - lastCheckpointMillis >= checkpoints.intervalMillis()) {
+        checkpoint(now);
+      }
+    }
+
+    // all the events up to the watermark were acked or parked
+    private synchronized void checkpoint(long now) {
+      Position watermark = pending.isEmpty() ? received : pending.firstEntry().getValue();
+      if (watermark != null) {
+        checkpoints.save(checkpointName, ProjectionState.POSITION_ONLY, watermark);
+      }
+      lastCheckpointMillis = now;
+    }
+
+    @Override
+    public void onCancelled(Subscription subscription, Throwable exception) {
+      resubscriber.dropped(subscription, exception);
+    }
+  }
+
+  @Override
+  protected void start(Group group) throws Exception {
+    Consumer consumer = new Consumer(group);
+    var checkpoint = checkpoints.load(consumer.checkpointName, ProjectionState.POSITION_ONLY.version());
+    if (checkpoint.isPresent()) {
+      consumer.received = checkpoint.get().position();
+    } else { // first start: from the end of $all, remembered right away
+      consumer.received = eventStore.headPosition();
+      consumer.checkpoint(System.currentTimeMillis());
+    }
+    consumer.subscribe();
+    consumers.put(group.name, consumer);
+  }
+
+  // true = acked or parked; false = interrupted by the shutdown, to react again after the restart
+  private boolean react(Group group, RecordedEvent recorded) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        if (group.react(recorded)) {
+          group.count("ok");
+        }
+        return true;
+      } catch (Exception e) {
+        String reason = e.getClass().getSimpleName() + ": " + e.getMessage();
+        if (attempt >= maxAttempts) {
+          log.error("Reactor {} failed {} times on {}@{}, parking it", group.name, attempt, recorded.getEventType(), recorded.getStreamId(), e);
+          return park(group, recorded, attempt, reason);
+        }
+        log.warn("Reactor {} failed on {}@{} (attempt {}/{}): {}", group.name, recorded.getEventType(), recorded.getStreamId(), attempt, maxAttempts, reason);
+        group.count("retried");
+        try {
+          Thread.sleep(backoffMillis(attempt + 1));
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+  }
+
+  // retried with backoff until appended: an event neither acked nor parked would hold the checkpoint back forever
+  private boolean park(Group group, RecordedEvent recorded, int attempts, String reason) {
+    var parked = new Parked(recorded.getStreamId(), recorded.getRevision(), recorded.getPosition().getCommitUnsigned(), attempts, reason);
+    for (int attempt = 1; ; attempt++) {
+      try {
+        eventStore.appendToStream(parkedStream(group.name), GsonUtil.copyOf(recorded)
+            .metadataAsBytes(GsonUtil.gson.toJson(parked).getBytes(UTF_8))
+            .build()).get();
+        group.count("parked");
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (Exception e) {
+        log.error("Could not park {}@{} for {} (attempt {})", recorded.getEventType(), recorded.getStreamId(), group.name, attempt, e);
+      }
+      try {
+        Thread.sleep(backoffMillis(attempt + 1));
+      } catch (InterruptedException interrupted) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  @Override
+  protected void stop(Group group) {
+    Consumer consumer = consumers.get(group.name);
+    if (consumer != null && consumer.subscription != null) {
+      consumer.subscription.stop();
+    }
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    reactions.shutdownNow(); // interrupts the backoffs: those events stay after the checkpoint
+    try {
+      reactions.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    long now = System.currentTimeMillis();
+    consumers.values().forEach(consumer -> consumer.checkpoint(now));
+  }
+}
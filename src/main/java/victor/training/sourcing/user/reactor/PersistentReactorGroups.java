@@ -0,0 +1,130 @@
+package victor.training.sourcing.user.reactor;
+
+import com.eventstore.dbclient.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import victor.training.sourcing.Resubscriber;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Each group = an ESDB persistent subscription to $all, its consumers = all the nodes running this app (competing consumers):
+// - the server hands out the events round robin => the work splits across nodes, each event is processed once per group
+// - it tracks the acks: a node dying mid-reaction => its events time out and are redelivered to the others
+// - a failed reaction is nack(Retry)-ed after the backoff => redelivered with retryCount + 1, maybe to another node
+// - after max-attempts => nack(Park): kept in the parked stream of the group, replayable from the admin UI
+// Up to buffer-size events per node are reacted to concurrently, each on a virtual thread.
+// A dropped subscription is resubscribed in the background, with the same backoff as the reactions.
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "event.store.backend", havingValue = "esdb", matchIfMissing = true)
+public class PersistentReactorGroups extends ReactorGroups {
+  private final EventStoreDBPersistentSubscriptionsClient client;
+  private final int bufferSize;
+  private final ExecutorService reactions = Executors.newVirtualThreadPerTaskExecutor();
+  private final Map<String, PersistentSubscription> subscriptions = new ConcurrentHashMap<>();
+  private final Map<String, Resubscriber> resubscribers = new ConcurrentHashMap<>();
+
+  public PersistentReactorGroups(EventStoreDBPersistentSubscriptionsClient client,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${reactor.max-attempts:5}") int maxAttempts,
+                                 @Value("${reactor.backoff-ms:1000}") long backoffMillis,
+                                 @Value("${reactor.max-backoff-ms:60000}") long maxBackoffMillis,
+                                 @Value("${reactor.buffer-size:32}") int bufferSize) {
+    super(meterRegistry, maxAttempts, backoffMillis, maxBackoffMillis);
+    this.client = client;
+    this.bufferSize = bufferSize;
+  }
+
+  @Override
+  protected void start(Group group) throws Exception {
+    create(group);
+    resubscribers.put(group.name, new Resubscriber(group.name, backoffMillis(2), maxBackoffMillis(), this::isRunning, () -> subscribe(group)));
+    subscribe(group);
+  }
+
+  // the first node to start creates the group, from the end of $all: reactors don't react to the past
+  private void create(Group group) throws InterruptedException, ExecutionException {
+    if (client.getInfoToAll(group.name).get().isPresent()) {
+      return;
+    }
+    var options = CreatePersistentSubscriptionToAllOptions.get()
+        .fromEnd()
+        .filter(group.filter().toSubscriptionFilter())
+        .namedConsumerStrategy(NamedConsumerStrategy.ROUND_ROBIN)
+        .maxRetryCount(maxAttempts)
+        .messageTimeout(Duration.ofMillis(maxBackoffMillis()).plusSeconds(30)); // > the backoff before a nack
+    try {
+      client.createToAll(group.name, options).get();
+      log.info("Created persistent subscription {}", group.name);
+    } catch (ExecutionException e) {
+      if (client.getInfoToAll(group.name).get().isEmpty()) { // else: created meanwhile by another node
+        throw e;
+      }
+    }
+  }
+
+  private void subscribe(Group group) throws InterruptedException, ExecutionException {
+    var options = SubscribePersistentSubscriptionOptions.get().bufferSize(bufferSize);
+    subscriptions.put(group.name, client.subscribeToAll(group.name, options, new PersistentSubscriptionListener() {
+      @Override
+      public void onEvent(PersistentSubscription subscription, int retryCount, ResolvedEvent event) {
+        reactions.execute(() -> react(group, subscription, retryCount, event));
+      }
+
+      @Override
+      public void onCancelled(PersistentSubscription subscription, Throwable exception) {
+        resubscribers.get(group.name).dropped(subscription, exception);
+      }
+    }).get());
+  }
+
+  private void react(Group group, PersistentSubscription subscription, int retryCount, ResolvedEvent event) {
+    RecordedEvent recorded = event.getEvent();
+    int attempt = retryCount + 1;
+    try {
+      if (group.react(recorded)) {
+        group.count("ok");
+      }
+      subscription.ack(event);
+    } catch (Exception e) {
+      String reason = e.getClass().getSimpleName() + ": " + e.getMessage();
+      if (attempt >= maxAttempts) {
+        log.error("Reactor {} failed {} times on {}@{}, parking it", group.name, attempt, recorded.getEventType(), recorded.getStreamId(), e);
+        group.count("parked");
+        subscription.nack(NackAction.Park, reason, event);
+        return;
+      }
+      log.warn("Reactor {} failed on {}@{} (attempt {}/{}): {}", group.name, recorded.getEventType(), recorded.getStreamId(), attempt, maxAttempts, reason);
+      group.count("retried");
+      try {
+        Thread.sleep(backoffMillis(attempt + 1));
+      } catch (InterruptedException interrupted) {
+        Thread.currentThread().interrupt(); // shutting down: the server will redeliver it on message timeout
+        return;
+      }
+      subscription.nack(NackAction.Retry, reason, event);
+    }
+  }
+
+  @Override
+  protected void stop(Group group) {
+    PersistentSubscription subscription = subscriptions.remove(group.name);
+    if (subscription != null) {
+      subscription.stop();
+    }
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    reactions.shutdownNow();
+  }
+}
@@ -1,34 +1,55 @@
 package victor.training.sourcing.user.reactor;
 
-import com.eventstore.dbclient.*;
-import jakarta.annotation.PostConstruct;
-import lombok.RequiredArgsConstructor;
+import com.eventstore.dbclient.RecordedEvent;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
 import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EventStore;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent;
 import victor.training.sourcing.user.domain.UserEvent.UserActivated;
+import victor.training.sourcing.user.reactor.outbound.OutboundMessage;
+import victor.training.sourcing.user.reactor.outbound.OutboundPublisher;
+import victor.training.sourcing.user.reactor.outbound.OutboundSink;
+import victor.training.sourcing.user.subscription.ProjectionCheckpoints;
 
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Dual write to ESDB + Kafka:
+// a) we wrote to ESDB then in reaction try to push to Kafka <- current solution, in order & batched (see OutboundPublisher)
+// b) CDC/Debezium poll ESDB and sends to Kafka events
+// c) make Kafka the source of truth and project to ESDB = moving out
 @Slf4j
-@RestController
-@RequiredArgsConstructor
-public class PublishActivatedUsersOnKafkaReactor extends SubscriptionListener {
-  private final EventStoreDBClient eventStore;
+@Component
+public class PublishActivatedUsersOnKafkaReactor extends OutboundPublisher {
+  public static final String TOPIC = "user-activated";
 
-  @PostConstruct
-  public void subscribe() {
-    eventStore.subscribeToAll(this, SubscribeToAllOptions.get().fromEnd());
+  public PublishActivatedUsersOnKafkaReactor(EventStore eventStore,
+                                             ProjectionCheckpoints checkpoints,
+                                             OutboundSink sink,
+                                             MeterRegistry meterRegistry,
+                                             @Value("${outbound.max-batch-size:500}") int maxBatchSize,
+                                             @Value("${outbound.linger-ms:20}") long lingerMillis,
+                                             @Value("${outbound.buffer-size:10000}") int bufferSize,
+                                             @Value("${outbound.backoff-ms:100}") long backoffMillis,
+                                             @Value("${outbound.max-backoff-ms:10000}") long maxBackoffMillis) {
+    super("publish-activated-users-on-kafka", List.of(UserActivated.class), new Settings(eventStore, checkpoints, sink,
+        meterRegistry, maxBatchSize, lingerMillis, bufferSize, backoffMillis, maxBackoffMillis));
   }
 
+  public record UserActivatedMessage(String email, LocalDateTime activatedAt) {}
+
   @Override
-  public void onEvent(Subscription subscription, ResolvedEvent resolvedEvent) {
-    var eventOpt = GsonUtil.tryParseEvent(resolvedEvent.getEvent(), UserActivated.class);
-    if (eventOpt.isEmpty()) {
-      return;
-    }
-    // Dual write to ESDB + Kafka:
-    // a) we wrote to ESDB then in reaction try to push to Kafka <- current solution (pretend)
-    // b) CDC/Debezium poll ESDB and sends to Kafka events
-    // c) make Kafka the source of truth and project to ESDB = moving out
-    log.info("kafka.send(User '{}' activated)", eventOpt.get().email());
+  protected OutboundMessage toMessage(UserEvent event, RecordedEvent recordedEvent) {
+    String email = User.emailFromStreamName(recordedEvent.getStreamId());
+    var message = new UserActivatedMessage(email, LocalDateTime.ofInstant(recordedEvent.getCreated(), ZoneOffset.UTC));
+    return new OutboundMessage(TOPIC, email, UserActivated.class.getSimpleName(),
+        GsonUtil.gson.toJson(message).getBytes(UTF_8), recordedEvent.getPosition());
   }
 }
@@ -0,0 +1,119 @@
+package victor.training.sourcing.user.reactor;
+
+import com.eventstore.dbclient.RecordedEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.SmartLifecycle;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.AllFilter;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Reactors = side effects (emails, messages to other systems..) to run once per event, whichever node runs them.
+// Each reactor is a named group, that gets the events of the types it reacts to from the moment the group is first created:
+// - the group remembers how far it got => events appended while all nodes were down are handled after the restart
+// - a failing reaction is retried with exponential backoff (backoff-ms * 2^(attempt-1), at most max-backoff-ms)
+// - after max-attempts, the event is parked for someone to look at & replay
+// Delivery is at-least-once (a node can die after the side effect, before the ack) => reactions must be idempotent.
+@Slf4j
+public abstract class ReactorGroups implements SmartLifecycle {
+  protected final MeterRegistry meterRegistry;
+  protected final int maxAttempts;
+  private final long backoffMillis;
+  private final long maxBackoffMillis;
+  protected final Map<String, Group> groups = new LinkedHashMap<>();
+  private volatile boolean running;
+
+  protected ReactorGroups(MeterRegistry meterRegistry, int maxAttempts, long backoffMillis, long maxBackoffMillis) {
+    this.meterRegistry = meterRegistry;
+    this.maxAttempts = maxAttempts;
+    this.backoffMillis = backoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  @FunctionalInterface
+  public interface Reaction<E extends UserEvent> {
+    void react(E event, RecordedEvent recordedEvent) throws Exception;
+  }
+
+  public class Group {
+    protected final String name;
+    private final Map<String, Reaction<?>> reactions = new HashMap<>();
+
+    private Group(String name) {
+      this.name = name;
+    }
+
+    public <E extends UserEvent> Group on(Class<E> eventType, Reaction<E> reaction) {
+      if (running) throw new IllegalStateException("Register reactions before the application starts");
+      reactions.put(eventType.getSimpleName(), reaction);
+      return this;
+    }
+
+    // only the event types reacted to are sent by the server
+    AllFilter filter() {
+      return AllFilter.eventTypes(reactions.keySet());
+    }
+
+    // false if not for this group (eg an event of the same type in another stream)
+    @SuppressWarnings("unchecked")
+    boolean react(RecordedEvent recorded) throws Exception {
+      var reaction = (Reaction<UserEvent>) reactions.get(recorded.getEventType());
+      if (reaction == null || !recorded.getStreamId().startsWith(User.stream(""))) {
+        return false;
+      }
+      reaction.react(GsonUtil.fromEventDataSealed(recorded, UserEvent.class), recorded);
+      return true;
+    }
+
+    void count(String outcome) {
+      meterRegistry.counter("reactor.events", "group", name, "outcome", outcome).increment();
+    }
+  }
+
+  public Group group(String name) {
+    if (running) throw new IllegalStateException("Register reactions before the application starts");
+    return groups.computeIfAbsent(name, Group::new);
+  }
+
+  // before the given attempt (2, 3...)
+  protected long backoffMillis(int attempt) {
+    return Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt - 2, 30));
+  }
+
+  protected long maxBackoffMillis() {
+    return maxBackoffMillis;
+  }
+
+  protected abstract void start(Group group) throws Exception;
+
+  protected abstract void stop(Group group);
+
+  @Override
+  public void start() {
+    running = true;
+    for (Group group : groups.values()) {
+      try {
+        start(group);
+      } catch (Exception e) {
+        throw new IllegalStateException("Could not start reactor group " + group.name, e);
+      }
+    }
+    log.info("Started {} reactor groups: {}", groups.size(), groups.keySet());
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    groups.values().forEach(this::stop);
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+}
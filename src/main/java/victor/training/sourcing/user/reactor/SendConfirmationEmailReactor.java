@@ -1,53 +1,53 @@
 package victor.training.sourcing.user.reactor;
 
-import com.eventstore.dbclient.*;
+import com.eventstore.dbclient.RecordedEvent;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
-import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.user.command.UserRepository;
 import victor.training.sourcing.user.domain.User;
 import victor.training.sourcing.user.domain.UserEvent.UserCreated;
 
+import java.util.List;
 import java.util.UUID;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
-public class SendConfirmationEmailReactor extends SubscriptionListener {
+public class SendConfirmationEmailReactor {
 
-  private final EventStoreDBClient eventStore;
+  private final ReactorGroups reactorGroups;
+  private final UserRepository userRepository;
 
   @PostConstruct
   public void subscribe() {
-    eventStore.subscribeToAll(this, SubscribeToAllOptions.get().fromEnd());
+    reactorGroups.group("send-confirmation-email")
+        .on(UserCreated.class, this::onCreated);
   }
 
-  @SneakyThrows
-  @Override
-  public void onEvent(Subscription subscription, ResolvedEvent resolvedEvent) {
-    var eventOpt = GsonUtil.tryParseEvent(resolvedEvent.getEvent(), UserCreated.class);
-    if (eventOpt.isEmpty()) {
-      return;
-    }
-    log.info("Got Created event " + eventOpt.get());
-    String email = User.emailFromStreamName(resolvedEvent.getEvent().getStreamId());
-    String emailConfirmationToken = UUID.randomUUID().toString();
-    // TODO fri
-    // TODO send email
-    // TODO write token in user
-
+  // retried & maybe redelivered => the same token for the same event, on any node.
+  // The token is stored before sending: a user never gets a token that the confirmation would reject.
+  // If sending fails, the retry finds it already stored and only sends.
+  private void onCreated(UserCreated event, RecordedEvent recordedEvent) throws Exception {
+    log.debug("Got Created event {}", event);
+    String email = User.emailFromStreamName(recordedEvent.getStreamId());
+    String emailConfirmationToken = UUID.nameUUIDFromBytes(recordedEvent.getEventId().toString().getBytes(UTF_8)).toString();
+    userRepository.execute("store-confirmation-token", email,
+        user -> emailConfirmationToken.equals(user.emailValidationToken())
+            ? List.of()
+            : List.of(user.storeEmailConfirmationToken(emailConfirmationToken)));
+    sendEmail(email, emailConfirmationToken);
     log.info("Sent confirmation email");
   }
 
   private void sendEmail(String email, String emailConfirmationToken) {
     log.info("SMTP: Sending confirmation email to {} with token {} ...", email, emailConfirmationToken);
     if (Math.random() < 0.1) {
-      // DEBATE: how to implement retries
-      // DEBATE: how to implement persistent retries, if server remains down for days
-      throw new RuntimeException("Email server down");
+      throw new RuntimeException("Email server down"); // retried with backoff, then parked (see ReactorGroups)
     }
   }
 }
@@ -0,0 +1,48 @@
+package victor.training.sourcing.user.reactor.outbound;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import victor.training.sourcing.GsonUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+
+// One JSON line per message, appended & fsync-ed per batch: to inspect locally what would be published
+@Component
+@ConditionalOnProperty(name = "outbound.sink", havingValue = "file")
+public class FileOutboundSink implements OutboundSink {
+  private final Path file;
+
+  public FileOutboundSink(@Value("${outbound.file:outbound/messages.jsonl}") Path file) {
+    this.file = file;
+  }
+
+  private record Line(long position, String topic, String key, String type, String value) {}
+
+  @Override
+  public synchronized void send(List<OutboundMessage> batch) throws IOException {
+    var lines = new StringBuilder();
+    for (OutboundMessage message : batch) {
+      var line = new Line(message.position().getCommitUnsigned(), message.topic(), message.key(), message.type(), new String(message.value(), UTF_8));
+      lines.append(GsonUtil.gson.toJson(line)).append('\n');
+    }
+    if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    try (FileChannel channel = FileChannel.open(file, CREATE, WRITE, APPEND)) {
+      ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(UTF_8));
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      channel.force(false);
+    }
+  }
+}
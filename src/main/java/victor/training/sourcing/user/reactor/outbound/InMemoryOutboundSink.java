@@ -0,0 +1,30 @@
+package victor.training.sourcing.user.reactor.outbound;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// for tests: keeps all batches sent
+@Component
+@ConditionalOnProperty(name = "outbound.sink", havingValue = "memory")
+public class InMemoryOutboundSink implements OutboundSink {
+  private final List<List<OutboundMessage>> batches = new CopyOnWriteArrayList<>();
+
+  @Override
+  public void send(List<OutboundMessage> batch) {
+    batches.add(List.copyOf(batch));
+  }
+
+  public List<List<OutboundMessage>> batches() {
+    return batches;
+  }
+
+  public List<OutboundMessage> messages() {
+    List<OutboundMessage> messages = new ArrayList<>();
+    batches.forEach(messages::addAll);
+    return messages;
+  }
+}
@@ -0,0 +1,22 @@
+package victor.training.sourcing.user.reactor.outbound;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// pretends to be a Kafka producer
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "outbound.sink", havingValue = "log", matchIfMissing = true)
+public class LogOutboundSink implements OutboundSink {
+  @Override
+  public void send(List<OutboundMessage> batch) {
+    for (OutboundMessage message : batch) {
+      log.info("kafka.send({}, key={}, {})", message.topic(), message.key(), new String(message.value(), UTF_8));
+    }
+  }
+}
@@ -0,0 +1,6 @@
+package victor.training.sourcing.user.reactor.outbound;
+
+import com.eventstore.dbclient.Position;
+
+// key: the partition key (~ Kafka), messages with the same key are published in order
+public record OutboundMessage(String topic, String key, String type, byte[] value, Position position) {}
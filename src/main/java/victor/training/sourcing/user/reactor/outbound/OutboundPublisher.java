@@ -0,0 +1,204 @@
+package victor.training.sourcing.user.reactor.outbound;
+
+import com.eventstore.dbclient.*;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.SmartLifecycle;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.Resubscriber;
+import victor.training.sourcing.store.AllFilter;
+import victor.training.sourcing.store.EventStore;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.subscription.ProjectionCheckpoints;
+import victor.training.sourcing.user.subscription.ProjectionState;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Publishes events of $all to an OutboundSink, in the order of $all, in batches:
+//   subscription --(queue of buffer-size)--> publisher thread --(batch)--> sink --> checkpoint = position of the batch's last message
+// - a batch is sent when max-batch-size messages are queued, or linger-ms after its first one
+// - a slow sink fills the queue, which blocks the subscription = backpressure
+// - a failing sink or checkpoint is retried with backoff while running: nothing is skipped, the queue & the subscription wait
+// - anything else stops the publisher loudly (logged, isRunning() = false) instead of leaving the subscription blocked
+// - a dropped subscription is resubscribed from the last event queued, in the background with the same backoff
+// - restarted => resumes after the checkpoint: no gaps; duplicates only of a batch sent but not yet checkpointed
+// The first start begins from the end of $all, like reactors.
+@Slf4j
+public abstract class OutboundPublisher extends SubscriptionListener implements SmartLifecycle {
+  private final String name;
+  private final EventStore eventStore;
+  private final ProjectionCheckpoints checkpoints;
+  private final OutboundSink sink;
+  private final AllFilter filter;
+  private final int maxBatchSize;
+  private final long lingerMillis;
+  private final long backoffMillis;
+  private final long maxBackoffMillis;
+  private final BlockingQueue<OutboundMessage> queue;
+  private final Counter published;
+  private final Counter failures;
+  private final Resubscriber resubscriber;
+  private volatile Position received; // the last event queued
+  private volatile Subscription subscription;
+  private volatile Thread publisher;
+  private volatile boolean running;
+
+  protected OutboundPublisher(String name, List<Class<? extends UserEvent>> eventTypes, Settings settings) {
+    this.name = name;
+    this.eventStore = settings.eventStore();
+    this.checkpoints = settings.checkpoints();
+    this.sink = settings.sink();
+    this.filter = AllFilter.eventTypes(eventTypes.stream().map(Class::getSimpleName).toList());
+    this.maxBatchSize = settings.maxBatchSize();
+    this.lingerMillis = settings.lingerMillis();
+    this.backoffMillis = settings.backoffMillis();
+    this.maxBackoffMillis = settings.maxBackoffMillis();
+    this.queue = new ArrayBlockingQueue<>(settings.bufferSize());
+    this.published = settings.meterRegistry().counter("outbound.messages", "publisher", name);
+    this.failures = settings.meterRegistry().counter("outbound.failures", "publisher", name);
+    this.resubscriber = new Resubscriber(name, backoffMillis, maxBackoffMillis, this::isRunning, this::subscribe);
+    settings.meterRegistry().gauge("outbound.queued", Tags.of("publisher", name), queue, BlockingQueue::size);
+  }
+
+  public record Settings(EventStore eventStore,
+                         ProjectionCheckpoints checkpoints,
+                         OutboundSink sink,
+                         MeterRegistry meterRegistry,
+                         int maxBatchSize,
+                         long lingerMillis,
+                         int bufferSize,
+                         long backoffMillis,
+                         long maxBackoffMillis) {}
+
+  // null = nothing to publish for this event
+  protected abstract OutboundMessage toMessage(UserEvent event, RecordedEvent recordedEvent);
+
+  @Override
+  public void start() {
+    try {
+      var checkpoint = checkpoints.load(name, ProjectionState.POSITION_ONLY.version());
+      received = checkpoint.isPresent() ? checkpoint.get().position() : eventStore.headPosition();
+      if (checkpoint.isEmpty() && received != null) {
+        checkpoints.save(name, ProjectionState.POSITION_ONLY, received);
+      }
+      running = true;
+      publisher = Thread.ofPlatform().name(name).start(this::publishLoop);
+      subscribe();
+      log.info("Publishing {} from {}", name, received);
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IllegalStateException("Could not start publishing " + name, e);
+    }
+  }
+
+  private void subscribe() throws InterruptedException, ExecutionException {
+    var options = received == null ? SubscribeToAllOptions.get().fromStart() : SubscribeToAllOptions.get().fromPosition(received);
+    subscription = eventStore.subscribeToAll(this, options, filter).get();
+  }
+
+  @Override
+  public void onEvent(Subscription subscription, ResolvedEvent resolvedEvent) {
+    RecordedEvent recorded = resolvedEvent.getEvent();
+    if (!recorded.getStreamId().startsWith(User.stream(""))) {
+      return;
+    }
+    OutboundMessage message = toMessage(GsonUtil.fromEventDataSealed(recorded, UserEvent.class), recorded);
+    try {
+      while (message != null && !queue.offer(message, 100, TimeUnit.MILLISECONDS)) { // waits while the sink is behind
+        if (!running) return;
+      }
+      received = recorded.getPosition();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void onCancelled(Subscription subscription, Throwable exception) {
+    resubscriber.dropped(subscription, exception);
+  }
+
+  private void publishLoop() {
+    List<OutboundMessage> batch = new ArrayList<>(maxBatchSize);
+    try {
+      while (running) {
+        OutboundMessage first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long lingerUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        while (batch.size() < maxBatchSize) {
+          if (queue.drainTo(batch, maxBatchSize - batch.size()) == 0) {
+            OutboundMessage next = queue.poll(lingerUntil - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (next == null) break;
+            batch.add(next);
+          }
+        }
+        Position last = batch.getLast().position();
+        retry("send a batch of " + batch.size(), () -> sink.send(batch));
+        retry("checkpoint " + last, () -> checkpoints.save(name, ProjectionState.POSITION_ONLY, last));
+        published.increment(batch.size());
+        batch.clear();
+      }
+    } catch (InterruptedException stopped) {
+      // unsent messages are after the checkpoint: published again after the restart
+    } catch (Throwable e) { // a dead publisher would leave onEvent waiting on a full queue forever
+      log.error("{} stopped publishing, restart to resume after the checkpoint", name, e);
+      running = false;
+      if (subscription != null) {
+        subscription.stop();
+      }
+    }
+  }
+
+  private void retry(String what, Action action) throws InterruptedException {
+    for (int attempt = 1; running; attempt++) {
+      try {
+        action.run();
+        return;
+      } catch (Exception e) {
+        failures.increment();
+        long backoff = Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt - 1, 30));
+        log.warn("{} could not {} (attempt {}), retrying in {} ms: {}", name, what, attempt, backoff, e.toString());
+        Thread.sleep(backoff);
+      }
+    }
+    throw new InterruptedException("stopped"); // stopped while retrying: the batch is published again after the restart
+  }
+
+  private interface Action {
+    void run() throws Exception;
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    if (subscription != null) {
+      subscription.stop();
+    }
+    if (publisher != null) {
+      try {
+        if (!publisher.join(Duration.ofSeconds(2))) { // lets the batch in flight finish
+          publisher.interrupt();
+          publisher.join(Duration.ofSeconds(2));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+}
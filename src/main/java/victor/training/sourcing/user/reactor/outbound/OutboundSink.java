@@ -0,0 +1,9 @@
+package victor.training.sourcing.user.reactor.outbound;
+
+import java.util.List;
+
+// Where an OutboundPublisher sends its batches (Kafka, a file, memory..), chosen by outbound.sink.
+// A batch is sent whole or fails: a failed batch is sent again, maybe partially duplicated => consumers dedupe by position.
+public interface OutboundSink {
+  void send(List<OutboundMessage> batch) throws Exception;
+}
@@ -0,0 +1,212 @@
+package victor.training.sourcing.user.subscription;
+
+import com.eventstore.dbclient.*;
+import lombok.extern.slf4j.Slf4j;
+import victor.training.sourcing.store.EventStore;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+// Replays the events of some types in (from, until] of $all, in $all order, faster than a subscription catching up:
+// - one reader per type, in parallel, of its $et-{type} stream (by-event-type index of EventStoreDB / EmbeddedEventStore)
+//   => only the events used are read, not the whole history
+// - the reader of a type skips to the first event after from by a binary search over the revisions of its stream
+// - a k-way merge by position restores the $all order across types
+// The $et- streams are written asynchronously by EventStoreDB: before reading, waits for the last relevant event up to
+// until to be indexed (the index follows $all in order => all relevant events before it are indexed too).
+// Refuses (false, nothing replayed) if the index is missing or lags more than index-wait: catch up via the subscription then.
+@Slf4j
+class ParallelCatchUp {
+  private static final int READ_BATCH = 512;
+  private static final int MAX_SCANNED_BACKWARDS = 50_000;
+
+  private final EventStore eventStore;
+  private final Set<String> eventTypes;
+  private final String streamPrefix;
+  private final Duration indexWait;
+
+  ParallelCatchUp(EventStore eventStore, Set<String> eventTypes, String streamPrefix, Duration indexWait) {
+    this.eventStore = eventStore;
+    this.eventTypes = eventTypes;
+    this.streamPrefix = streamPrefix;
+    this.indexWait = indexWait;
+  }
+
+  // from == null: from the start of $all
+  boolean run(Position from, Position until, Consumer<ResolvedEvent> sink) throws InterruptedException, ExecutionException {
+    Optional<RecordedEvent> lastRelevant = lastRelevant(from, until);
+    if (lastRelevant == null) {
+      log.info("Too many events to scan for the last one of {}, catching up via the subscription", eventTypes);
+      return false;
+    }
+    if (lastRelevant.isEmpty()) {
+      return true;
+    }
+    if (!awaitIndexed(lastRelevant.get())) {
+      log.warn("Stream $et-{} is missing or behind $all (are the standard projections running?), catching up via the subscription",
+          lastRelevant.get().getEventType());
+      return false;
+    }
+    List<Reader> readers = eventTypes.stream().map(type -> new Reader("$et-" + type, from, until)).toList();
+    try {
+      readers.forEach(reader -> reader.thread.start());
+      merge(readers, sink);
+      return true;
+    } finally {
+      readers.forEach(reader -> reader.thread.interrupt());
+    }
+  }
+
+  // null = not found within MAX_SCANNED_BACKWARDS
+  private Optional<RecordedEvent> lastRelevant(Position from, Position until) throws InterruptedException, ExecutionException {
+    ReadAllOptions options = ReadAllOptions.get().fromEnd().backwards().maxCount(READ_BATCH);
+    for (int scanned = 0; scanned < MAX_SCANNED_BACKWARDS; scanned += READ_BATCH) {
+      List<ResolvedEvent> events = eventStore.readAll(options).get().getEvents();
+      for (ResolvedEvent resolved : events) {
+        RecordedEvent event = resolved.getEvent();
+        if (from != null && event.getPosition().compareTo(from) <= 0) {
+          return Optional.empty();
+        }
+        if (event.getPosition().compareTo(until) <= 0 && relevant(event)) {
+          return Optional.of(event);
+        }
+      }
+      if (events.size() < READ_BATCH) {
+        return Optional.empty();
+      }
+      options = ReadAllOptions.get().fromPosition(events.getLast().getEvent().getPosition()).backwards().maxCount(READ_BATCH);
+    }
+    return null;
+  }
+
+  private boolean relevant(RecordedEvent event) {
+    return eventTypes.contains(event.getEventType()) && event.getStreamId().startsWith(streamPrefix);
+  }
+
+  private boolean awaitIndexed(RecordedEvent event) throws InterruptedException, ExecutionException {
+    long deadline = System.nanoTime() + indexWait.toNanos();
+    while (true) {
+      Optional<RecordedEvent> lastIndexed = read("$et-" + event.getEventType(),
+          ReadStreamOptions.get().fromEnd().backwards().maxCount(1).resolveLinkTos()).stream().findFirst();
+      if (lastIndexed.isPresent() && lastIndexed.get().getPosition().compareTo(event.getPosition()) >= 0) {
+        return true;
+      }
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+      Thread.sleep(200);
+    }
+  }
+
+  private List<RecordedEvent> read(String stream, ReadStreamOptions options) throws InterruptedException, ExecutionException {
+    try {
+      return eventStore.readStream(stream, options).get().getEvents().stream().map(ResolvedEvent::getEvent).toList();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof StreamNotFoundException) {
+        return List.of();
+      }
+      throw e;
+    }
+  }
+
+  private static final ResolvedEvent END = new ResolvedEvent(null, null, null);
+
+  private class Reader implements Runnable {
+    private final String stream;
+    private final Position from;
+    private final Position until;
+    private final BlockingQueue<ResolvedEvent> queue = new ArrayBlockingQueue<>(READ_BATCH * 2);
+    private final Thread thread;
+    private volatile Exception failure;
+
+    private Reader(String stream, Position from, Position until) {
+      this.stream = stream;
+      this.from = from;
+      this.until = until;
+      this.thread = Thread.ofVirtual().name("catch-up-" + stream).unstarted(this);
+    }
+
+    @Override
+    public void run() {
+      try {
+        long revision = from == null ? 0 : firstRevisionAfter(from);
+        while (revision >= 0) {
+          List<RecordedEvent> events = read(stream, ReadStreamOptions.get().fromRevision(revision).maxCount(READ_BATCH).resolveLinkTos());
+          for (RecordedEvent event : events) {
+            if (event.getPosition().compareTo(until) > 0) {
+              revision = -1;
+              break;
+            }
+            if (from == null || event.getPosition().compareTo(from) > 0) {
+              queue.put(new ResolvedEvent(event, null, event.getPosition()));
+            }
+          }
+          revision = events.size() < READ_BATCH || revision < 0 ? -1 : revision + events.size();
+        }
+      } catch (InterruptedException stopped) {
+        return;
+      } catch (Exception e) {
+        failure = e;
+      }
+      try {
+        queue.put(END);
+      } catch (InterruptedException stopped) {
+        // the merge was abandoned
+      }
+    }
+
+    // the revision in this stream of the first event after position (the stream is in $all order); its count if none
+    private long firstRevisionAfter(Position position) throws InterruptedException, ExecutionException {
+      long low = 0;
+      long high;
+      try {
+        high = eventStore.readStream(stream, ReadStreamOptions.get().fromEnd().backwards().maxCount(1)).get().getLastStreamPosition() + 1;
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof StreamNotFoundException) {
+          return 0;
+        }
+        throw e;
+      }
+      while (low < high) {
+        long middle = (low + high) >>> 1;
+        RecordedEvent event = read(stream, ReadStreamOptions.get().fromRevision(middle).maxCount(1).resolveLinkTos()).getFirst();
+        if (event.getPosition().compareTo(position) > 0) {
+          high = middle;
+        } else {
+          low = middle + 1;
+        }
+      }
+      return low;
+    }
+
+    private ResolvedEvent next() throws InterruptedException, ExecutionException {
+      ResolvedEvent next = queue.take();
+      if (next == END && failure != null) {
+        throw new ExecutionException("Could not read " + stream, failure);
+      }
+      return next == END ? null : next;
+    }
+  }
+
+  private record Head(ResolvedEvent event, Reader reader) {}
+
+  private void merge(List<Reader> readers, Consumer<ResolvedEvent> sink) throws InterruptedException, ExecutionException {
+    PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparing((Head head) -> head.event().getEvent().getPosition()));
+    for (Reader reader : readers) {
+      ResolvedEvent first = reader.next();
+      if (first != null) heads.add(new Head(first, reader));
+    }
+    while (!heads.isEmpty()) {
+      Head head = heads.poll();
+      if (head.event().getEvent().getStreamId().startsWith(streamPrefix)) {
+        sink.accept(head.event());
+      }
+      ResolvedEvent next = head.reader().next();
+      if (next != null) heads.add(new Head(next, head.reader()));
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package victor.training.sourcing.user.subscription;
+
+import com.eventstore.dbclient.Position;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+// One file per projection: {dir}/{name}.checkpoint
+// [magic][format version][state version][logic version][commit][prepare][state length][state crc32][state bytes]
+// (format version 1 had no logic version: read as logic version 1)
+// Written to a temp file then atomically moved in place; read through a memory-mapped buffer.
+@Slf4j
+@Component
+public class ProjectionCheckpoints {
+  private static final int MAGIC = 0x45534350; // "ESCP"
+  private static final int FORMAT_VERSION = 2;
+  private static final int HEADER_SIZE_V1 = 4 + 4 + 4 + 8 + 8 + 4 + 8;
+  private static final int HEADER_SIZE = HEADER_SIZE_V1 + 4;
+
+  private final Path dir;
+  private final long intervalMillis;
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> new Thread(r, "checkpoint-writer"));
+
+  public ProjectionCheckpoints(@Value("${projection.checkpoint.dir:checkpoints}") Path dir,
+                               @Value("${projection.checkpoint.interval-seconds:30}") long intervalSeconds) {
+    this.dir = dir;
+    this.intervalMillis = TimeUnit.SECONDS.toMillis(intervalSeconds);
+  }
+
+  public record Checkpoint(Position position, int logicVersion, DataInputStream state) {}
+
+  public long intervalMillis() {
+    return intervalMillis;
+  }
+
+  public Optional<Checkpoint> load(String name, int stateVersion) {
+    Path file = file(name);
+    if (!Files.exists(file)) {
+      return Optional.empty();
+    }
+    try (FileChannel channel = FileChannel.open(file)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      int formatVersion = buffer.remaining() < HEADER_SIZE_V1 || buffer.getInt() != MAGIC ? -1 : buffer.getInt();
+      if (formatVersion != 1 && (formatVersion != FORMAT_VERSION || channel.size() < HEADER_SIZE)) {
+        log.warn("Ignoring corrupt checkpoint {}", file);
+        return Optional.empty();
+      }
+      if (buffer.getInt() != stateVersion) {
+        log.info("Ignoring checkpoint {} of an older state version", file);
+        return Optional.empty();
+      }
+      int logicVersion = formatVersion == 1 ? 1 : buffer.getInt();
+      Position position = new Position(buffer.getLong(), buffer.getLong());
+      int length = buffer.getInt();
+      long crc = buffer.getLong();
+      if (length != buffer.remaining()) {
+        log.warn("Ignoring truncated checkpoint {}", file);
+        return Optional.empty();
+      }
+      byte[] state = new byte[length];
+      buffer.get(state);
+      if (crc32(state) != crc) {
+        log.warn("Ignoring checkpoint {} with a bad checksum", file);
+        return Optional.empty();
+      }
+      return Optional.of(new Checkpoint(position, logicVersion, new DataInputStream(new ByteArrayInputStream(state))));
+    } catch (IOException e) {
+      log.warn("Ignoring unreadable checkpoint {}: {}", file, e.toString());
+      return Optional.empty();
+    }
+  }
+
+  // the state is dumped now, by the caller thread; the file is written in the background
+  public void save(String name, ProjectionState state, Position position) {
+    byte[] bytes = dump(state);
+    writer.execute(() -> write(name, state.version(), state.logicVersion(), position, bytes));
+  }
+
+  private static byte[] dump(ProjectionState state) {
+    var bytes = new ByteArrayOutputStream(64 * 1024);
+    try (var out = new DataOutputStream(bytes)) {
+      state.dump(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private void write(String name, int stateVersion, int logicVersion, Position position, byte[] state) {
+    try {
+      Files.createDirectories(dir);
+      Path temp = dir.resolve(name + ".checkpoint.tmp");
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+          .putInt(MAGIC)
+          .putInt(FORMAT_VERSION)
+          .putInt(stateVersion)
+          .putInt(logicVersion)
+          .putLong(position.getCommitUnsigned())
+          .putLong(position.getPrepareUnsigned())
+          .putInt(state.length)
+          .putLong(crc32(state))
+          .flip();
+      try (FileChannel channel = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+        channel.write(new ByteBuffer[]{header, ByteBuffer.wrap(state)});
+        channel.force(false);
+      }
+      Files.move(temp, file(name), ATOMIC_MOVE, REPLACE_EXISTING);
+      log.debug("Checkpointed {} at {} ({} bytes)", name, position, state.length);
+    } catch (IOException e) {
+      log.warn("Could not checkpoint {}: {}", name, e.toString());
+    }
+  }
+
+  private Path file(String name) {
+    return dir.resolve(name + ".checkpoint");
+  }
+
+  private static long crc32(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+  @PreDestroy
+  public void flush() throws InterruptedException {
+    writer.shutdown();
+    writer.awaitTermination(10, TimeUnit.SECONDS);
+  }
+}
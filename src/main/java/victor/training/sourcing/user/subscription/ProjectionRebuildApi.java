@@ -0,0 +1,23 @@
+package victor.training.sourcing.user.subscription;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.*;
+import victor.training.sourcing.user.subscription.ProjectionRebuilds.Status;
+
+@RestController
+@RequestMapping("/projections/{projection}/rebuild")
+@RequiredArgsConstructor
+public class ProjectionRebuildApi {
+  private final ProjectionRebuilds rebuilds;
+
+  // runs in the background, the current state serving queries meanwhile: poll GET for its progress
+  @PostMapping
+  public Status start(@PathVariable String projection) {
+    return rebuilds.start(projection);
+  }
+
+  @GetMapping
+  public Status status(@PathVariable String projection) {
+    return rebuilds.status(projection);
+  }
+}
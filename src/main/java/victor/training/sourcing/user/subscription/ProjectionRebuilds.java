@@ -0,0 +1,201 @@
+package victor.training.sourcing.user.subscription;
+
+import com.eventstore.dbclient.Position;
+import com.eventstore.dbclient.ReadAllOptions;
+import com.eventstore.dbclient.RecordedEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.RateLimiter;
+import victor.training.sourcing.store.EventStore;
+import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.subscription.UserEventDispatcher.Subscriber;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.http.HttpStatus.CONFLICT;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+
+// Blue/green rebuild of a projection, without downtime:
+// - a new, empty state (green) replays $all from the start on a background thread, throttled to max-events-per-second,
+//   while the current state (blue) keeps handling live events & serving queries
+// - once green reached the end of $all, the dispatcher pauses routing, lets green catch up with the last event routed,
+//   and swaps it in atomically (see UserEventDispatcher#handOver); blue is then unreferenced => garbage collected
+// Started at startup for the subscribers restored from a checkpoint of an older logic version, or on demand.
+// Stopped by a shutdown: blue stays, with its checkpoint => rebuilt again at the next start.
+@Slf4j
+@Component
+public class ProjectionRebuilds implements SmartLifecycle {
+  private static final int READ_BATCH = 512;
+
+  private final EventStore eventStore;
+  private final UserEventDispatcher dispatcher;
+  private final RateLimiter rateLimiter;
+  private final Map<String, Rebuild<?>> rebuilds = new ConcurrentHashMap<>();
+  private volatile boolean running;
+
+  public ProjectionRebuilds(EventStore eventStore,
+                            UserEventDispatcher dispatcher,
+                            @Value("${projection.rebuild.max-events-per-second:20000}") int maxEventsPerSecond) {
+    this.eventStore = eventStore;
+    this.dispatcher = dispatcher;
+    this.rateLimiter = new RateLimiter(maxEventsPerSecond);
+  }
+
+  public enum State {RUNNING, HANDING_OVER, COMPLETED, STOPPED, FAILED}
+
+  // position & head: commit positions in $all; percent and ETA assume the events are evenly spread over it
+  public record Status(String projection, State state, long eventsRead, long eventsApplied, long position, Long head,
+                       Integer percent, long eventsPerSecond, Long etaSeconds) {}
+
+  @Override
+  public void start() {
+    running = true;
+    for (Subscriber stale : dispatcher.staleSubscribers()) {
+      log.info("Projection {} was restored from a checkpoint of an older logic, rebuilding it", stale.name());
+      start(stale.name());
+    }
+  }
+
+  public synchronized Status start(String projection) {
+    Rebuild<?> current = rebuilds.get(projection);
+    if (current != null && (current.state == State.RUNNING || current.state == State.HANDING_OVER)) {
+      throw new ResponseStatusException(CONFLICT, "Projection " + projection + " is already being rebuilt");
+    }
+    Subscriber subscriber = dispatcher.subscriber(projection)
+        .filter(s -> s.rebuildable() != null)
+        .orElseThrow(() -> new ResponseStatusException(NOT_FOUND, "No rebuildable projection " + projection));
+    Rebuild<?> rebuild = new Rebuild<>(subscriber, subscriber.rebuildable());
+    rebuilds.put(projection, rebuild);
+    rebuild.thread.start();
+    return rebuild.status();
+  }
+
+  public Status status(String projection) {
+    Rebuild<?> rebuild = rebuilds.get(projection);
+    if (rebuild == null) {
+      throw new ResponseStatusException(NOT_FOUND, "Projection " + projection + " was not rebuilt");
+    }
+    return rebuild.status();
+  }
+
+  private class Rebuild<S extends ProjectionState> implements Runnable {
+    private final Subscriber subscriber;
+    private final Rebuildable<S> target;
+    private final Set<String> eventTypes;
+    private final Thread thread;
+    private final AtomicLong eventsRead = new AtomicLong();
+    private final AtomicLong eventsApplied = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos;
+    private volatile Position position; // of the last event replayed
+    private volatile State state = State.RUNNING;
+
+    @SuppressWarnings("unchecked")
+    private Rebuild(Subscriber subscriber, Rebuildable<?> target) {
+      this.subscriber = subscriber;
+      this.target = (Rebuildable<S>) target;
+      this.eventTypes = subscriber.eventTypes();
+      this.thread = Thread.ofPlatform().name("rebuild-" + subscriber.name()).daemon().unstarted(this);
+    }
+
+    @Override
+    public void run() {
+      S green = target.emptyState();
+      try {
+        replay(green, null, true);
+        state = State.HANDING_OVER;
+        dispatcher.handOver(subscriber, position, until -> {
+          replay(green, until, false); // only the events appended during the last throttled read
+          target.install(green);
+          return green;
+        });
+        finish(State.COMPLETED);
+        log.info("Rebuilt projection {} from {} events in {} s, swapped in", subscriber.name(), eventsRead.get(),
+            TimeUnit.NANOSECONDS.toSeconds(endNanos - startNanos));
+      } catch (InterruptedException stopped) {
+        finish(State.STOPPED);
+      } catch (Exception e) {
+        finish(State.FAILED);
+        log.error("Could not rebuild projection {}", subscriber.name(), e);
+      }
+    }
+
+    // until == null: up to the end of $all
+    private void replay(S green, Position until, boolean throttled) throws Exception {
+      while (running && (until == null || position == null || position.compareTo(until) < 0)) {
+        var options = ReadAllOptions.get().forwards().maxCount(READ_BATCH);
+        options = position == null ? options.fromStart() : options.fromPosition(position);
+        var events = eventStore.readAll(options).get().getEvents();
+        if (throttled) {
+          rateLimiter.acquire(events.size());
+        }
+        for (var resolvedEvent : events) {
+          RecordedEvent event = resolvedEvent.getEvent();
+          if (position != null && event.getPosition().compareTo(position) <= 0) {
+            continue; // reading from a position includes the event at it
+          }
+          if (until != null && event.getPosition().compareTo(until) > 0) {
+            return;
+          }
+          if (event.getStreamId().startsWith("user-") && eventTypes.contains(event.getEventType())) {
+            target.apply(green, GsonUtil.fromEventDataSealed(event, UserEvent.class), event);
+            eventsApplied.incrementAndGet();
+          }
+          eventsRead.incrementAndGet();
+          position = event.getPosition();
+        }
+        if (events.size() < READ_BATCH) {
+          return;
+        }
+      }
+      if (!running) {
+        throw new InterruptedException("Shutting down");
+      }
+    }
+
+    private void finish(State finalState) {
+      endNanos = System.nanoTime();
+      state = finalState;
+    }
+
+    private Status status() {
+      State current = state;
+      boolean ongoing = current == State.RUNNING || current == State.HANDING_OVER;
+      double seconds = ((ongoing ? System.nanoTime() : endNanos) - startNanos) / 1e9;
+      Position at = position;
+      long commit = at == null ? 0 : at.getCommitUnsigned();
+      Position headNow = dispatcher.head();
+      Long head = headNow == null ? null : Math.max(commit, headNow.getCommitUnsigned());
+      Integer percent = current == State.COMPLETED ? Integer.valueOf(100) : head == null || head == 0 ? null : (int) (commit * 100 / head);
+      Long eta = ongoing && head != null && commit > 0 && seconds > 0 ? (long) ((head - commit) * seconds / commit) : null;
+      return new Status(subscriber.name(), current, eventsRead.get(), eventsApplied.get(), commit, head, percent,
+          seconds <= 0 ? 0 : (long) (eventsRead.get() / seconds), eta);
+    }
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    for (Rebuild<?> rebuild : rebuilds.values()) {
+      try {
+        rebuild.thread.interrupt();
+        rebuild.thread.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+}
@@ -0,0 +1,36 @@
+package victor.training.sourcing.user.subscription;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// The in-memory state of a projection, dumped to a local checkpoint file so that
+// at startup the projection resumes from there instead of replaying $all from the start.
+public interface ProjectionState {
+  // for subscribers that only need to remember how far they got
+  ProjectionState POSITION_ONLY = new ProjectionState() {
+    public int version() {
+      return 1;
+    }
+
+    public void dump(DataOutput out) {
+    }
+
+    public void restore(DataInput in) {
+    }
+  };
+
+  // bump it whenever the dump format changes => older checkpoints are ignored (full replay)
+  int version();
+
+  // bump it whenever the events are handled differently, with the same dump format: a checkpoint of an older logic
+  // is still restored and served while a new state is rebuilt in the background, if the subscriber is rebuildable
+  default int logicVersion() {
+    return 1;
+  }
+
+  void dump(DataOutput out) throws IOException;
+
+  // all-or-nothing: parse everything before replacing the current state
+  void restore(DataInput in) throws IOException;
+}
@@ -0,0 +1,44 @@
+package victor.training.sourcing.user.subscription;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.List;
+
+// OUT_OF_SERVICE while the projections catch up with the head of $all at start => /actuator/health/readiness too,
+// so that a load balancer only routes queries to this node once they see the existing users.
+// DOWN while the subscription to $all is dropped: the projections stop moving until it is resubscribed.
+// DOWN once a projection failed on an event: it stays behind there until the app is restarted; same if a dispatcher
+// lane failed on one of its own tasks.
+@Component
+public class ProjectionsHealthIndicator implements HealthIndicator {
+  private final UserEventDispatcher dispatcher;
+
+  public ProjectionsHealthIndicator(UserEventDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
+  @Override
+  public Health health() {
+    Health.Builder health;
+    List<String> failed = dispatcher.failedSubscribers();
+    if (dispatcher.isSubscriptionDown()) {
+      health = Health.down().withDetail("subscriptionDownSince", Instant.ofEpochMilli(dispatcher.subscriptionDownSinceMillis()));
+    } else if (!failed.isEmpty()) {
+      health = Health.down().withDetail("failedSubscribers", failed);
+    } else if (dispatcher.laneFailure() != null) {
+      health = Health.down().withDetail("laneFailure", dispatcher.laneFailure());
+    } else {
+      health = dispatcher.isCaughtUp() ? Health.up() : Health.outOfService();
+    }
+    if (dispatcher.lastPosition() != null) {
+      health.withDetail("position", dispatcher.lastPosition().getCommitUnsigned());
+    }
+    if (dispatcher.head() != null) {
+      health.withDetail("head", dispatcher.head().getCommitUnsigned());
+    }
+    return health.build();
+  }
+}
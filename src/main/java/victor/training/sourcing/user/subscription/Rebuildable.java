@@ -0,0 +1,17 @@
+package victor.training.sourcing.user.subscription;
+
+import com.eventstore.dbclient.RecordedEvent;
+import victor.training.sourcing.user.domain.UserEvent;
+
+// A projection whose state can be rebuilt from scratch in the background while the current one keeps serving
+// queries, then swapped in (blue/green, see ProjectionRebuilds). Its live callbacks must apply events
+// to the state installed last.
+public interface Rebuildable<S extends ProjectionState> {
+  S emptyState();
+
+  // what the live callbacks do, on the given state
+  void apply(S state, UserEvent event, RecordedEvent recordedEvent);
+
+  // from now on, queries & live events use this state; drop the previous one
+  void install(S state);
+}
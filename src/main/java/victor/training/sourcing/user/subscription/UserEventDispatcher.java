@@ -0,0 +1,812 @@
+package victor.training.sourcing.user.subscription;
+
+import com.eventstore.dbclient.*;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.Resubscriber;
+import victor.training.sourcing.store.AllFilter;
+import victor.training.sourcing.store.EventStore;
+import victor.training.sourcing.user.domain.UserEvent;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+
+// One subscription to $all for all projections in this app:
+// - the server only sends events of "user-" streams (no system events, no snapshots)
+// - the subscription thread only routes: event type -> subscribers' callbacks, handed to worker lanes via bounded queues
+//   (full queue = the subscription waits => backpressure up to the server)
+// - lanes: projection.workers partitions by hash of the stream id => the events of a stream stay in order, users spread
+//   over all cores; an ordered() subscriber gets a lane of its own instead, seeing all its events in $all order
+// - each event is decoded once, by the first lane that needs it, and only if some subscriber handles its type
+// - a checkpoint first drains all lanes => the states dumped contain exactly the events up to its position
+// Projections having a checkpoint resume from its position; the subscription starts from the earliest one needed.
+// Startup doesn't wait for the catch-up: a background thread first replays the history up to the head of $all in parallel
+// (see ParallelCatchUp), then subscribes right after the last position replayed => no gaps, no duplicates.
+// Until caught up with the head, the app is not ready (see ProjectionsHealthIndicator): caught up = the lanes processed all
+// the events up to it, not only routed them.
+// Read-your-writes: a query can first await its client's last command position (see awaitProcessed). A waiter is a future
+// per call, by position (removed if it times out); once an event at/after it is routed, a marker is queued behind it in every lane, and the last lane to reach
+// the marker completes the futures up to there => no polling, and no marker at all while nobody waits.
+// A dropped subscription is resubscribed from lastPosition in the background, with backoff; meanwhile not ready.
+// A subscriber whose callback throws is stopped at that event: it gets no more events and is no longer checkpointed, so that
+// the next start replays from its last checkpoint instead of skipping the event; meanwhile health is DOWN.
+// Metrics per subscriber: events handled (rate = events/sec) and lag = commit position of the last user event in $all
+// (the head the filtered subscription can reach) - that up to which the lanes feeding it applied all events routed.
+@Slf4j
+@Component
+public class UserEventDispatcher extends SubscriptionListener implements SmartLifecycle {
+  private static final long RESUBSCRIBE_BACKOFF_MILLIS = 1000;
+  private static final long RESUBSCRIBE_MAX_BACKOFF_MILLIS = 30_000;
+  private static final String STREAM_PREFIX = "user-";
+  private static final int HEAD_SCAN_BATCH = 256;
+  private final EventStore eventStore;
+  private final ProjectionCheckpoints checkpoints;
+  private final MeterRegistry meterRegistry;
+  private final long lagPollSeconds;
+  private final int workers;
+  private final int workerQueue;
+  private final boolean parallelBootstrap;
+  private final Duration indexWait;
+  private final Duration maxWaitForPosition;
+  private final Resubscriber resubscriber = new Resubscriber("$all", RESUBSCRIBE_BACKOFF_MILLIS, RESUBSCRIBE_MAX_BACKOFF_MILLIS,
+      this::isRunning, this::subscribe);
+  private final ScheduledExecutorService headPoller = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "head-poller");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Map<String, List<Route>> routes = new HashMap<>();
+  private final List<Subscriber> subscribers = new ArrayList<>();
+  private final List<Lane> lanes = new ArrayList<>();
+  private Lane[] partitions;
+  private Map<String, EventRoutes> dispatchTable;
+  private volatile Subscription subscription;
+  private volatile Position lastPosition;
+  private volatile Position head; // of the last user event in $all
+  private Position headScanned; // the last event in $all when the head was last looked for
+  private volatile Position catchUpTarget; // the head of $all at start
+  private volatile boolean caughtUp;
+  private boolean caughtUpRouted; // all up to the target routed: caughtUp once the lanes processed them
+  private volatile boolean running;
+  private volatile String laneFailure;
+  private Thread catchUp;
+  // by commit position, one future per call: a query timing out forgets only its own; added/removed under synchronized(waiters)
+  private final ConcurrentSkipListMap<Long, List<CompletableFuture<Void>>> waiters = new ConcurrentSkipListMap<>();
+  private volatile long processed = -1; // commit position reached by all lanes
+  private long signalled = -1; // commit position of the last marker queued
+
+  public UserEventDispatcher(EventStore eventStore,
+                             ProjectionCheckpoints checkpoints,
+                             MeterRegistry meterRegistry,
+                             @Value("${projection.lag.poll-seconds:5}") long lagPollSeconds,
+                             @Value("${projection.workers:4}") int workers,
+                             @Value("${projection.worker-queue:1024}") int workerQueue,
+                             @Value("${projection.bootstrap.parallel:true}") boolean parallelBootstrap,
+                             @Value("${projection.bootstrap.index-wait-seconds:10}") long indexWaitSeconds,
+                             @Value("${projection.read-your-writes.max-wait-ms:5000}") long maxWaitForPositionMillis) {
+    this.eventStore = eventStore;
+    this.checkpoints = checkpoints;
+    this.meterRegistry = meterRegistry;
+    this.lagPollSeconds = lagPollSeconds;
+    this.workers = workers;
+    this.workerQueue = workerQueue;
+    this.parallelBootstrap = parallelBootstrap;
+    this.indexWait = Duration.ofSeconds(indexWaitSeconds);
+    this.maxWaitForPosition = Duration.ofMillis(maxWaitForPositionMillis);
+    Gauge.builder("subscription.waiting-positions", waiters, Map::size)
+        .description("Positions awaited by queries (read-your-writes)")
+        .register(meterRegistry);
+  }
+
+  public enum StartFrom {
+    START, // projections: rebuild their state from the full history
+    END // reactors: only react to events happening from now on
+  }
+
+  public class Subscriber {
+    private final String name;
+    private final StartFrom startFrom;
+    private Position skipUntil; // events up to here were already seen by this subscriber
+    private volatile ProjectionState state;
+    private Rebuildable<?> rebuildable;
+    private boolean stale; // restored from a checkpoint of an older logic, to rebuild
+    private long lastCheckpointMillis;
+    private boolean ordered;
+    private volatile List<Lane> handledBy = List.of();
+    private volatile Position failedAt; // the event its callback threw on: stopped there
+    private final Counter events;
+
+    private Subscriber(String name, StartFrom startFrom) {
+      this.name = name;
+      this.startFrom = startFrom;
+      this.events = meterRegistry.counter("subscription.events", "subscriber", name);
+      Gauge.builder("subscription.lag", this, Subscriber::lag)
+          .description("Commit position of the last user event in $all minus that up to which all events were applied")
+          .tag("subscriber", name)
+          .register(meterRegistry);
+    }
+
+    private double lag() {
+      Position headNow = head;
+      return headNow == null ? 0 : Math.max(0, headNow.getCommitUnsigned() - applied());
+    }
+
+    // commit position up to which its lanes handled all the events routed to them; -1 = none yet
+    long applied() {
+      Position routed = lastPosition; // read before the lanes' pending counts (see Lane#reached)
+      long applied = routed == null ? -1 : routed.getCommitUnsigned();
+      for (Lane lane : handledBy) {
+        applied = Math.min(applied, lane.reached(applied));
+      }
+      Position seen = skipUntil;
+      applied = seen == null ? applied : Math.max(applied, seen.getCommitUnsigned());
+      Position failed = failedAt;
+      return failed == null ? applied : Math.min(applied, failed.getCommitUnsigned() - 1);
+    }
+
+    private synchronized void fail(RecordedEvent recorded, Throwable e) {
+      if (failedAt != null) {
+        return;
+      }
+      failedAt = recorded.getPosition();
+      meterRegistry.counter("subscription.failures", "subscriber", name).increment();
+      log.error("Subscriber {} failed on {}@{} at {}: stopped there until the next start, that resumes from its last checkpoint",
+          name, recorded.getEventType(), recorded.getStreamId(), failedAt, e);
+    }
+
+    public boolean isFailed() {
+      return failedAt != null;
+    }
+
+    public <E extends UserEvent> Subscriber on(Class<E> eventType, BiConsumer<E, RecordedEvent> callback) {
+      if (running) throw new IllegalStateException("Subscribe before the application starts");
+      routes.computeIfAbsent(eventType.getSimpleName(), k -> new ArrayList<>()).add(new Route(this, callback));
+      return this;
+    }
+
+    // all its events on one thread, in $all order (eg to copy its state as-of a position); else only in order per stream,
+    // with different streams handled concurrently => its callbacks must be thread-safe
+    public Subscriber ordered() {
+      if (running) throw new IllegalStateException("Subscribe before the application starts");
+      this.ordered = true;
+      return this;
+    }
+
+    // periodically saves the state, to resume from there after a restart
+    public Subscriber checkpointed(ProjectionState state) {
+      this.state = state;
+      return this;
+    }
+
+    // its state can be rebuilt in the background, then swapped in (see ProjectionRebuilds)
+    public <S extends ProjectionState> Subscriber rebuildable(Rebuildable<S> rebuildable) {
+      this.rebuildable = rebuildable;
+      return this;
+    }
+
+    public String name() {
+      return name;
+    }
+
+    Rebuildable<?> rebuildable() {
+      return rebuildable;
+    }
+
+    // the types of the events it handles
+    Set<String> eventTypes() {
+      Set<String> types = new HashSet<>();
+      routes.forEach((type, typeRoutes) -> {
+        if (typeRoutes.stream().anyMatch(route -> route.subscriber() == this)) {
+          types.add(type);
+        }
+      });
+      return types;
+    }
+
+    private void restoreCheckpoint() {
+      var checkpoint = checkpoints.load(name, state.version());
+      if (checkpoint.isEmpty()) {
+        return;
+      }
+      if (checkpoint.get().logicVersion() != state.logicVersion()) {
+        if (rebuildable == null) {
+          log.info("Checkpoint of {} is of another logic version, replaying from start", name);
+          return;
+        }
+        stale = true; // served until rebuilt
+      }
+      try {
+        state.restore(checkpoint.get().state());
+        skipUntil = checkpoint.get().position();
+        log.info("Restored {} from checkpoint at {}", name, skipUntil);
+      } catch (Exception e) {
+        log.warn("Could not restore {} from checkpoint, replaying from start: {}", name, e.toString());
+      }
+    }
+
+    private void checkpoint(Position position, long now) {
+      if (failedAt != null) {
+        return; // never past the event it failed on
+      }
+      boolean aheadOfPosition = skipUntil != null && skipUntil.compareTo(position) > 0; // just restored, nothing new yet
+      checkpoints.save(name, state, aheadOfPosition ? skipUntil : position);
+      lastCheckpointMillis = now;
+    }
+  }
+
+  private record Route(Subscriber subscriber, BiConsumer<? extends UserEvent, RecordedEvent> callback) {}
+
+  // of an event type: the routes run by the partition lane of the stream + by the lanes of ordered subscribers
+  private record EventRoutes(Route[] partitioned, LaneRoutes[] ordered) {}
+
+  private record LaneRoutes(Lane lane, Route[] routes) {}
+
+  // decoded at most once, by the first lane needing it; then only read
+  private static final class Delivery {
+    private final RecordedEvent recorded;
+    private volatile UserEvent event;
+
+    private Delivery(RecordedEvent recorded) {
+      this.recorded = recorded;
+    }
+
+    private UserEvent event() {
+      UserEvent decoded = event;
+      if (decoded == null) {
+        event = decoded = GsonUtil.fromEventDataSealed(recorded, UserEvent.class);
+      }
+      return decoded;
+    }
+  }
+
+  // marker != null: no event, only run once the lane got this far
+  private record Task(Delivery delivery, Route[] routes, Runnable marker) {}
+
+  private final class Lane implements Runnable {
+    private final BlockingQueue<Task> queue = new ArrayBlockingQueue<>(workerQueue);
+    private final AtomicLong pending = new AtomicLong(); // events queued or being handled
+    private volatile long done = -1; // commit position of the last event handled
+    private final Thread thread;
+
+    private Lane(String name) {
+      thread = Thread.ofPlatform().name(name).daemon().unstarted(this);
+    }
+
+    // a task throwing doesn't kill the lane: its queue would fill up and block the routing of every subscriber
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Task task = queue.take();
+          try {
+            if (task.marker() != null) {
+              task.marker().run();
+            } else {
+              for (Route route : task.routes()) {
+                dispatch(route, task.delivery());
+              }
+            }
+          } catch (Throwable e) {
+            laneFailed(thread.getName(), e);
+          } finally {
+            if (task.marker() == null) {
+              done = task.delivery().recorded.getPosition().getCommitUnsigned();
+              pending.decrementAndGet();
+            }
+          }
+        }
+      } catch (InterruptedException stopped) {
+        // shutdown
+      }
+    }
+
+    private void put(Delivery delivery, Route[] routes) throws InterruptedException {
+      pending.incrementAndGet();
+      try {
+        queue.put(new Task(delivery, routes, null));
+      } catch (InterruptedException e) {
+        pending.decrementAndGet();
+        throw e;
+      }
+    }
+
+    // routed: read before => if nothing is pending now, all the events routed up to there were handled
+    private long reached(long routed) {
+      return pending.get() == 0 ? routed : done;
+    }
+  }
+
+  private void laneFailed(String lane, Throwable e) {
+    laneFailure = lane + ": " + e;
+    log.error("Lane {} failed on a task, continuing", lane, e);
+  }
+
+  // a lane task threw outside of any subscriber callback (eg. completing waiters): some may never complete
+  public String laneFailure() {
+    return laneFailure;
+  }
+
+  public List<String> failedSubscribers() {
+    return subscribers.stream().filter(Subscriber::isFailed).map(Subscriber::name).toList();
+  }
+
+  public Optional<Subscriber> subscriber(String name) {
+    return subscribers.stream().filter(subscriber -> subscriber.name.equals(name)).findFirst();
+  }
+
+  // restored from a checkpoint of an older logic: to rebuild in the background
+  public List<Subscriber> staleSubscribers() {
+    return subscribers.stream().filter(subscriber -> subscriber.stale).toList();
+  }
+
+  @FunctionalInterface
+  interface CatchUp {
+    // brings the new state up to position (null = the start), and installs it
+    ProjectionState to(Position position) throws Exception;
+  }
+
+  // blue/green swap: no event is routed meanwhile, and all those routed were handled by the old state;
+  // the new state catches up with the last one, or with what the subscriber saw before a restart.
+  // rebuiltUntil: the new state may be ahead (the subscription lagging) => the subscriber skips up to there
+  synchronized void handOver(Subscriber subscriber, Position rebuiltUntil, CatchUp catchUp) throws Exception {
+    drain();
+    Position until = lastPosition;
+    for (Position seen : new Position[]{subscriber.skipUntil, rebuiltUntil}) {
+      if (seen != null && (until == null || seen.compareTo(until) > 0)) {
+        until = seen;
+      }
+    }
+    subscriber.state = catchUp.to(until);
+    subscriber.skipUntil = until;
+    subscriber.stale = false;
+    subscriber.failedAt = null; // rebuilt past it
+    if (until != null) {
+      subscriber.checkpoint(until, System.currentTimeMillis());
+    }
+  }
+
+  public Subscriber subscribe(String name, StartFrom startFrom) {
+    Subscriber subscriber = new Subscriber(name, startFrom);
+    subscribers.add(subscriber);
+    return subscriber;
+  }
+
+  @Override
+  public void start() {
+    try {
+      startLanes();
+      head = userHead();
+      long now = System.currentTimeMillis();
+      for (Subscriber subscriber : subscribers) {
+        subscriber.skipUntil = subscriber.startFrom == StartFrom.END ? head : null;
+        subscriber.lastCheckpointMillis = now;
+        if (subscriber.state != null) {
+          subscriber.restoreCheckpoint();
+        }
+      }
+      boolean anyFromStart = subscribers.stream().anyMatch(s -> s.skipUntil == null);
+      lastPosition = anyFromStart ? null : subscribers.stream().map(s -> s.skipUntil).min(Position::compareTo).orElse(head);
+      processed = lastPosition == null ? -1 : lastPosition.getCommitUnsigned();
+      lanes.forEach(lane -> lane.done = processed);
+      catchUpTarget = head;
+      caughtUp = head == null || lastPosition != null && lastPosition.compareTo(head) >= 0;
+      running = true;
+      catchUp = Thread.ofPlatform().name("projection-catch-up").daemon().start(this::catchUp);
+      headPoller.scheduleWithFixedDelay(this::pollHead, lagPollSeconds, lagPollSeconds, TimeUnit.SECONDS);
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IllegalStateException("Could not read the head of $all", e);
+    }
+  }
+
+  private void catchUp() {
+    Position until = catchUpTarget;
+    if (parallelBootstrap && !caughtUp) {
+      long t0 = System.currentTimeMillis();
+      try {
+        boolean replayed = new ParallelCatchUp(eventStore, routes.keySet(), "user-", indexWait).run(lastPosition, until, event -> {
+          if (!running) throw new CancellationException();
+          onEvent(null, event);
+        });
+        if (replayed) {
+          advanceTo(until);
+          log.info("Caught up in parallel with {} in {} ms", until, System.currentTimeMillis() - t0);
+        }
+      } catch (CancellationException stopped) {
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) { // the events replayed so far are kept: the subscription continues after them
+        log.warn("Parallel catch-up failed at {}, continuing via the subscription", lastPosition, e);
+      }
+    }
+    while (running) {
+      try {
+        subscribe();
+        if (!running) { // stopped meanwhile
+          subscription.stop();
+          return;
+        }
+        log.info("Subscribed to {} event types for {} subscribers from {}", routes.size(), subscribers.size(), lastPosition);
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        log.error("Could not subscribe to $all, retrying", e);
+        try {
+          TimeUnit.SECONDS.sleep(1);
+        } catch (InterruptedException stopped) {
+          return;
+        }
+      }
+    }
+  }
+
+  // no event of any subscriber in (lastPosition, position]: continue from there
+  private synchronized void advanceTo(Position position) {
+    if (lastPosition == null || position.compareTo(lastPosition) > 0) {
+      lastPosition = position;
+    }
+    markCaughtUpIfAt(position);
+    signalIfWaited();
+  }
+
+  private void markCaughtUpIfAt(Position position) {
+    if (!caughtUp && catchUpTarget != null && position.compareTo(catchUpTarget) >= 0) {
+      markCaughtUpOnceProcessed(position);
+    }
+  }
+
+  // routed all up to position: caught up when the lanes processed them too
+  private synchronized void markCaughtUpOnceProcessed(Position position) {
+    if (caughtUpRouted) {
+      return;
+    }
+    caughtUpRouted = true;
+    whenProcessed(position.getCommitUnsigned()).thenRun(() -> {
+      caughtUp = true;
+      log.info("Projections caught up with {}", position);
+    });
+  }
+
+  // the projections reflect all the events up to the head of $all at start (lagging at most as much as the live subscription)
+  public boolean isCaughtUp() {
+    return caughtUp;
+  }
+
+  public Position lastPosition() {
+    return lastPosition;
+  }
+
+  // dropped, being resubscribed: the projections don't move meanwhile
+  public boolean isSubscriptionDown() {
+    return resubscriber.isDown();
+  }
+
+  public long subscriptionDownSinceMillis() {
+    return resubscriber.downSinceMillis();
+  }
+
+  public Position head() {
+    return head;
+  }
+
+  void startLanes() {
+    partitions = new Lane[workers];
+    for (int i = 0; i < workers; i++) {
+      lanes.add(partitions[i] = new Lane("dispatch-" + i));
+    }
+    Map<Subscriber, Lane> orderedLanes = new HashMap<>();
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.ordered) {
+        Lane lane = new Lane("dispatch-" + subscriber.name);
+        orderedLanes.put(subscriber, lane);
+        lanes.add(lane);
+        subscriber.handledBy = List.of(lane);
+      } else {
+        subscriber.handledBy = List.of(partitions);
+      }
+    }
+    dispatchTable = new HashMap<>();
+    routes.forEach((eventType, eventRoutes) -> {
+      Route[] partitioned = eventRoutes.stream().filter(route -> !route.subscriber().ordered).toArray(Route[]::new);
+      LaneRoutes[] ordered = orderedLanes.entrySet().stream()
+          .map(lane -> new LaneRoutes(lane.getValue(), eventRoutes.stream().filter(route -> route.subscriber() == lane.getKey()).toArray(Route[]::new)))
+          .filter(laneRoutes -> laneRoutes.routes().length > 0)
+          .toArray(LaneRoutes[]::new);
+      dispatchTable.put(eventType, new EventRoutes(partitioned, ordered));
+    });
+    lanes.forEach(lane -> lane.thread.start());
+  }
+
+  // returns once every lane handled all the events handed to it so far
+  void drain() throws InterruptedException {
+    var barrier = new CountDownLatch(lanes.size());
+    for (Lane lane : lanes) {
+      lane.queue.put(new Task(null, null, barrier::countDown));
+    }
+    barrier.await();
+  }
+
+  // completes when all the subscribers have processed all the events up to commitPosition (of a command's append);
+  // right away if they have, eg. as restored from their checkpoints
+  public CompletableFuture<Void> whenProcessed(long commitPosition) {
+    if (commitPosition <= processed) {
+      return CompletableFuture.completedFuture(null);
+    }
+    var done = new CompletableFuture<Void>();
+    synchronized (waiters) {
+      waiters.computeIfAbsent(commitPosition, k -> new ArrayList<>()).add(done);
+    }
+    if (commitPosition <= processed) { // reached meanwhile
+      complete(processed);
+    } else if (lastPosition != null && commitPosition <= lastPosition.getCommitUnsigned()) { // already routed
+      signalIfWaited();
+    }
+    return done;
+  }
+
+  // for queries taking the position of the client's last command: at most projection.read-your-writes.max-wait-ms;
+  // 400 right away for a position beyond the last user event in $all (never reached)
+  public void awaitProcessed(Long minPosition) throws InterruptedException {
+    if (minPosition == null) {
+      return;
+    }
+    if (isBeyondHead(minPosition)) {
+      throw new ResponseStatusException(BAD_REQUEST, "Position " + minPosition + " is beyond the last event");
+    }
+    var done = whenProcessed(minPosition);
+    try {
+      done.get(maxWaitForPosition.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      forget(minPosition, done);
+      throw new ResponseStatusException(SERVICE_UNAVAILABLE, "Projections not yet at position " + minPosition + ", retry later");
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // beyond the head last polled => polls it again (on the poller thread, confining the scan), to be sure
+  private boolean isBeyondHead(long commitPosition) throws InterruptedException {
+    Position known = head;
+    if (known != null && commitPosition <= known.getCommitUnsigned()) {
+      return false;
+    }
+    try {
+      headPoller.submit(this::pollHead).get();
+    } catch (ExecutionException | RejectedExecutionException stopped) {
+      return false;
+    }
+    known = head;
+    return known == null || commitPosition > known.getCommitUnsigned();
+  }
+
+  private void forget(long commitPosition, CompletableFuture<Void> done) {
+    synchronized (waiters) {
+      List<CompletableFuture<Void>> waiting = waiters.get(commitPosition);
+      if (waiting != null && waiting.remove(done) && waiting.isEmpty()) {
+        waiters.remove(commitPosition);
+      }
+    }
+  }
+
+  // synchronized with onEvent: the marker must be queued behind all the events routed up to lastPosition
+  private synchronized void signalIfWaited() {
+    Position position = lastPosition;
+    if (position == null || lanes.isEmpty()) {
+      return;
+    }
+    long commit = position.getCommitUnsigned();
+    Long waited = waiters.higherKey(signalled);
+    if (waited == null || waited > commit) {
+      return; // nobody waits for an event routed since the last marker
+    }
+    signalled = commit;
+    var remaining = new AtomicInteger(lanes.size());
+    Runnable marker = () -> {
+      if (remaining.decrementAndGet() == 0) {
+        complete(commit);
+      }
+    };
+    try {
+      for (Lane lane : lanes) {
+        lane.queue.put(new Task(null, null, marker));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void complete(long commit) {
+    List<CompletableFuture<Void>> done = new ArrayList<>();
+    synchronized (waiters) {
+      if (commit > processed) {
+        processed = commit;
+      }
+      var reached = waiters.headMap(processed, true);
+      reached.values().forEach(done::addAll);
+      reached.clear();
+    }
+    done.forEach(future -> future.complete(null)); // outside the lock: may run callbacks
+  }
+
+  private void pollHead() {
+    try {
+      Position polled = userHead();
+      if (polled != null && (head == null || polled.compareTo(head) > 0)) {
+        head = polled;
+      }
+    } catch (Exception e) {
+      log.debug("Could not read the head of $all: {}", e.toString());
+    }
+  }
+
+  // the position of the last user event in $all, skipping the later system events, metadata & snapshots the filtered
+  // subscription never gets; null if none since the previous call (only scans back to where that one started)
+  private Position userHead() throws InterruptedException, ExecutionException {
+    Position scannedBefore = headScanned;
+    var events = eventStore.readAll(ReadAllOptions.get().backwards().fromEnd().maxCount(HEAD_SCAN_BATCH)).get().getEvents();
+    if (events.isEmpty()) {
+      return null;
+    }
+    headScanned = events.getFirst().getEvent().getPosition();
+    while (true) {
+      for (ResolvedEvent event : events) {
+        Position position = event.getEvent().getPosition();
+        if (scannedBefore != null && position.compareTo(scannedBefore) <= 0) {
+          return null;
+        }
+        if (event.getEvent().getStreamId().startsWith(STREAM_PREFIX)) {
+          return position;
+        }
+      }
+      if (events.size() < HEAD_SCAN_BATCH) {
+        return null;
+      }
+      Position before = events.getLast().getEvent().getPosition();
+      events = eventStore.readAll(ReadAllOptions.get().backwards().fromPosition(before).maxCount(HEAD_SCAN_BATCH)).get().getEvents();
+    }
+  }
+
+  private void subscribe() throws InterruptedException, ExecutionException {
+    var options = lastPosition == null ? SubscribeToAllOptions.get().fromStart() : SubscribeToAllOptions.get().fromPosition(lastPosition);
+    subscription = eventStore.subscribeToAll(this, options, AllFilter.streamNamePrefix(STREAM_PREFIX)).get();
+  }
+
+  // synchronized: the final checkpoint on shutdown must not interleave with an event
+  @Override
+  public synchronized void onEvent(Subscription subscription, ResolvedEvent resolvedEvent) {
+    RecordedEvent recorded = resolvedEvent.getEvent();
+    EventRoutes eventRoutes = dispatchTable.get(recorded.getEventType());
+    if (eventRoutes != null) {
+      Delivery delivery = new Delivery(recorded);
+      try {
+        if (eventRoutes.partitioned().length > 0) {
+          partitions[Math.floorMod(recorded.getStreamId().hashCode(), partitions.length)].put(delivery, eventRoutes.partitioned());
+        }
+        for (LaneRoutes ordered : eventRoutes.ordered()) {
+          ordered.lane().put(delivery, ordered.routes());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    lastPosition = recorded.getPosition();
+    if (head == null || lastPosition.compareTo(head) > 0) {
+      head = lastPosition;
+    }
+    markCaughtUpIfAt(lastPosition);
+    if (!waiters.isEmpty()) {
+      signalIfWaited();
+    }
+    checkpointIfDue();
+  }
+
+  // the events after the target may all be of other streams: the subscription tells when it reached the head
+  @Override
+  public void onCaughtUp(Subscription subscription) {
+    Position routed = lastPosition;
+    if (caughtUp) {
+      return;
+    }
+    if (routed == null) { // nothing routed at all
+      caughtUp = true;
+      log.info("Projections caught up via the subscription");
+      return;
+    }
+    markCaughtUpOnceProcessed(routed);
+  }
+
+  private void checkpointIfDue() {
+    long now = System.currentTimeMillis();
+    boolean drained = false;
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.state != null && now - subscriber.lastCheckpointMillis >= checkpoints.intervalMillis()) {
+        if (!drained) {
+          try {
+            drain(); // until lastPosition
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+          drained = true;
+        }
+        subscriber.checkpoint(lastPosition, now);
+      }
+    }
+    if (drained) {
+      complete(lastPosition.getCommitUnsigned());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void dispatch(Route route, Delivery delivery) {
+    RecordedEvent recorded = delivery.recorded;
+    Subscriber subscriber = route.subscriber();
+    Position skipUntil = subscriber.skipUntil;
+    if (skipUntil != null && recorded.getPosition().compareTo(skipUntil) <= 0 || subscriber.failedAt != null) {
+      return;
+    }
+    subscriber.events.increment();
+    try {
+      ((BiConsumer<UserEvent, RecordedEvent>) route.callback()).accept(delivery.event(), recorded);
+    } catch (Throwable e) { // also failing to decode it: never skip an event silently
+      subscriber.fail(recorded, e);
+    }
+  }
+
+  @Override
+  public void onCancelled(Subscription subscription, Throwable exception) {
+    resubscriber.dropped(subscription, exception);
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    headPoller.shutdownNow();
+    if (catchUp != null) {
+      catchUp.interrupt();
+    }
+    if (subscription != null) {
+      subscription.stop();
+    }
+    synchronized (this) {
+      try {
+        if (lastPosition == null || lanes.isEmpty()) {
+          return;
+        }
+        drain();
+        for (Subscriber subscriber : subscribers) {
+          if (subscriber.state != null) {
+            subscriber.checkpoint(lastPosition, System.currentTimeMillis());
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        lanes.forEach(lane -> lane.thread.interrupt());
+      }
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+}
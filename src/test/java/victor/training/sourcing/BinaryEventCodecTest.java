@@ -0,0 +1,69 @@
+package victor.training.sourcing;
+
+import org.junit.jupiter.api.Test;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent.UserCreated;
+import victor.training.sourcing.user.domain.UserEvent.UserLoggedIn;
+import victor.training.sourcing.user.domain.UserEvent.UserRoleGranted;
+
+import java.io.ByteArrayOutputStream;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static victor.training.sourcing.GsonUtil.binaryCodecs;
+import static victor.training.sourcing.GsonUtil.codecs;
+
+class BinaryEventCodecTest {
+  @Test
+  void roundtrips_events_smaller_than_json() {
+    var created = new UserCreated().name("Jöhn 😀").email("a@b.com").departmentId("d1").birthDate(LocalDate.of(1960, 1, 2));
+    var login = new UserLoggedIn().application("app1").loginTime(LocalDateTime.of(2024, 5, 6, 7, 8, 9, 123_456_789));
+
+    assertThat((UserCreated) binaryCodecs.decode("UserCreated", binaryCodecs.encode(created))).isEqualTo(created);
+    assertThat((UserLoggedIn) binaryCodecs.decode("UserLoggedIn", binaryCodecs.encode(login))).isEqualTo(login);
+    assertThat(binaryCodecs.encode(created).length).isLessThan(codecs.encode(created).length / 2);
+  }
+
+  @Test
+  void roundtrips_snapshots() {
+    var user = new User();
+    user.apply(new UserCreated().name("John").email("a@b.com").departmentId("d1"));
+    user.apply(new UserRoleGranted().role("admin"));
+    user.apply(new UserRoleGranted().role("user"));
+
+    User decoded = binaryCodecs.decode("User", binaryCodecs.encode(user));
+
+    assertThat(decoded.email()).isEqualTo("a@b.com");
+    assertThat(decoded.roles()).containsExactly("admin", "user");
+    assertThat(decoded.emailConfirmed()).isFalse();
+  }
+
+  @Test
+  void skips_fields_it_does_not_know() {
+    var bytes = new ByteArrayOutputStream();
+    bytes.write(1); // format version
+    bytes.write(9 << 3 | 2); // ordinal 9, written by some newer version
+    bytes.write(3);
+    bytes.writeBytes("xyz".getBytes(UTF_8));
+    bytes.write(1 << 3 | 2); // role
+    bytes.write(5);
+    bytes.writeBytes("admin".getBytes(UTF_8));
+
+    UserRoleGranted event = binaryCodecs.decode("UserRoleGranted", bytes.toByteArray());
+
+    assertThat(event.role()).isEqualTo("admin");
+  }
+
+  static class NoOrdinal {
+    private String name;
+  }
+
+  @Test
+  void refuses_fields_without_ordinal() {
+    assertThatThrownBy(() -> new BinaryEventCodec(NoOrdinal.class))
+        .hasMessageContaining("NoOrdinal.name needs an @Ordinal");
+  }
+}
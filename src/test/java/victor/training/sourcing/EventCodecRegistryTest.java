@@ -0,0 +1,62 @@
+package victor.training.sourcing;
+
+import org.junit.jupiter.api.Test;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent.UserCreated;
+import victor.training.sourcing.user.domain.UserEvent.UserLoggedIn;
+
+import com.google.gson.JsonSyntaxException;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static victor.training.sourcing.GsonUtil.codecs;
+import static victor.training.sourcing.GsonUtil.gson;
+
+class EventCodecRegistryTest {
+  @Test
+  void encodes_exactly_as_gson_did() {
+    var event = new UserCreated().name("Jöhn <Ünïcode> 😀").email("a@b.com").departmentId("d&1").birthDate(LocalDate.of(2000, 1, 2));
+
+    assertThat(codecs.encode(event)).isEqualTo(gson.toJson(event).getBytes(UTF_8));
+  }
+
+  @Test
+  void decodes_stored_json() {
+    var json = "{\"name\":\"Jöhn 😀\",\"email\":\"a@b.com\",\"departmentId\":\"d1\",\"birthDate\":\"2000-01-02\"}";
+
+    UserCreated event = codecs.decode("UserCreated", json.getBytes(UTF_8));
+
+    assertThat(event).isEqualTo(gson.fromJson(json, UserCreated.class));
+    assertThat(event.name()).isEqualTo("Jöhn 😀");
+  }
+
+  @Test
+  void roundtrips_dates_and_snapshots() {
+    var login = new UserLoggedIn().application("app1").loginTime(LocalDateTime.of(2024, 5, 6, 7, 8, 9));
+    var user = new User();
+    user.apply(new UserCreated().name("John").email("a@b.com").departmentId("d1"));
+
+    assertThat((UserLoggedIn) codecs.decode("UserLoggedIn", codecs.encode(login))).isEqualTo(login);
+    assertThat(((User) codecs.decode("User", codecs.encode(user))).name()).isEqualTo("John");
+  }
+
+  @Test
+  void truncated_or_malformed_utf8_is_a_parse_error_naming_the_type() {
+    byte[] json = "{\"name\":\"Jöhn\"}".getBytes(UTF_8);
+    int umlaut = "{\"name\":\"J".length(); // ö = 2 bytes from here
+    byte[] truncated = Arrays.copyOf(json, umlaut + 1);
+    byte[] badContinuation = json.clone();
+    badContinuation[umlaut + 1] = 'x';
+
+    for (byte[] corrupt : new byte[][]{truncated, badContinuation}) {
+      assertThatThrownBy(() -> codecs.decode("UserCreated", corrupt))
+          .isInstanceOf(JsonSyntaxException.class)
+          .hasMessageContaining("UserCreated");
+    }
+  }
+}
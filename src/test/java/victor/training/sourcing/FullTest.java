@@ -1,6 +1,6 @@
 package victor.training.sourcing;
 
-import com.eventstore.dbclient.EventStoreDBClient;
+import victor.training.sourcing.store.EventStore;
 import com.google.gson.Gson;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Disabled;
@@ -11,6 +11,7 @@ import org.junit.jupiter.api.TestMethodOrder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
@@ -49,9 +50,10 @@ public class FullTest {
   @Autowired
   UsersThatCanLoginProjection loginUsers;
   @Autowired
-  EventStoreDBClient eventStore;
+  EventStore eventStore;
   @Autowired
   MockMvc mockMvc;
+  Long position; // of the last command, for the queries to read it
 
   @Test
   void _01_create() throws Exception {
@@ -61,7 +63,7 @@ public class FullTest {
         "dep1",
         List.of("app1:ADMIN"));
 
-    commandApi.createUser(createRequest);
+    position = commandApi.createUser(createRequest).position();
 //    extracted(post("/users"), createRequest);
   }
 
@@ -82,7 +84,7 @@ public class FullTest {
 
   @Test
   void _02_get() throws ExecutionException, InterruptedException {
-    var user = getUserByIdProjection.getUser(EMAIL);
+    var user = getUserByIdProjection.getUser(EMAIL, position, null).getBody();
     assertThat(user.email()).isEqualTo(EMAIL);
     assertThat(user.name()).isEqualTo("John");
     assertThat(user.departmentId()).isEqualTo("dep1");
@@ -91,22 +93,32 @@ public class FullTest {
     assertThat(user.active()).isTrue();
   }
 
+  @Test
+  void _02_get_notModified() throws Exception {
+    var first = getUserByIdProjection.getUser(EMAIL.toUpperCase(), position, null);
+    assertThat(first.getBody().email()).isEqualTo(EMAIL);
+    String etag = first.getHeaders().getETag();
+
+    assertThat(getUserByIdProjection.getUser(EMAIL, null, etag).getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+    assertThat(getUserByIdProjection.getUser(EMAIL, null, "\"-1\"").getStatusCode()).isEqualTo(HttpStatus.OK);
+  }
+
   @Test
   void _03_user_cannot_login_yet() throws ExecutionException, InterruptedException {
-    assertThat(loginUsers.getUsersToLogin(null, null))
+    assertThat(loginUsers.getUsersToLogin(null, null, position))
         .doesNotContain(EMAIL);
   }
 
   @Test
   void _10_confirmEmail() throws Exception {
-    commandApi.confirmEmail(EMAIL, "CHEAT");
-    commandApi.confirmEmail(EMAIL, "CHEAT");
-    commandApi.confirmEmail(EMAIL, "CHEAT");
+    position = commandApi.confirmEmail(EMAIL, "CHEAT").position();
+    position = commandApi.confirmEmail(EMAIL, "CHEAT").position();
+    position = commandApi.confirmEmail(EMAIL, "CHEAT").position();
   }
 
   @Test
   void _11_get_emailWasConfirmed() throws ExecutionException, InterruptedException {
-    var user = getUserByIdProjection.getUser(EMAIL);
+    var user = getUserByIdProjection.getUser(EMAIL, position, null).getBody();
     assertThat(user.emailValidated()).isTrue();
     assertThat(user.active()).isTrue();
   }
@@ -114,11 +126,11 @@ public class FullTest {
   @Test
 //  @Disabled
   void _12_user_can_now_login() throws ExecutionException, InterruptedException {
-    var user = getUserByIdProjection.getUser(EMAIL);
+    var user = getUserByIdProjection.getUser(EMAIL, position, null).getBody();
     assertThat(user.emailValidated()).isTrue();
 //    assertThat(user.com).isTrue();
 
-    assertThat(loginUsers.getUsersToLogin(null, null)).contains(EMAIL);
+    assertThat(loginUsers.getUsersToLogin(null, null, position)).contains(EMAIL);
   }
 
   @Test
@@ -133,85 +145,85 @@ public class FullTest {
 
   @Test
   void _22_update_details() throws Exception {
-    commandApi.update(EMAIL, new UserCommandRestApi.UpdateUserRequest(
+    position = commandApi.update(EMAIL, new UserCommandRestApi.UpdateUserRequest(
         "Jane",
-        "dep2"));
+        "dep2")).position();
   }
   @Test
   void _23_get() throws ExecutionException, InterruptedException {
-    var user = getUserByIdProjection.getUser(EMAIL);
+    var user = getUserByIdProjection.getUser(EMAIL, position, null).getBody();
     assertThat(user.name()).isEqualTo("Jane");
     assertThat(user.departmentId()).isEqualTo("dep2");
   }
 
   @Test
   void _30_grant_role() throws Exception {
-    commandApi.grantRole(EMAIL, "app2:ADMIN");
+    position = commandApi.grantRole(EMAIL, "app2:ADMIN").position();
   }
 
   @Test
   void _31_new_role_visible() throws ExecutionException, InterruptedException {
-    var user = getUserByIdProjection.getUser(EMAIL);
+    var user = getUserByIdProjection.getUser(EMAIL, position, null).getBody();
     assertThat(user.roles()).containsExactly(
         "app1:ADMIN",
         "app2:ADMIN");
   }
   @Test
   void _32_revoke_role() throws Exception {
-    commandApi.revokeRole(EMAIL, "app1:ADMIN");
+    position = commandApi.revokeRole(EMAIL, "app1:ADMIN").position();
   }
   @Test
   void _33_new_role_visible() throws ExecutionException, InterruptedException {
-    var user = getUserByIdProjection.getUser(EMAIL);
+    var user = getUserByIdProjection.getUser(EMAIL, position, null).getBody();
     assertThat(user.roles()).containsExactly("app2:ADMIN");
   }
 
   @Test
   void _40_deactivate_user() throws Exception {
-    commandApi.deactivate(EMAIL);
+    position = commandApi.deactivate(EMAIL).position();
   }
 
   @Test
   void _41_get_shows_inactive() throws ExecutionException, InterruptedException {
-    var user = getUserByIdProjection.getUser(EMAIL);
+    var user = getUserByIdProjection.getUser(EMAIL, position, null).getBody();
     assertThat(user.active()).isFalse();
   }
   @Test
   void _42_user_cannot_login() throws ExecutionException, InterruptedException {
-    assertThat(loginUsers.getUsersToLogin(null, null))
+    assertThat(loginUsers.getUsersToLogin(null, null, position))
         .doesNotContain(EMAIL);
   }
   @Test
   void _50_reactivate_user() throws Exception {
-    commandApi.activate(EMAIL);
+    position = commandApi.activate(EMAIL).position();
   }
   @Test
   void _51_get_shows_active() throws ExecutionException, InterruptedException {
-    var user = getUserByIdProjection.getUser(EMAIL);
+    var user = getUserByIdProjection.getUser(EMAIL, position, null).getBody();
     assertThat(user.active()).isTrue();
   }
   @Test
   void _52_user_can_login_again() throws ExecutionException, InterruptedException {
-    assertThat(loginUsers.getUsersToLogin(null, null))
+    assertThat(loginUsers.getUsersToLogin(null, null, position))
         .contains(EMAIL);
   }
 
   @Test
   void _99_time_travel_test() throws Exception {
-    assertThat(loginUsers.getUsersToLogin(null, null)).contains(EMAIL);
-    commandApi.deactivate(EMAIL);
+    assertThat(loginUsers.getUsersToLogin(null, null, position)).contains(EMAIL);
+    position = commandApi.deactivate(EMAIL).position();
 
     Thread.sleep(100);
-    assertThat(loginUsers.getUsersToLogin(null, null)).doesNotContain(EMAIL);
-    commandApi.activate(EMAIL);
+    assertThat(loginUsers.getUsersToLogin(null, null, position)).doesNotContain(EMAIL);
+    position = commandApi.activate(EMAIL).position();
 
     Thread.sleep(100);
-    assertThat(loginUsers.getUsersToLogin(null, null)).contains(EMAIL); // ✅
+    assertThat(loginUsers.getUsersToLogin(null, null, position)).contains(EMAIL); // ✅
 
-    assertThat(loginUsers.getUsersToLogin(null, now().minusMillis(150L).toString()))
+    assertThat(loginUsers.getUsersToLogin(null, now().minusMillis(150L).toString(), null))
         .doesNotContain(EMAIL); // ❌
 
-    assertThat(loginUsers.getUsersToLogin(null, now().minusMillis(250L).toString()))
+    assertThat(loginUsers.getUsersToLogin(null, now().minusMillis(250L).toString(), null))
         .contains(EMAIL); // ✅
   }
 
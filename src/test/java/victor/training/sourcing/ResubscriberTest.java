@@ -0,0 +1,44 @@
+package victor.training.sourcing;
+
+import com.eventstore.dbclient.Subscription;
+import org.junit.jupiter.api.Test;
+import victor.training.sourcing.store.ClientAccess;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class ResubscriberTest {
+  private final Subscription dropped = ClientAccess.subscription("test", () -> {});
+
+  @Test
+  void retriesUntilResubscribed() {
+    var attempts = new AtomicInteger();
+    var resubscriber = new Resubscriber("test", 1, 4, () -> true, () -> {
+      if (attempts.incrementAndGet() < 3) throw new IllegalStateException("server unavailable");
+    });
+
+    resubscriber.dropped(dropped, new RuntimeException("connection lost"));
+
+    assertThat(resubscriber.isDown()).isTrue();
+    await().atMost(Duration.ofSeconds(2)).until(() -> !resubscriber.isDown());
+    assertThat(attempts).hasValue(3);
+  }
+
+  @Test
+  void ignoresFailedSubscribeCalls_andDropsOnceStopped() throws InterruptedException {
+    var attempts = new AtomicInteger();
+    var running = new boolean[]{true};
+    var resubscriber = new Resubscriber("test", 1, 4, () -> running[0], attempts::incrementAndGet);
+
+    resubscriber.dropped((Subscription) null, new RuntimeException("subscribe failed")); // the caller of subscribe retries
+    running[0] = false;
+    resubscriber.dropped(dropped, null);
+
+    Thread.sleep(50);
+    assertThat(attempts).hasValue(0);
+    assertThat(resubscriber.isDown()).isFalse();
+  }
+}
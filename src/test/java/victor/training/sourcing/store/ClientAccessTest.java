@@ -0,0 +1,115 @@
+package victor.training.sourcing.store;
+
+import com.eventstore.dbclient.*;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Pins the package-private client API the adapter relies on: fails on a client upgrade changing it.
+class ClientAccessTest {
+  private static final Instant CREATED = Instant.parse("2024-05-01T10:15:30.123456700Z");
+
+  @Test
+  void recordedAndResolvedEvent() {
+    var id = UUID.randomUUID();
+    var event = ClientAccess.recordedEvent("user-a", 3, id, 42, "UserCreated", "application/json",
+        ClientAccess.ticks(CREATED), "{}".getBytes(), "meta".getBytes());
+
+    assertThat(event.getStreamId()).isEqualTo("user-a");
+    assertThat(event.getRevision()).isEqualTo(3);
+    assertThat(event.getEventId()).isEqualTo(id);
+    assertThat(event.getPosition()).isEqualTo(new Position(42, 42));
+    assertThat(event.getEventType()).isEqualTo("UserCreated");
+    assertThat(event.getContentType()).isEqualTo("application/json");
+    assertThat(event.getCreated()).isEqualTo(CREATED);
+    assertThat(event.getEventData()).isEqualTo("{}".getBytes());
+    assertThat(event.getUserMetadata()).isEqualTo("meta".getBytes());
+
+    var resolved = ClientAccess.resolvedEvent(event);
+    assertThat(resolved.getEvent()).isSameAs(event);
+    assertThat(resolved.getOriginalEvent()).isSameAs(event);
+    assertThat(resolved.getLink()).isNull();
+    assertThat(resolved.getPosition()).contains(new Position(42, 42));
+  }
+
+  @Test
+  void readAndWriteResults() {
+    var event = ClientAccess.resolvedEvent(ClientAccess.recordedEvent("user-a", 0, UUID.randomUUID(), 7,
+        "UserCreated", "application/json", 0, new byte[0], new byte[0]));
+
+    var read = ClientAccess.readResult(List.of(event), 0, 5, new Position(9, 9));
+    assertThat(read.getEvents()).containsExactly(event);
+    assertThat(read.getFirstStreamPosition()).isZero();
+    assertThat(read.getLastStreamPosition()).isEqualTo(5);
+    assertThat(read.getLastAllStreamPosition()).isEqualTo(new Position(9, 9));
+
+    var write = ClientAccess.writeResult(4, 11);
+    assertThat(write.getNextExpectedRevision()).isEqualTo(ExpectedRevision.expectedRevision(4));
+    assertThat(write.getLogPosition()).isEqualTo(new Position(11, 11));
+  }
+
+  @Test
+  void subscription_stopRunsTheCallback() {
+    var stopped = new AtomicBoolean();
+    var subscription = ClientAccess.subscription("sub-1", () -> stopped.set(true));
+
+    assertThat(subscription.getSubscriptionId()).isEqualTo("sub-1");
+    subscription.stop();
+    assertThat(stopped).isTrue();
+  }
+
+  @Test
+  void exceptions() {
+    var wrong = ClientAccess.wrongExpectedVersion("user-a", ExpectedRevision.expectedRevision(1), 2);
+    assertThat(wrong.getStreamName()).isEqualTo("user-a");
+    assertThat(wrong.getNextExpectedRevision()).isEqualTo(ExpectedRevision.expectedRevision(1));
+    assertThat(wrong.getActualVersion()).isEqualTo(ExpectedRevision.expectedRevision(2));
+    assertThat(ClientAccess.wrongExpectedVersion("user-a", ExpectedRevision.streamExists(), -1).getActualVersion())
+        .isEqualTo(ExpectedRevision.noStream());
+
+    assertThat(ClientAccess.streamNotFound("user-b").getStreamName()).isEqualTo("user-b");
+  }
+
+  @Test
+  void appendOptions() {
+    assertThat(ClientAccess.expectedRevision(AppendToStreamOptions.get())).isEqualTo(ExpectedRevision.any());
+    assertThat(ClientAccess.expectedRevision(AppendToStreamOptions.get().expectedRevision(3)))
+        .isEqualTo(ExpectedRevision.expectedRevision(3));
+  }
+
+  @Test
+  void readStreamOptions() {
+    var backwards = ReadStreamOptions.get().backwards().maxCount(10).fromRevision(5);
+    assertThat(ClientAccess.forwards(backwards)).isFalse();
+    assertThat(ClientAccess.maxCount(backwards)).isEqualTo(10);
+    assertThat(ClientAccess.start(backwards).getPositionOrThrow()).isEqualTo(5);
+
+    var forwards = ReadStreamOptions.get().forwards().fromStart();
+    assertThat(ClientAccess.forwards(forwards)).isTrue();
+    assertThat(ClientAccess.start(forwards).isStart()).isTrue();
+  }
+
+  @Test
+  void readAllOptions() {
+    var backwards = ReadAllOptions.get().backwards().maxCount(20).fromEnd();
+    assertThat(ClientAccess.forwards(backwards)).isFalse();
+    assertThat(ClientAccess.maxCount(backwards)).isEqualTo(20);
+    assertThat(ClientAccess.start(backwards).isEnd()).isTrue();
+
+    var forwards = ReadAllOptions.get().forwards().fromPosition(new Position(8, 8));
+    assertThat(ClientAccess.forwards(forwards)).isTrue();
+    assertThat(ClientAccess.start(forwards).getPositionOrThrow()).isEqualTo(new Position(8, 8));
+  }
+
+  @Test
+  void subscribeToAllOptions() {
+    assertThat(ClientAccess.start(SubscribeToAllOptions.get().fromStart()).isStart()).isTrue();
+    assertThat(ClientAccess.start(SubscribeToAllOptions.get().fromPosition(new Position(3, 3))).getPositionOrThrow())
+        .isEqualTo(new Position(3, 3));
+  }
+}
@@ -0,0 +1,148 @@
+package victor.training.sourcing.store;
+
+import com.eventstore.dbclient.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+class EmbeddedEventStoreTest {
+  private static final int SMALL_SEGMENTS = 512; // a few records each => exercises segment roll-over
+  @TempDir
+  Path dir;
+  EmbeddedEventStore store;
+
+  @AfterEach
+  void close() throws Exception {
+    store.close();
+  }
+
+  @Test
+  void expectedRevisions() throws Exception {
+    store = new EmbeddedEventStore(dir, SMALL_SEGMENTS, false);
+    var created = store.appendToStream("user-a", AppendToStreamOptions.get().expectedRevision(ExpectedRevision.noStream()), event("A", 0), event("B", 1)).get();
+    assertThat(created.getNextExpectedRevision().toRawLong()).isEqualTo(1);
+
+    assertThatThrownBy(() -> store.appendToStream("user-a", AppendToStreamOptions.get().expectedRevision(ExpectedRevision.noStream()), event("C", 2)).get())
+        .hasCauseInstanceOf(WrongExpectedVersionException.class);
+    assertThatThrownBy(() -> store.appendToStream("user-a", AppendToStreamOptions.get().expectedRevision(0), event("C", 2)).get())
+        .hasCauseInstanceOf(WrongExpectedVersionException.class);
+    store.appendToStream("user-a", AppendToStreamOptions.get().expectedRevision(1), event("C", 2)).get();
+
+    assertThat(types(store.readStream("user-a", ReadStreamOptions.get().fromRevision(1)).get())).containsExactly("B", "C");
+    assertThat(types(store.readStream("user-a", ReadStreamOptions.get().fromEnd().backwards().maxCount(2)).get())).containsExactly("C", "B");
+    assertThatThrownBy(() -> store.readStream("user-none", ReadStreamOptions.get()).get())
+        .isInstanceOf(ExecutionException.class)
+        .hasCauseInstanceOf(StreamNotFoundException.class);
+  }
+
+  @Test
+  void namesLongerThanAShortAreRejected() throws Exception {
+    store = new EmbeddedEventStore(dir, 1024 * 1024, false);
+    String tooLong = "x".repeat(Short.MAX_VALUE + 1);
+
+    assertThatThrownBy(() -> store.appendToStream("user-" + tooLong, event("A", 0)).get())
+        .hasCauseInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> store.appendToStream("user-a", event(tooLong, 0)).get())
+        .hasCauseInstanceOf(IllegalArgumentException.class);
+    store.appendToStream("user-" + "x".repeat(Short.MAX_VALUE - 5), event("A", 0)).get();
+
+    assertThat(types(store.readStream("user-" + "x".repeat(Short.MAX_VALUE - 5), ReadStreamOptions.get()).get())).containsExactly("A");
+    assertThatThrownBy(() -> store.readStream("user-a", ReadStreamOptions.get()).get())
+        .hasCauseInstanceOf(StreamNotFoundException.class);
+  }
+
+  @Test
+  void maxCountHidesOlderEvents() throws Exception {
+    store = new EmbeddedEventStore(dir, SMALL_SEGMENTS, false);
+    StreamMetadata metadata = new StreamMetadata();
+    metadata.setMaxCount(2L);
+    store.setStreamMetadata("snapshot-a", metadata).get();
+    for (int i = 0; i < 5; i++) {
+      store.appendToStream("snapshot-a", event("S" + i, i)).get();
+    }
+    assertThat(types(store.readStream("snapshot-a", ReadStreamOptions.get()).get())).containsExactly("S3", "S4");
+  }
+
+  @Test
+  void readAllBothWaysAcrossSegments_andAfterReopen() throws Exception {
+    store = new EmbeddedEventStore(dir, SMALL_SEGMENTS, true);
+    for (int i = 0; i < 20; i++) {
+      store.appendToStream("user-" + i % 3, event("E" + i, i)).get();
+    }
+    List<String> forwards = types(store.readAll(ReadAllOptions.get().fromStart()).get());
+    assertThat(forwards).hasSize(20).startsWith("E0", "E1").endsWith("E19");
+    assertThat(types(store.readAll(ReadAllOptions.get().fromEnd().backwards().maxCount(3)).get())).containsExactly("E19", "E18", "E17");
+
+    store.close();
+    store = new EmbeddedEventStore(dir, SMALL_SEGMENTS, true);
+
+    assertThat(types(store.readAll(ReadAllOptions.get().fromEnd().backwards()).get())).containsExactlyElementsOf(forwards.reversed());
+    store.appendToStream("user-1", AppendToStreamOptions.get().expectedRevision(6), event("E20", 20)).get();
+    assertThat(types(store.readStream("user-1", ReadStreamOptions.get().fromEnd().backwards().maxCount(1)).get())).containsExactly("E20");
+  }
+
+  @Test
+  void subscriptionStartsAfterPosition_filters_andFollowsNewAppends() throws Exception {
+    store = new EmbeddedEventStore(dir, SMALL_SEGMENTS, false);
+    store.appendToStream("user-a", event("A0", 0)).get();
+    var second = store.appendToStream("user-a", event("A1", 1)).get();
+    store.appendToStream("snapshot-user-a", event("Snap", 0)).get();
+    List<String> received = new CopyOnWriteArrayList<>();
+
+    var options = SubscribeToAllOptions.get()
+        .fromPosition(second.getLogPosition());
+    Subscription subscription = store.subscribeToAll(new SubscriptionListener() {
+      @Override
+      public void onEvent(Subscription subscription, ResolvedEvent event) {
+        received.add(event.getEvent().getEventType());
+      }
+    }, options, AllFilter.streamNamePrefix("user-")).get();
+    store.appendToStream("user-b", event("B0", 0)).get();
+    store.appendToStream("user-a", event("A2", 2)).get();
+
+    await().untilAsserted(() -> assertThat(received).containsExactly("B0", "A2"));
+    subscription.stop();
+  }
+
+  @Test
+  void eventTypeAndCategoryStreams_andAfterReopen() throws Exception {
+    store = new EmbeddedEventStore(dir, SMALL_SEGMENTS, false);
+    store.appendToStream("user-a", event("Created", 0), event("Renamed", 1)).get();
+    store.appendToStream("snapshot-a", event("Created", 2)).get();
+    store.appendToStream("user-b", event("Created", 3)).get();
+
+    assertThat(streams(store.readStream("$et-Created", ReadStreamOptions.get().resolveLinkTos()).get()))
+        .containsExactly("user-a", "snapshot-a", "user-b");
+    assertThat(types(store.readStream("$ce-user", ReadStreamOptions.get()).get())).containsExactly("Created", "Renamed", "Created");
+    var last = store.readStream("$et-Created", ReadStreamOptions.get().fromEnd().backwards().maxCount(1)).get();
+    assertThat(last.getLastStreamPosition()).isEqualTo(2);
+
+    store.close();
+    store = new EmbeddedEventStore(dir, SMALL_SEGMENTS, false);
+
+    store.appendToStream("user-c", event("Renamed", 4)).get();
+    assertThat(streams(store.readStream("$et-Renamed", ReadStreamOptions.get()).get())).containsExactly("user-a", "user-c");
+  }
+
+  private static List<String> streams(ReadResult result) {
+    return result.getEvents().stream().map(e -> e.getEvent().getStreamId()).toList();
+  }
+
+  private static EventData event(String type, int value) {
+    return EventData.builderAsJson(type, ("{\"value\":" + value + "}").getBytes(UTF_8)).build();
+  }
+
+  private static List<String> types(ReadResult result) {
+    return result.getEvents().stream().map(e -> e.getEvent().getEventType()).toList();
+  }
+}
@@ -0,0 +1,80 @@
+package victor.training.sourcing.user.migration;
+
+import com.eventstore.dbclient.ReadStreamOptions;
+import com.eventstore.dbclient.RecordedEvent;
+import com.eventstore.dbclient.ResolvedEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EmbeddedEventStore;
+import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.domain.UserEvent.UserCreated;
+import victor.training.sourcing.user.domain.UserEvent.UserRoleGranted;
+import victor.training.sourcing.user.migration.UserStreamMigration.State;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class UserStreamMigrationTest {
+  @TempDir
+  Path dir;
+  EmbeddedEventStore store;
+  UserStreamMigration migration;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    store = new EmbeddedEventStore(dir.resolve("events"), 4096, false);
+    migration = new UserStreamMigration(store, new UserV2Upcaster(), "user-", "user_v2-",
+        3, 2, 0, dir.resolve("migration.progress"), 60);
+  }
+
+  @AfterEach
+  void close() throws Exception {
+    migration.shutdown();
+    store.close();
+  }
+
+  @Test
+  void copiesAllUserStreams_upcasting_andResumesEachFromItsTarget() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      store.appendToStream("user-u" + i, GsonUtil.toEventData(new UserCreated().name("John Doe" + i).email("u" + i)),
+          GsonUtil.toEventData(new UserRoleGranted().role("a")), GsonUtil.toEventData(new UserRoleGranted().role("b"))).get();
+    }
+    store.appendToStream("snapshot-user-u1", GsonUtil.toEventData(new UserRoleGranted().role("not a user stream"))).get();
+
+    assertThat(runToEnd(false).streamsMigrated()).isEqualTo(10);
+
+    List<UserEvent> migrated = events("user_v2-u7");
+    assertThat(migrated).hasSize(3);
+    assertThat(((UserCreated) migrated.get(0)).firstName()).isEqualTo("John");
+    assertThat(((UserCreated) migrated.get(0)).lastName()).isEqualTo("Doe7");
+    assertThat(Files.exists(dir.resolve("migration.progress"))).isTrue();
+
+    store.appendToStream("user-u7", GsonUtil.toEventData(new UserRoleGranted().role("c"))).get();
+    var catchUp = runToEnd(true);
+
+    assertThat(catchUp.eventsWritten()).isEqualTo(1);
+    assertThat(events("user_v2-u7")).hasSize(4).last().isEqualTo(new UserRoleGranted().role("c"));
+  }
+
+  private UserStreamMigration.Status runToEnd(boolean fromStart) {
+    migration.start(fromStart);
+    await().atMost(Duration.ofSeconds(10)).until(() -> migration.status().state() != State.RUNNING);
+    assertThat(migration.status().state()).isEqualTo(State.COMPLETED);
+    return migration.status();
+  }
+
+  private List<UserEvent> events(String stream) throws Exception {
+    return store.readStream(stream, ReadStreamOptions.get()).get().getEvents().stream()
+        .map(ResolvedEvent::getEvent)
+        .map((RecordedEvent e) -> GsonUtil.<UserEvent>fromEventDataSealed(e, UserEvent.class))
+        .toList();
+  }
+}
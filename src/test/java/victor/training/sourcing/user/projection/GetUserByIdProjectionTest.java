@@ -0,0 +1,93 @@
+package victor.training.sourcing.user.projection;
+
+import com.eventstore.dbclient.AppendToStreamOptions;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import victor.training.sourcing.Bulkhead;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EmbeddedEventStore;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.domain.UserEvent.UserCreated;
+import victor.training.sourcing.user.domain.UserEvent.UserPersonalDetailsUpdated;
+import victor.training.sourcing.user.domain.UserEvent.UserRoleGranted;
+import victor.training.sourcing.user.projection.GetUserByIdProjection.GetUserResponse;
+import victor.training.sourcing.user.subscription.ProjectionCheckpoints;
+import victor.training.sourcing.user.subscription.UserEventDispatcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GetUserByIdProjectionTest {
+  @TempDir
+  Path dir;
+  EmbeddedEventStore store;
+  Bulkhead bulkhead = new Bulkhead("test", 4, 1000);
+  ProjectionCheckpoints checkpoints;
+  UserEventDispatcher dispatcher;
+  GetUserByIdProjection projection;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    store = new EmbeddedEventStore(dir.resolve("events"), 64 * 1024, false);
+    checkpoints = new ProjectionCheckpoints(dir.resolve("checkpoints"), 3600);
+    dispatcher = dispatcher(checkpoints);
+    projection = new GetUserByIdProjection(store, bulkhead, dispatcher);
+  }
+
+  @AfterEach
+  void close() throws Exception {
+    dispatcher.stop();
+    checkpoints.flush(); // the last checkpoint is written before the temp dir goes
+    store.close();
+  }
+
+  @Test
+  void checkpointRoundTrip_withNullNameAndDepartment() throws Exception {
+    append("a@x.com", new UserCreated().email("a@x.com").name("Alice").departmentId("IT"),
+        new UserRoleGranted().role("admin"));
+    append("b@x.com", new UserCreated().email("b@x.com"));
+    long last = append("c@x.com", new UserCreated().email("c@x.com").name("Carol").departmentId("HR"),
+        new UserPersonalDetailsUpdated().name(null).departmentId(null));
+    dispatcher.start();
+    dispatcher.awaitProcessed(last);
+    var bytes = new ByteArrayOutputStream();
+    projection.dump(new DataOutputStream(bytes));
+
+    var other = dispatcher(checkpoints);
+    var restored = new GetUserByIdProjection(store, bulkhead, other);
+    restored.restore(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    other.stop();
+
+    for (String email : List.of("a@x.com", "b@x.com", "c@x.com")) {
+      var original = projection.getUser(email, null, null);
+      var copy = restored.getUser(email, null, null);
+      assertThat(copy.getBody()).isEqualTo(original.getBody());
+      assertThat(copy.getHeaders().getETag()).isEqualTo(original.getHeaders().getETag());
+    }
+    assertThat(restored.getUser("a@x.com", null, null).getBody())
+        .isEqualTo(new GetUserResponse("a@x.com", "Alice", "IT", List.of("admin"), false, true));
+    assertThat(restored.getUser("b@x.com", null, null).getBody())
+        .isEqualTo(new GetUserResponse("b@x.com", null, null, List.of(), false, true));
+    assertThat(restored.getUser("c@x.com", null, null).getBody())
+        .isEqualTo(new GetUserResponse("c@x.com", null, null, List.of(), false, true));
+  }
+
+  private UserEventDispatcher dispatcher(ProjectionCheckpoints checkpoints) {
+    return new UserEventDispatcher(store, checkpoints, new SimpleMeterRegistry(), 1, 2, 64, false, 1, 5000);
+  }
+
+  private long append(String email, UserEvent... events) throws Exception {
+    return store.appendToStream(User.stream(email), AppendToStreamOptions.get(), List.of(events).stream().map(GsonUtil::toEventData).iterator())
+        .get().getLogPosition().getCommitUnsigned();
+  }
+}
@@ -0,0 +1,123 @@
+package victor.training.sourcing.user.projection;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EmbeddedEventStore;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent.UserLoggedIn;
+import victor.training.sourcing.user.projection.LastLoginTimeProjection.LastLoginTimeProjectionView.LastLoginTimeResponse;
+import victor.training.sourcing.user.subscription.ProjectionCheckpoints;
+import victor.training.sourcing.user.subscription.UserEventDispatcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LastLoginTimeProjectionTest {
+  private static final LocalDateTime T0 = LocalDateTime.parse("2025-05-01T10:00:00.123456789");
+  @TempDir
+  Path dir;
+  EmbeddedEventStore store;
+  ProjectionCheckpoints checkpoints;
+  UserEventDispatcher dispatcher;
+  LastLoginTimeProjection projection;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    store = new EmbeddedEventStore(dir.resolve("events"), 64 * 1024, false);
+    checkpoints = new ProjectionCheckpoints(dir.resolve("checkpoints"), 3600);
+    dispatcher = dispatcher(checkpoints);
+    projection = new LastLoginTimeProjection(dispatcher, new UserIds());
+  }
+
+  @AfterEach
+  void close() throws Exception {
+    dispatcher.stop();
+    checkpoints.flush(); // the last checkpoint is written before the temp dir goes
+    store.close();
+  }
+
+  @Test
+  void aNewerLoginReplacesTheOlderOne_perApplication() throws Exception {
+    login("a@x.com", "APP1", 1);
+    login("b@x.com", "APP1", 2);
+    login("a@x.com", "APP2", 3);
+    long last = login("a@x.com", "APP1", 4);
+    startAndAwait(last);
+
+    assertThat(projection.getLastLoginPerApp("APP1", null, 0, 100)).containsExactly(
+        new LastLoginTimeResponse("a@x.com", T0.plusMinutes(4)),
+        new LastLoginTimeResponse("b@x.com", T0.plusMinutes(2)));
+    assertThat(projection.getLastLoginPerApp("APP2", null, 0, 100)).containsExactly(
+        new LastLoginTimeResponse("a@x.com", T0.plusMinutes(3)));
+    assertThat(projection.getLastLoginPerApp("APP3", null, 0, 100)).isEmpty();
+  }
+
+  @Test
+  void since_andPages_newestFirst() throws Exception {
+    long last = 0;
+    for (int i = 0; i < 10; i++) {
+      last = login("u" + i + "@x.com", "APP1", i);
+    }
+    startAndAwait(last);
+
+    assertThat(emails(projection.getLastLoginPerApp("APP1", T0.plusMinutes(6), 0, 100)))
+        .containsExactly("u9@x.com", "u8@x.com", "u7@x.com", "u6@x.com");
+    assertThat(emails(projection.getLastLoginPerApp("APP1", null, 1, 3)))
+        .containsExactly("u6@x.com", "u5@x.com", "u4@x.com");
+    assertThat(emails(projection.getLastLoginPerApp("APP1", T0.plusMinutes(6), 1, 3)))
+        .containsExactly("u6@x.com");
+    assertThat(projection.getLastLoginPerApp("APP1", null, Integer.MAX_VALUE, Integer.MAX_VALUE)).isEmpty();
+    assertThatThrownBy(() -> projection.getLastLoginPerApp("APP1", null, -1, 10)).isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> projection.getLastLoginPerApp("APP1", null, 0, 0)).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void checkpointRoundTrip() throws Exception {
+    login("a@x.com", "APP1", 1);
+    login("b@x.com", "APP1", 2);
+    long last = login("a@x.com", "APP2", 3);
+    startAndAwait(last);
+    var bytes = new ByteArrayOutputStream();
+    projection.dump(new DataOutputStream(bytes));
+
+    var other = dispatcher(checkpoints);
+    var restored = new LastLoginTimeProjection(other, new UserIds());
+    restored.restore(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    other.stop();
+
+    for (String app : new String[]{"APP1", "APP2"}) {
+      assertThat(restored.getLastLoginPerApp(app, null, 0, 100)).isEqualTo(projection.getLastLoginPerApp(app, null, 0, 100));
+    }
+    assertThat(restored.getLastLoginPerApp("APP1", null, 0, 100).getFirst().loginTime()).isEqualTo(T0.plusMinutes(2));
+  }
+
+  private UserEventDispatcher dispatcher(ProjectionCheckpoints checkpoints) {
+    return new UserEventDispatcher(store, checkpoints, new SimpleMeterRegistry(), 1, 2, 64, false, 1, 5000);
+  }
+
+  private void startAndAwait(long position) throws InterruptedException {
+    dispatcher.start();
+    dispatcher.awaitProcessed(position);
+  }
+
+  private long login(String email, String application, int minutes) throws Exception {
+    var event = new UserLoggedIn().application(application).loginTime(T0.plusMinutes(minutes));
+    return store.appendToStream(User.stream(email), GsonUtil.toEventData(event)).get().getLogPosition().getCommitUnsigned();
+  }
+
+  private static List<String> emails(List<LastLoginTimeResponse> logins) {
+    return logins.stream().map(LastLoginTimeResponse::userId).toList();
+  }
+}
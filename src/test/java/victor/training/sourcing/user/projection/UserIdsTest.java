@@ -0,0 +1,31 @@
+package victor.training.sourcing.user.projection;
+
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserIdsTest {
+  private final UserIds userIds = new UserIds();
+
+  @Test
+  void assignsDenseIds_onFirstSight_acrossGrowth() {
+    for (int i = 0; i < 10_000; i++) {
+      assertThat(userIds.idOf("user" + i + "@example.com")).isEqualTo(i);
+    }
+    assertThat(userIds.idOf("user42@example.com")).isEqualTo(42);
+    assertThat(userIds.find("user9999@example.com")).isEqualTo(9999);
+    assertThat(userIds.find("nobody@example.com")).isEqualTo(-1);
+    assertThat(userIds.emailOf(1234)).isEqualTo("user1234@example.com");
+    assertThat(userIds.size()).isEqualTo(10_000);
+  }
+
+  @Test
+  void emailsOfBitmap() {
+    int a = userIds.idOf("a@x.com");
+    userIds.idOf("b@x.com");
+    int c = userIds.idOf("c@x.com");
+
+    assertThat(userIds.emailsOf(RoaringBitmap.bitmapOf(a, c))).containsExactlyInAnyOrder("a@x.com", "c@x.com");
+  }
+}
@@ -0,0 +1,108 @@
+package victor.training.sourcing.user.projection;
+
+import org.junit.jupiter.api.Test;
+import victor.training.sourcing.user.projection.SearchUserProjection.UserSearchResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UserSearchIndexTest {
+  UserSearchIndex index = new UserSearchIndex();
+
+  @Test
+  void finds_by_name_and_email_parts() {
+    index.put("john@a.com", "John Doe", "d1");
+    index.put("jane@b.com", "Jane Doe", "d2");
+
+    assertThat(index.search("doe", null, 0, 10)).extracting(UserSearchResult::email)
+        .containsExactly("john@a.com", "jane@b.com");
+    assertThat(index.search("DOE", "b.co", 0, 10)).extracting(UserSearchResult::email)
+        .containsExactly("jane@b.com");
+    assertThat(index.search("j", null, 0, 10)).hasSize(2); // too short for trigrams
+    assertThat(index.search("xyz", null, 0, 10)).isEmpty();
+  }
+
+  @Test
+  void trigrams_alone_are_not_a_match() {
+    index.put("a@a.com", "abcd bcde", "d1");
+
+    assertThat(index.search("abcde", null, 0, 10)).isEmpty();
+  }
+
+  @Test
+  void paginates() {
+    for (int i = 0; i < 25; i++) {
+      index.put("user" + i + "@a.com", "User " + i, "d");
+    }
+
+    assertThat(index.search(null, "@a.com", 0, 10)).hasSize(10);
+    assertThat(index.search(null, "@a.com", 2, 10)).extracting(UserSearchResult::email)
+        .containsExactly("user20@a.com", "user21@a.com", "user22@a.com", "user23@a.com", "user24@a.com");
+  }
+
+  @Test
+  void forgets_the_old_name() {
+    index.put("john@a.com", "John", "d1");
+    index.put("john@a.com", "Johnny", "d2");
+    index.put("john@a.com", "Jack", "d3");
+
+    assertThat(index.search("john", null, 0, 10)).isEmpty();
+    assertThat(index.search("jack", null, 0, 10)).containsExactly(new UserSearchResult("john@a.com", "Jack", "d3"));
+  }
+
+  @Test
+  void finds_parts_beyond_the_indexed_chars() {
+    String longName = "x".repeat(UserSearchIndex.MAX_INDEXED_CHARS) + " Smithson";
+    index.put("long@a.com", longName, "d1");
+    index.put("short@a.com", "Ann Smithson", "d2");
+
+    assertThat(index.search("smithson", null, 0, 10)).extracting(UserSearchResult::email)
+        .containsExactlyInAnyOrder("long@a.com", "short@a.com");
+    assertThat(index.search("x smith", null, 0, 10)).extracting(UserSearchResult::email)
+        .containsExactly("long@a.com");
+  }
+
+  @Test
+  void rejects_a_negative_page_or_an_empty_size() {
+    assertThatThrownBy(() -> index.search("doe", null, -1, 10)).isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> index.search("doe", null, 0, 0)).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void searches_while_the_index_grows() throws Exception {
+    for (int round = 0; round < 50; round++) {
+      var growing = new UserSearchIndex();
+      var failure = new AtomicReference<Throwable>();
+      var writing = new AtomicBoolean(true);
+      Thread writer = Thread.ofPlatform().start(() -> {
+        for (int i = 0; i < 4100; i++) { // docs grow 1024 -> 2048 -> 4096 -> 8192
+          growing.put("user" + i + "@x.com", "User " + i, null);
+        }
+        writing.set(false);
+      });
+      List<Thread> readers = new ArrayList<>();
+      for (String[] query : new String[][]{{"q", null}, {"qq", null}, {"user 4", null}, {null, "x.c"}}) {
+        readers.add(Thread.ofPlatform().start(() -> {
+          try {
+            while (writing.get()) {
+              growing.search(query[0], query[1], 0, 10_000); // "q": no match => scans every doc
+            }
+          } catch (Throwable e) {
+            failure.set(e);
+          }
+        }));
+      }
+      writer.join();
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      assertThat(failure.get()).isNull();
+      assertThat(growing.search(null, "@x.com", 0, 10_000)).hasSize(4100);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package victor.training.sourcing.user.reactor;
+
+import com.eventstore.dbclient.ReadStreamOptions;
+import com.eventstore.dbclient.RecordedEvent;
+import com.eventstore.dbclient.ResolvedEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EmbeddedEventStore;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent.UserCreated;
+import victor.training.sourcing.user.reactor.LocalReactorGroups.Parked;
+import victor.training.sourcing.user.subscription.ProjectionCheckpoints;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class LocalReactorGroupsTest {
+  @TempDir
+  Path dir;
+  EmbeddedEventStore store;
+  ProjectionCheckpoints checkpoints;
+  LocalReactorGroups groups;
+  final List<String> reacted = new CopyOnWriteArrayList<>();
+  final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+
+  @BeforeEach
+  void setUp() throws Exception {
+    store = new EmbeddedEventStore(dir.resolve("events"), 4096, false);
+    store.appendToStream(User.stream("before"), GsonUtil.toEventData(new UserCreated())).get(); // before the group existed
+    groups = start();
+  }
+
+  private LocalReactorGroups start() {
+    checkpoints = new ProjectionCheckpoints(dir.resolve("checkpoints"), 3600);
+    var groups = new LocalReactorGroups(store, checkpoints, new SimpleMeterRegistry(), 3, 1, 10, 4);
+    groups.group("test").on(UserCreated.class, (event, recorded) -> {
+      String email = User.emailFromStreamName(recorded.getStreamId());
+      int attempt = attempts.merge(email, 1, Integer::sum);
+      if (email.startsWith("failing") || email.startsWith("flaky") && attempt == 1) {
+        throw new IllegalStateException("Email server down");
+      }
+      reacted.add(email);
+    });
+    groups.start();
+    return groups;
+  }
+
+  @AfterEach
+  void close() throws Exception {
+    groups.stop();
+    checkpoints.flush(); // the last checkpoint is written before the temp dir goes
+    store.close();
+  }
+
+  @Test
+  void retriesWithBackoff_thenParks() throws Exception {
+    store.appendToStream(User.stream("flaky"), GsonUtil.toEventData(new UserCreated())).get();
+    store.appendToStream(User.stream("failing"), GsonUtil.toEventData(new UserCreated())).get();
+    store.appendToStream(User.stream("ok"), GsonUtil.toEventData(new UserCreated())).get();
+
+    await().atMost(Duration.ofSeconds(5)).until(() -> parked().size() == 1);
+
+    assertThat(reacted).containsExactlyInAnyOrder("flaky", "ok");
+    assertThat(attempts).containsEntry("flaky", 2).containsEntry("failing", 3);
+    Parked parked = GsonUtil.gson.fromJson(new String(parked().get(0).getUserMetadata(), UTF_8), Parked.class);
+    assertThat(parked.stream()).isEqualTo(User.stream("failing"));
+    assertThat(parked.attempts()).isEqualTo(3);
+    assertThat(parked.error()).contains("Email server down");
+  }
+
+  @Test
+  void resumesAfterRestart_withEventsAppendedMeanwhile() throws Exception {
+    store.appendToStream(User.stream("a"), GsonUtil.toEventData(new UserCreated())).get();
+    await().atMost(Duration.ofSeconds(5)).until(() -> reacted.contains("a"));
+    groups.stop();
+    checkpoints.flush();
+
+    store.appendToStream(User.stream("b"), GsonUtil.toEventData(new UserCreated())).get();
+    groups = start();
+
+    await().atMost(Duration.ofSeconds(5)).until(() -> reacted.contains("b"));
+    assertThat(reacted).containsExactly("a", "b");
+  }
+
+  private List<RecordedEvent> parked() throws Exception {
+    try {
+      return store.readStream(LocalReactorGroups.parkedStream("test"), ReadStreamOptions.get()).get().getEvents().stream()
+          .map(ResolvedEvent::getEvent)
+          .toList();
+    } catch (Exception streamNotFound) {
+      return List.of();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package victor.training.sourcing.user.reactor.outbound;
+
+import com.eventstore.dbclient.Position;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EmbeddedEventStore;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent.UserActivated;
+import victor.training.sourcing.user.domain.UserEvent.UserDeactivated;
+import victor.training.sourcing.user.reactor.PublishActivatedUsersOnKafkaReactor;
+import victor.training.sourcing.user.subscription.ProjectionCheckpoints;
+import victor.training.sourcing.user.subscription.ProjectionState;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class OutboundPublisherTest {
+  @TempDir
+  Path dir;
+  EmbeddedEventStore store;
+  ProjectionCheckpoints checkpoints;
+  PublishActivatedUsersOnKafkaReactor publisher;
+  final AtomicInteger failuresLeft = new AtomicInteger();
+  final AtomicInteger checkpointFailuresLeft = new AtomicInteger();
+  final InMemoryOutboundSink sink = new InMemoryOutboundSink() {
+    @Override
+    public void send(List<OutboundMessage> batch) {
+      if (failuresLeft.getAndDecrement() > 0) {
+        throw new IllegalStateException("Broker down");
+      }
+      super.send(batch);
+    }
+  };
+
+  @BeforeEach
+  void setUp() throws Exception {
+    store = new EmbeddedEventStore(dir.resolve("events"), 4096, false);
+    activate("before"); // the first start begins from the end
+    publisher = start();
+  }
+
+  private PublishActivatedUsersOnKafkaReactor start() {
+    checkpoints = new ProjectionCheckpoints(dir.resolve("checkpoints"), 3600) {
+      @Override
+      public void save(String name, ProjectionState state, Position position) {
+        if (checkpointFailuresLeft.getAndDecrement() > 0) {
+          throw new UncheckedIOException(new IOException("Disk full"));
+        }
+        super.save(name, state, position);
+      }
+    };
+    var publisher = new PublishActivatedUsersOnKafkaReactor(store, checkpoints, sink, new SimpleMeterRegistry(), 3, 50, 2, 1, 10);
+    publisher.start();
+    return publisher;
+  }
+
+  @AfterEach
+  void close() throws Exception {
+    publisher.stop();
+    store.close();
+  }
+
+  @Test
+  void publishesInOrder_inBatches_retryingTheSink() throws Exception {
+    failuresLeft.set(2);
+    for (int i = 0; i < 7; i++) {
+      activate("u" + i);
+      store.appendToStream(User.stream("u" + i), GsonUtil.toEventData(new UserDeactivated())).get();
+    }
+
+    await().atMost(Duration.ofSeconds(5)).until(() -> sink.messages().size() == 7);
+
+    assertThat(sink.messages()).extracting(OutboundMessage::key).containsExactly(keys(0, 7));
+    assertThat(sink.batches()).allSatisfy(batch -> assertThat(batch).hasSizeLessThanOrEqualTo(3));
+  }
+
+  @Test
+  void resumesAfterRestart_withoutGaps() throws Exception {
+    activate("u0");
+    activate("u1");
+    await().atMost(Duration.ofSeconds(5)).until(() -> sink.messages().size() == 2);
+    publisher.stop();
+    checkpoints.flush();
+
+    activate("u2");
+    activate("u3");
+    publisher = start();
+
+    await().atMost(Duration.ofSeconds(5)).until(() -> sink.messages().size() >= 4);
+    assertThat(sink.messages()).extracting(OutboundMessage::key).containsExactly(keys(0, 4));
+  }
+
+  @Test
+  void retriesTheCheckpoint_withoutResendingTheBatch() throws Exception {
+    checkpointFailuresLeft.set(2);
+    activate("u0");
+    activate("u1");
+    await().atMost(Duration.ofSeconds(5)).until(() -> checkpointFailuresLeft.get() < 0);
+    activate("u2");
+
+    await().atMost(Duration.ofSeconds(5)).until(() -> sink.messages().size() == 3);
+    assertThat(publisher.isRunning()).isTrue();
+    assertThat(sink.messages()).extracting(OutboundMessage::key).containsExactly(keys(0, 3));
+  }
+
+  private void activate(String email) throws Exception {
+    store.appendToStream(User.stream(email), GsonUtil.toEventData(new UserActivated())).get();
+  }
+
+  private static String[] keys(int from, int to) {
+    return IntStream.range(from, to).mapToObj(i -> "u" + i).toArray(String[]::new);
+  }
+}
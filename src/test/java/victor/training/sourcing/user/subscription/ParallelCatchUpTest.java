@@ -0,0 +1,75 @@
+package victor.training.sourcing.user.subscription;
+
+import com.eventstore.dbclient.EventData;
+import com.eventstore.dbclient.Position;
+import com.eventstore.dbclient.ResolvedEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import victor.training.sourcing.store.EmbeddedEventStore;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ParallelCatchUpTest {
+  @TempDir
+  Path dir;
+  EmbeddedEventStore store;
+  final List<Position> positions = new ArrayList<>();
+
+  @BeforeEach
+  void setUp() throws Exception {
+    store = new EmbeddedEventStore(dir, 4096, false);
+    for (int i = 0; i < 1500; i++) { // > 2 read batches per type
+      String type = List.of("A", "B", "C").get(i % 3);
+      String stream = i % 10 == 0 ? "snapshot-" + i % 7 : "user-" + i % 7;
+      positions.add(store.appendToStream(stream, EventData.builderAsJson(type, ("{\"i\":" + i + "}").getBytes(UTF_8)).build())
+          .get().getLogPosition());
+    }
+  }
+
+  @AfterEach
+  void close() throws Exception {
+    store.close();
+  }
+
+  @Test
+  void replaysTheTypesOfUserStreams_inAllOrder() throws Exception {
+    List<Integer> replayed = replay(null, positions.getLast());
+
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < 1500; i++) {
+      if (i % 3 != 2 && i % 10 != 0) expected.add(i);
+    }
+    assertThat(replayed).containsExactlyElementsOf(expected);
+  }
+
+  @Test
+  void onlyAfterFrom_untilIncluded() throws Exception {
+    List<Integer> replayed = replay(positions.get(700), positions.get(1003));
+
+    assertThat(replayed).first().isEqualTo(702);
+    assertThat(replayed).last().isEqualTo(1003);
+    assertThat(replayed).isSorted().doesNotContain(701, 710);
+  }
+
+  private List<Integer> replay(Position from, Position until) throws Exception {
+    List<Integer> replayed = new ArrayList<>();
+    boolean done = new ParallelCatchUp(store, Set.of("A", "B"), "user-", Duration.ofSeconds(1))
+        .run(from, until, event -> replayed.add(index(event)));
+    assertThat(done).isTrue();
+    return replayed;
+  }
+
+  private static int index(ResolvedEvent event) {
+    String json = new String(event.getEvent().getEventData(), UTF_8);
+    return Integer.parseInt(json.replaceAll("\\D", ""));
+  }
+}
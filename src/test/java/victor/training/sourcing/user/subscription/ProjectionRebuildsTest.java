@@ -0,0 +1,143 @@
+package victor.training.sourcing.user.subscription;
+
+import com.eventstore.dbclient.RecordedEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EmbeddedEventStore;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent;
+import victor.training.sourcing.user.domain.UserEvent.UserCreated;
+import victor.training.sourcing.user.subscription.ProjectionRebuilds.State;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static victor.training.sourcing.user.subscription.UserEventDispatcher.StartFrom.START;
+
+class ProjectionRebuildsTest {
+  @TempDir
+  Path dir;
+  EmbeddedEventStore store;
+  ProjectionCheckpoints checkpoints;
+  UserEventDispatcher dispatcher;
+  ProjectionRebuilds rebuilds;
+  volatile Total live;
+
+  // logic 1 counts the users created, logic 2 counts them x10
+  static class Total implements ProjectionState {
+    private final int logic;
+    private final AtomicLong total = new AtomicLong(); // applied by several lanes
+
+    Total(int logic) {
+      this.logic = logic;
+    }
+
+    void apply() {
+      total.addAndGet(logic == 1 ? 1 : 10);
+    }
+
+    public int version() {
+      return 1;
+    }
+
+    public int logicVersion() {
+      return logic;
+    }
+
+    public void dump(DataOutput out) throws IOException {
+      out.writeLong(total.get());
+    }
+
+    public void restore(DataInput in) throws IOException {
+      total.set(in.readLong());
+    }
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    store = new EmbeddedEventStore(dir.resolve("events"), 4096, false);
+    create(0, 300);
+  }
+
+  private void start(int logic, int maxEventsPerSecond) {
+    checkpoints = new ProjectionCheckpoints(dir.resolve("checkpoints"), 3600);
+    dispatcher = new UserEventDispatcher(store, checkpoints, new SimpleMeterRegistry(), 5, 2, 64, true, 1, 1000);
+    live = new Total(logic);
+    dispatcher.subscribe("total", START)
+        .on(UserCreated.class, (event, recordedEvent) -> live.apply())
+        .checkpointed(live)
+        .rebuildable(new Rebuildable<Total>() {
+          public Total emptyState() {
+            return new Total(logic);
+          }
+
+          public void apply(Total state, UserEvent event, RecordedEvent recordedEvent) {
+            state.apply();
+          }
+
+          public void install(Total state) {
+            live = state;
+          }
+        });
+    dispatcher.start();
+    rebuilds = new ProjectionRebuilds(store, dispatcher, maxEventsPerSecond);
+    rebuilds.start();
+  }
+
+  @AfterEach
+  void close() throws Exception {
+    rebuilds.stop();
+    dispatcher.stop();
+    store.close();
+  }
+
+  @Test
+  void swapsInTheRebuiltState_withTheEventsAppendedMeanwhile() throws Exception {
+    start(1, 0);
+    await().atMost(Duration.ofSeconds(5)).until(() -> live.total.get() == 300);
+    Total blue = live;
+
+    rebuilds.start("total");
+    create(300, 500); // while rebuilding
+
+    await().atMost(Duration.ofSeconds(10)).until(() -> rebuilds.status("total").state() == State.COMPLETED);
+    await().atMost(Duration.ofSeconds(5)).until(() -> live.total.get() == 500);
+    assertThat(live).isNotSameAs(blue);
+    assertThat(rebuilds.status("total").percent()).isEqualTo(100);
+    create(500, 510);
+    await().atMost(Duration.ofSeconds(5)).until(() -> live.total.get() == 510);
+    assertThat(blue.total.get()).isLessThan(510); // no longer fed
+  }
+
+  @Test
+  void checkpointOfAnOlderLogic_isServedWhileRebuilt() throws Exception {
+    start(1, 0);
+    await().atMost(Duration.ofSeconds(5)).until(() -> live.total.get() == 300);
+    rebuilds.stop();
+    dispatcher.stop();
+    checkpoints.flush();
+
+    start(2, 500); // => the rebuild takes 0.6 s
+    assertThat(live.total.get()).isEqualTo(300); // restored as is, served until rebuilt
+
+    await().atMost(Duration.ofSeconds(10)).until(() -> rebuilds.status("total").state() == State.COMPLETED);
+    assertThat(live.total.get()).isEqualTo(3000);
+    assertThat(dispatcher.staleSubscribers()).isEmpty();
+  }
+
+  private void create(int from, int to) throws Exception {
+    for (int i = from; i < to; i++) {
+      store.appendToStream(User.stream("u" + i), GsonUtil.toEventData(new UserCreated())).get();
+    }
+  }
+}
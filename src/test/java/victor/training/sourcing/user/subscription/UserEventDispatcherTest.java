@@ -0,0 +1,308 @@
+package victor.training.sourcing.user.subscription;
+
+import com.eventstore.dbclient.EventData;
+import com.eventstore.dbclient.Position;
+import com.eventstore.dbclient.ReadAllOptions;
+import com.eventstore.dbclient.ResolvedEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.web.server.ResponseStatusException;
+import victor.training.sourcing.GsonUtil;
+import victor.training.sourcing.store.EmbeddedEventStore;
+import victor.training.sourcing.user.domain.User;
+import victor.training.sourcing.user.domain.UserEvent.UserCreated;
+import victor.training.sourcing.user.domain.UserEvent.UserLoggedIn;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static victor.training.sourcing.user.subscription.UserEventDispatcher.StartFrom.START;
+
+class UserEventDispatcherTest {
+  @TempDir
+  Path dir;
+  EmbeddedEventStore store;
+  SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  ProjectionCheckpoints checkpoints;
+  UserEventDispatcher dispatcher;
+  CountDownLatch applying = new CountDownLatch(1);
+
+  @BeforeEach
+  void setUp() throws Exception {
+    store = new EmbeddedEventStore(dir.resolve("events"), 64 * 1024, false);
+    checkpoints = new ProjectionCheckpoints(dir.resolve("checkpoints"), 3600);
+    dispatcher = new UserEventDispatcher(store, checkpoints, meterRegistry, 1, 2, 64, false, 1, 1000);
+  }
+
+  @AfterEach
+  void close() throws Exception {
+    applying.countDown();
+    if (dispatcher != null) {
+      dispatcher.stop();
+    }
+    checkpoints.flush();
+    store.close();
+  }
+
+  @Test
+  void caughtUp_onlyOnceTheLanesProcessedTheHead_notWhenRouted() throws Exception {
+    dispatcher.subscribe("slow", START).on(UserCreated.class, (event, recordedEvent) -> awaitUninterruptibly(applying));
+    create(0, 10);
+
+    dispatcher.start();
+
+    await().atMost(Duration.ofSeconds(5)).until(() -> dispatcher.lastPosition() != null
+                                                      && dispatcher.lastPosition().compareTo(dispatcher.head()) == 0);
+    Thread.sleep(50);
+    assertThat(dispatcher.isCaughtUp()).isFalse(); // all routed, not yet applied
+    applying.countDown();
+    await().atMost(Duration.ofSeconds(5)).until(dispatcher::isCaughtUp);
+  }
+
+  // the lanes fed directly, like the subscription does (see DispatcherBenchmark)
+
+  @Test
+  void lanes_keepTheOrderOfEachStream_andAnOrderedSubscriberSeesAllInAllOrder() throws Exception {
+    Map<String, List<Long>> revisionsPerStream = new ConcurrentHashMap<>();
+    List<Position> orderedSeen = new CopyOnWriteArrayList<>();
+    Set<String> orderedThreads = ConcurrentHashMap.newKeySet();
+    dispatcher.subscribe("partitioned", START).on(UserLoggedIn.class, (event, recorded) ->
+        revisionsPerStream.computeIfAbsent(recorded.getStreamId(), k -> new CopyOnWriteArrayList<>()).add(recorded.getRevision()));
+    dispatcher.subscribe("ordered", START).ordered().on(UserLoggedIn.class, (event, recorded) -> {
+      orderedSeen.add(recorded.getPosition());
+      orderedThreads.add(Thread.currentThread().getName());
+    });
+    List<ResolvedEvent> events = logins(8, 50);
+
+    dispatcher.startLanes();
+    events.forEach(event -> dispatcher.onEvent(null, event));
+    dispatcher.drain();
+
+    assertThat(revisionsPerStream).hasSize(8);
+    revisionsPerStream.values().forEach(revisions -> assertThat(revisions).hasSize(50).isSorted());
+    assertThat(orderedSeen).containsExactlyElementsOf(events.stream().map(event -> event.getEvent().getPosition()).toList());
+    assertThat(orderedThreads).containsExactly("dispatch-ordered");
+  }
+
+  @Test
+  void aCheckpointContainsAllTheEventsUpToItsPosition() throws Exception {
+    var everyEvent = new ProjectionCheckpoints(dir.resolve("every-event"), 0);
+    dispatcher = new UserEventDispatcher(store, everyEvent, meterRegistry, 1, 4, 64, false, 1, 1000);
+    var state = new AppliedPositions();
+    dispatcher.subscribe("counting", START).on(UserLoggedIn.class, (event, recorded) -> state.add(recorded.getPosition()))
+        .checkpointed(state);
+    List<ResolvedEvent> events = logins(4, 25);
+
+    dispatcher.startLanes();
+    events.forEach(event -> dispatcher.onEvent(null, event));
+    stop();
+    everyEvent.flush();
+
+    assertThat(state.dumps).hasSizeGreaterThanOrEqualTo(events.size());
+    for (var dump : state.dumps) {
+      assertThat(dump.applied()).containsExactlyInAnyOrderElementsOf(events.stream()
+          .map(event -> event.getEvent().getPosition())
+          .filter(position -> position.compareTo(dump.at()) <= 0)
+          .toList());
+    }
+    var checkpoint = everyEvent.load("counting", state.version()).orElseThrow();
+    assertThat(checkpoint.position()).isEqualTo(events.getLast().getEvent().getPosition());
+    assertThat(checkpoint.state().readInt()).isEqualTo(events.size());
+  }
+
+  @Test
+  void aFailingCallback_stopsItsSubscriberThere_neverCheckpointedPastIt() throws Exception {
+    var everyEvent = new ProjectionCheckpoints(dir.resolve("every-event"), 0);
+    dispatcher = new UserEventDispatcher(store, everyEvent, meterRegistry, 1, 4, 64, false, 1, 1000);
+    List<ResolvedEvent> events = logins(4, 10);
+    Position poison = events.get(17).getEvent().getPosition();
+    var failing = new AppliedPositions();
+    dispatcher.subscribe("failing", START).on(UserLoggedIn.class, (event, recorded) -> {
+      if (recorded.getPosition().equals(poison)) throw new IllegalStateException("bug");
+      failing.add(recorded.getPosition());
+    }).checkpointed(failing);
+    var healthy = new AppliedPositions();
+    dispatcher.subscribe("healthy", START).on(UserLoggedIn.class, (event, recorded) -> healthy.add(recorded.getPosition()))
+        .checkpointed(healthy);
+
+    dispatcher.startLanes();
+    events.forEach(event -> dispatcher.onEvent(null, event));
+    dispatcher.drain();
+    assertThat(dispatcher.failedSubscribers()).containsExactly("failing");
+    stop();
+    everyEvent.flush();
+
+    assertThat(failing.applied).doesNotContain(poison);
+    assertThat(failing.dumps).allSatisfy(dump -> assertThat(dump.at()).isLessThan(poison));
+    assertThat(everyEvent.load("failing", failing.version()).orElseThrow().position()).isLessThan(poison);
+    assertThat(healthy.applied).hasSize(events.size());
+    assertThat(everyEvent.load("healthy", healthy.version()).orElseThrow().position()).isEqualTo(events.getLast().getEvent().getPosition());
+  }
+
+  @Test
+  void anErrorInACallback_leavesTheLaneRunning() throws Exception {
+    dispatcher.subscribe("erroring", START).on(UserLoggedIn.class, (event, recorded) -> {
+      throw new StackOverflowError();
+    });
+    var others = new AppliedPositions();
+    dispatcher.subscribe("others", START).on(UserLoggedIn.class, (event, recorded) -> others.add(recorded.getPosition()));
+    List<ResolvedEvent> events = logins(2, 200); // more than a lane queue holds
+
+    dispatcher.startLanes();
+    events.forEach(event -> dispatcher.onEvent(null, event));
+    dispatcher.drain();
+
+    assertThat(others.applied).hasSize(events.size());
+    assertThat(dispatcher.failedSubscribers()).containsExactly("erroring");
+    assertThat(dispatcher.laneFailure()).isNull();
+  }
+
+  @Test
+  void stop_drainsTheLanes() throws Exception {
+    var state = new AppliedPositions();
+    dispatcher.subscribe("slow", START).on(UserLoggedIn.class, (event, recorded) -> {
+      sleep(1);
+      state.add(recorded.getPosition());
+    }).checkpointed(state);
+    List<ResolvedEvent> events = logins(4, 30);
+
+    dispatcher.startLanes();
+    events.forEach(event -> dispatcher.onEvent(null, event));
+    stop();
+
+    assertThat(state.applied).hasSize(events.size());
+    assertThat(state.dumps.getLast().at()).isEqualTo(events.getLast().getEvent().getPosition());
+    assertThat(state.dumps.getLast().applied()).hasSize(events.size());
+  }
+
+  @Test
+  void lag_isUpToTheLastUserEvent_ofTheEventsNotYetApplied() throws Exception {
+    dispatcher.subscribe("slow", START).on(UserCreated.class, (event, recordedEvent) -> awaitUninterruptibly(applying));
+    create(0, 10);
+    store.appendToStream("snapshot-" + User.stream("u0"), EventData.builderAsJson("User", "{}".getBytes()).build()).get();
+
+    dispatcher.start();
+
+    await().atMost(Duration.ofSeconds(5)).until(() -> lag("slow") > 0 && dispatcher.lastPosition() != null
+                                                        && dispatcher.lastPosition().compareTo(dispatcher.head()) == 0);
+    assertThat(lag("slow")).isGreaterThan(0); // all routed, not yet applied
+    applying.countDown();
+    await().atMost(Duration.ofSeconds(5)).until(() -> lag("slow") == 0); // the snapshot after the last user event doesn't count
+  }
+
+  @Test
+  void awaitProcessed_forgetsItsOwnWaiterOnTimeout_andRejectsPositionsBeyondTheHead() throws Exception {
+    dispatcher.subscribe("slow", START).on(UserLoggedIn.class, (event, recorded) -> awaitUninterruptibly(applying));
+    List<ResolvedEvent> events = logins(2, 3);
+    long first = events.getFirst().getEvent().getPosition().getCommitUnsigned();
+    long last = events.getLast().getEvent().getPosition().getCommitUnsigned();
+    dispatcher.startLanes();
+    events.forEach(event -> dispatcher.onEvent(null, event));
+
+    assertThatThrownBy(() -> dispatcher.awaitProcessed(first)).isInstanceOfSatisfying(ResponseStatusException.class,
+        e -> assertThat(e.getStatusCode()).isEqualTo(SERVICE_UNAVAILABLE));
+    assertThat(waitingPositions()).isZero();
+
+    var other = dispatcher.whenProcessed(last);
+    assertThatThrownBy(() -> dispatcher.awaitProcessed(last)).isInstanceOf(ResponseStatusException.class);
+    assertThat(waitingPositions()).isOne(); // still awaited by the other
+
+    assertThatThrownBy(() -> dispatcher.awaitProcessed(last + 1_000_000)).isInstanceOfSatisfying(ResponseStatusException.class,
+        e -> assertThat(e.getStatusCode()).isEqualTo(BAD_REQUEST));
+
+    applying.countDown();
+    other.get(5, TimeUnit.SECONDS);
+    dispatcher.awaitProcessed(last);
+    assertThat(waitingPositions()).isZero();
+  }
+
+  // dumps the positions applied so far, as of the position of the checkpoint
+  private class AppliedPositions implements ProjectionState {
+    record Dump(Position at, Set<Position> applied) {}
+
+    final Set<Position> applied = ConcurrentHashMap.newKeySet();
+    final List<Dump> dumps = new CopyOnWriteArrayList<>();
+
+    void add(Position position) {
+      applied.add(position);
+    }
+
+    @Override
+    public int version() {
+      return 1;
+    }
+
+    @Override
+    public void dump(DataOutput out) throws IOException {
+      dumps.add(new Dump(dispatcher.lastPosition(), Set.copyOf(applied)));
+      out.writeInt(applied.size());
+    }
+
+    @Override
+    public void restore(DataInput in) {
+    }
+  }
+
+  private void stop() {
+    dispatcher.stop();
+    dispatcher = null;
+  }
+
+  // users x loginsEach events, the logins of the users interleaved in $all
+  private List<ResolvedEvent> logins(int users, int loginsEach) throws Exception {
+    for (int i = 0; i < loginsEach; i++) {
+      for (int u = 0; u < users; u++) {
+        store.appendToStream(User.stream("u" + u), GsonUtil.toEventData(new UserLoggedIn().application("app" + i))).get();
+      }
+    }
+    return store.readAll(ReadAllOptions.get().forwards().fromStart().maxCount(Long.MAX_VALUE)).get().getEvents().stream()
+        .filter(event -> event.getEvent().getStreamId().startsWith("user-"))
+        .toList();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private double waitingPositions() {
+    return meterRegistry.get("subscription.waiting-positions").gauge().value();
+  }
+
+  private double lag(String subscriber) {
+    return meterRegistry.get("subscription.lag").tag("subscriber", subscriber).gauge().value();
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void create(int from, int to) throws Exception {
+    for (int i = from; i < to; i++) {
+      store.appendToStream(User.stream("u" + i), GsonUtil.toEventData(new UserCreated())).get();
+    }
+  }
+}